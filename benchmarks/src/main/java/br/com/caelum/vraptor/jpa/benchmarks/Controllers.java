@@ -0,0 +1,75 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+import javax.transaction.Transactional;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerMethod;
+import br.com.caelum.vraptor.core.MethodInfo;
+import br.com.caelum.vraptor.http.ParanamerNameProvider;
+import br.com.caelum.vraptor.jpa.ReadOnly;
+import br.com.caelum.vraptor.jpa.TransactionAttributes;
+import br.com.caelum.vraptor.jpa.extra.Load;
+
+/**
+ * The controller methods the benchmarks pretend to be calling.
+ */
+public class Controllers {
+
+	public void none(Long id) {
+	}
+
+	public void one(@Load Item item) {
+	}
+
+	public void three(@Load Item first, @Load Item second, @Load Item third) {
+	}
+
+	public void many(@Load List<Item> items) {
+	}
+
+	@Transactional
+	public void save() {
+	}
+
+	@ReadOnly
+	public void list() {
+	}
+
+	public static TransactionAttributes attributes() {
+		return new TransactionAttributes();
+	}
+
+	public static ControllerMethod method(String name) {
+		for (Method method : Controllers.class.getMethods()) {
+			if (method.getName().equals(name)) {
+				return DefaultControllerMethod.instanceFor(Controllers.class, method);
+			}
+		}
+		throw new IllegalArgumentException("No controller method " + name);
+	}
+
+	public static MethodInfo methodInfo(String name) {
+		MethodInfo methodInfo = new MethodInfo(new ParanamerNameProvider());
+		methodInfo.setControllerMethod(method(name));
+		return methodInfo;
+	}
+}
@@ -0,0 +1,56 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The in-memory H2 database shared by all the threads of a benchmark, with {@link #ITEMS}
+ * items already inserted.
+ */
+@State(Scope.Benchmark)
+public class Database {
+
+	public static final int ITEMS = 100;
+
+	public EntityManagerFactory factory;
+
+	@Setup
+	public void setUp() {
+		factory = Persistence.createEntityManagerFactory("default");
+
+		EntityManager manager = factory.createEntityManager();
+		manager.getTransaction().begin();
+		for (long id = 1; id <= ITEMS; id++) {
+			manager.persist(new Item(id, "item " + id));
+		}
+		manager.getTransaction().commit();
+		manager.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		factory.close();
+	}
+}
@@ -0,0 +1,73 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.EntityManagerCreator;
+import br.com.caelum.vraptor.jpa.ReadReplicas;
+import br.com.caelum.vraptor.jpa.Tenants;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+import br.com.caelum.vraptor.jpa.metrics.TransactionListener;
+import br.com.caelum.vraptor.util.test.MockInstanceImpl;
+
+/**
+ * The cost of producing and disposing the request EntityManager, when it is never used
+ * and when it finds one entity.
+ */
+@State(Scope.Thread)
+public class EntityManagerCreatorBenchmark {
+
+	@Param({ "false", "true" })
+	public String deferredTransaction;
+
+	private EntityManagerCreator creator;
+
+	@Setup
+	public void setUp(Database database) {
+		Environment environment = Stubs.environment("br.com.caelum.vraptor.jpa.deferredtransaction", deferredTransaction);
+		ReadReplicas replicas = new ReadReplicas(environment, null);
+		replicas.init();
+		JPAMetrics metrics = new JPAMetrics(environment, new MockInstanceImpl<TransactionListener>());
+		metrics.init();
+		Tenants tenants = new Tenants(environment, null, null);
+		tenants.init();
+
+		creator = new EntityManagerCreator(database.factory, environment, replicas, Controllers.methodInfo("save"), metrics,
+				Controllers.attributes(), tenants);
+	}
+
+	@Benchmark
+	public void createAndDispose() {
+		creator.destroy(creator.getEntityManager());
+	}
+
+	@Benchmark
+	public void createUseAndDispose(Blackhole blackhole) {
+		EntityManager manager = creator.getEntityManager();
+		blackhole.consume(manager.find(Item.class, 1L));
+		creator.destroy(manager);
+	}
+}
@@ -0,0 +1,105 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import br.com.caelum.vraptor.cache.DefaultCacheStore;
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.core.Converters;
+import br.com.caelum.vraptor.core.MethodInfo;
+import br.com.caelum.vraptor.events.ControllerFound;
+import br.com.caelum.vraptor.http.ParanamerNameProvider;
+import br.com.caelum.vraptor.jpa.BulkheadPermit;
+import br.com.caelum.vraptor.jpa.Bulkheads;
+import br.com.caelum.vraptor.jpa.LazyEntityManager;
+import br.com.caelum.vraptor.jpa.Tenants;
+import br.com.caelum.vraptor.jpa.extra.LoadCache;
+import br.com.caelum.vraptor.jpa.extra.LoadPlan;
+import br.com.caelum.vraptor.jpa.extra.LoadPlans;
+import br.com.caelum.vraptor.jpa.extra.ParameterLoader;
+import br.com.caelum.vraptor.util.test.MockResult;
+import br.com.caelum.vraptor.view.FlashScope;
+
+/**
+ * {@link ParameterLoader} loading the entities of a method with no <code>@Load</code>
+ * parameters, one, three and a list of ten.
+ */
+@State(Scope.Thread)
+public class ParameterLoaderBenchmark {
+
+	private static final int LISTED = 10;
+
+	@Param({ "none", "one", "three", "many" })
+	public String method;
+
+	private ControllerFound event;
+	private HttpServletRequest request;
+	private LoadPlans plans;
+	private MockResult result;
+	private Converters converters;
+	private FlashScope flash;
+	private LoadCache cache;
+	private MethodInfo methodInfo;
+	private Bulkheads bulkheads;
+
+	@Setup
+	public void setUp(Database database) {
+		Map<String, String[]> parameters = new HashMap<>();
+		parameters.put("id", new String[] { "1" });
+		parameters.put("item.id", new String[] { "1" });
+		parameters.put("first.id", new String[] { "1" });
+		parameters.put("second.id", new String[] { "2" });
+		parameters.put("third.id", new String[] { "3" });
+		String[] ids = new String[LISTED];
+		for (int i = 0; i < LISTED; i++) {
+			ids[i] = String.valueOf(i + 1);
+		}
+		parameters.put("items[].id", ids);
+
+		event = new ControllerFound(Controllers.method(method));
+		request = Stubs.request(parameters);
+		ParanamerNameProvider provider = new ParanamerNameProvider();
+		methodInfo = new MethodInfo(provider);
+		plans = new LoadPlans(database.factory, provider,
+				new DefaultCacheStore<ControllerMethod, LoadPlan>());
+		result = new MockResult();
+		converters = Stubs.converters();
+		flash = Stubs.flash();
+		cache = new LoadCache(Stubs.environment(), new Tenants(Stubs.environment(), null, null));
+		cache.init();
+		bulkheads = new Bulkheads(Stubs.environment(), null, null);
+		bulkheads.init();
+	}
+
+	@Benchmark
+	public void load(Database database) {
+		LazyEntityManager manager = new LazyEntityManager(database.factory);
+		new ParameterLoader(manager, request, plans, result, converters, flash, cache, methodInfo,
+				new BulkheadPermit(bulkheads, null), null).load(event);
+		manager.close();
+	}
+}
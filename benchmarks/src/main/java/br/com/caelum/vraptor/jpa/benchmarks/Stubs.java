@@ -0,0 +1,129 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.enterprise.inject.spi.BeanManager;
+import javax.servlet.http.HttpServletRequest;
+
+import br.com.caelum.vraptor.converter.LongConverter;
+import br.com.caelum.vraptor.core.Converters;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.http.MutableResponse;
+import br.com.caelum.vraptor.interceptor.SimpleInterceptorStack;
+import br.com.caelum.vraptor.view.FlashScope;
+
+/**
+ * Do-nothing implementations of the container collaborators, so the benchmarks measure
+ * vraptor-jpa and the database only.
+ */
+public final class Stubs {
+
+	private Stubs() {
+	}
+
+	public static Environment environment(final Map<String, String> properties) {
+		return stub(Environment.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("get") && args.length == 2) {
+					String value = properties.get(args[0]);
+					return value == null ? args[1] : value;
+				}
+				if (method.getName().equals("has")) {
+					return properties.containsKey(args[0]);
+				}
+				return properties.get(args[0]);
+			}
+		});
+	}
+
+	public static Environment environment(String... keysAndValues) {
+		Map<String, String> properties = new HashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			properties.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return environment(properties);
+	}
+
+	public static HttpServletRequest request(final Map<String, String[]> parameters) {
+		return stub(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getParameterValues")) {
+					return parameters.get(args[0]);
+				}
+				if (method.getName().equals("getParameter")) {
+					String[] values = parameters.get(args[0]);
+					return values == null ? null : values[0];
+				}
+				return null;
+			}
+		});
+	}
+
+	public static Converters converters() {
+		final LongConverter converter = new LongConverter();
+		return stub(Converters.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("to") ? converter : null;
+			}
+		});
+	}
+
+	public static BeanManager beanManager() {
+		return stub(BeanManager.class);
+	}
+
+	public static MutableResponse response() {
+		return stub(MutableResponse.class);
+	}
+
+	public static FlashScope flash() {
+		return stub(FlashScope.class);
+	}
+
+	public static SimpleInterceptorStack stack(final Runnable controller) {
+		return stub(SimpleInterceptorStack.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				controller.run();
+				return null;
+			}
+		});
+	}
+
+	private static <T> T stub(Class<T> type) {
+		return stub(type, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				Class<?> returnType = method.getReturnType();
+				return returnType == boolean.class ? Boolean.FALSE : null;
+			}
+		});
+	}
+
+	private static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+}
@@ -0,0 +1,72 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import java.lang.reflect.Field;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import br.com.caelum.vraptor.interceptor.SimpleInterceptorStack;
+import br.com.caelum.vraptor.jpa.JPAInterceptor;
+import br.com.caelum.vraptor.jpa.TransactionDecorator;
+
+/**
+ * The overhead of {@link TransactionDecorator} deciding whether the method is transactional,
+ * with a delegate and a controller that do nothing.
+ */
+@State(Scope.Thread)
+public class TransactionDecoratorBenchmark {
+
+	@Param({ "save", "none" })
+	public String method;
+
+	private TransactionDecorator decorator;
+	private SimpleInterceptorStack stack;
+
+	@Setup
+	public void setUp() throws ReflectiveOperationException {
+		decorator = new TransactionDecorator();
+		set("delegate", new JPAInterceptor() {
+			@Override
+			public void intercept(SimpleInterceptorStack stack) {
+				stack.next();
+			}
+		});
+		set("method", Controllers.method(method));
+		set("attributes", Controllers.attributes());
+		stack = Stubs.stack(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+	}
+
+	private void set(String name, Object value) throws ReflectiveOperationException {
+		Field field = TransactionDecorator.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(decorator, value);
+	}
+
+	@Benchmark
+	public void intercept() {
+		decorator.intercept(stack);
+	}
+}
@@ -0,0 +1,102 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.benchmarks;
+
+import javax.enterprise.inject.spi.BeanManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerInstance;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.http.MutableResponse;
+import br.com.caelum.vraptor.jpa.BulkheadPermit;
+import br.com.caelum.vraptor.jpa.Bulkheads;
+import br.com.caelum.vraptor.jpa.JPATransactionInterceptor;
+import br.com.caelum.vraptor.jpa.LazyEntityManager;
+import br.com.caelum.vraptor.jpa.RetryPolicy;
+import br.com.caelum.vraptor.jpa.TransactionEvents;
+import br.com.caelum.vraptor.jpa.TransactionAttributes;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+import br.com.caelum.vraptor.jpa.metrics.TransactionListener;
+import br.com.caelum.vraptor.util.test.MockInstanceImpl;
+import br.com.caelum.vraptor.util.test.MockValidator;
+
+/**
+ * A whole request through {@link JPATransactionInterceptor}: the EntityManager is created,
+ * the transaction begun, one entity found and the transaction committed, or rolled back
+ * when the method is read-only.
+ */
+@State(Scope.Thread)
+public class TransactionInterceptorBenchmark {
+
+	@Param({ "save", "list" })
+	public String method;
+
+	@Param({ "false", "true" })
+	public String metrics;
+
+	private ControllerMethod controllerMethod;
+	private JPAMetrics jpaMetrics;
+	private BeanManager beanManager;
+	private MutableResponse response;
+	private MockValidator validator;
+	private TransactionAttributes attributes;
+	private RetryPolicy retries;
+	private TransactionEvents events;
+	private Bulkheads bulkheads;
+
+	@Setup
+	public void setUp() {
+		Environment environment = Stubs.environment("br.com.caelum.vraptor.jpa.metrics", metrics);
+		jpaMetrics = new JPAMetrics(environment, new MockInstanceImpl<TransactionListener>());
+		jpaMetrics.init();
+
+		controllerMethod = Controllers.method(method);
+		beanManager = Stubs.beanManager();
+		response = Stubs.response();
+		validator = new MockValidator();
+		attributes = Controllers.attributes();
+		retries = new RetryPolicy(environment);
+		retries.init();
+		events = new TransactionEvents(beanManager, environment, jpaMetrics, null);
+		events.init();
+		bulkheads = new Bulkheads(environment, jpaMetrics, null);
+		bulkheads.init();
+	}
+
+	@Benchmark
+	public void intercept(Database database, final Blackhole blackhole) {
+		final LazyEntityManager manager = new LazyEntityManager(database.factory);
+		JPATransactionInterceptor interceptor = new JPATransactionInterceptor(beanManager, manager, validator,
+				response, controllerMethod, jpaMetrics, attributes,
+				retries, events, new BulkheadPermit(bulkheads, attributes), new DefaultControllerInstance(new Controllers()));
+
+		interceptor.intercept(Stubs.stack(new Runnable() {
+			@Override
+			public void run() {
+				blackhole.consume(manager.find(Item.class, 1L));
+			}
+		}));
+		manager.close();
+	}
+}
@@ -0,0 +1,148 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrency limit that adapts to the latency of the transactions, with additive increase
+ * and multiplicative decrease: each transaction slower than the target latency cuts the limit
+ * by the backoff ratio, and each faster one, when at least half of the limit is in use, raises
+ * it by one, always between the minimum and the maximum.
+ *
+ * Permits are taken without locking while under the limit; only waiting takes a lock.
+ */
+public class AdaptiveLimit implements AdaptiveLimitMBean {
+
+	private final int min;
+	private final int max;
+	private final long targetNanos;
+	private final double backoff;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong limit;
+	private final AtomicLong rejected = new AtomicLong();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private volatile int waiting;
+
+	public AdaptiveLimit(int initial, int min, int max, long targetMillis, double backoff) {
+		this.min = min;
+		this.max = max;
+		this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		this.backoff = backoff;
+		this.limit = new AtomicLong(Double.doubleToLongBits(Math.max(min, Math.min(max, initial))));
+	}
+
+	/**
+	 * Takes a permit, waiting up to the timeout for one to be released.
+	 *
+	 * @return false if no permit was released in time.
+	 */
+	public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+		if (tryAcquire()) {
+			return true;
+		}
+		long remaining = unit.toNanos(timeout);
+		if (remaining > 0) {
+			lock.lockInterruptibly();
+			waiting++;
+			try {
+				while (remaining > 0) {
+					if (tryAcquire()) {
+						return true;
+					}
+					remaining = released.awaitNanos(remaining);
+				}
+			} finally {
+				waiting--;
+				lock.unlock();
+			}
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	private boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= getLimit()) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives the permit back, adapting the limit to the latency of the transaction.
+	 */
+	public void release(long latencyNanos) {
+		int used = inFlight.getAndDecrement();
+		adapt(latencyNanos, used);
+		if (waiting > 0) {
+			lock.lock();
+			try {
+				released.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void adapt(long latencyNanos, int used) {
+		while (true) {
+			long bits = limit.get();
+			double current = Double.longBitsToDouble(bits);
+			double next;
+			if (latencyNanos > targetNanos) {
+				next = Math.max(min, current * backoff);
+			} else if (used * 2 >= current) {
+				next = Math.min(max, current + 1);
+			} else {
+				return;
+			}
+			if (next == current || limit.compareAndSet(bits, Double.doubleToLongBits(next))) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int getLimit() {
+		return (int) Double.longBitsToDouble(limit.get());
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public int getWaiting() {
+		return waiting;
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.get();
+	}
+}
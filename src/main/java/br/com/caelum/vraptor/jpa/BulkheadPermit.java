@@ -0,0 +1,88 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * The {@link Bulkheads} permit of a request, taken once, before anything touches the database:
+ * {@link br.com.caelum.vraptor.jpa.extra.ParameterLoader} takes it before loading the
+ * parameters, and the {@link JPATransactionInterceptor} gets the same one, releasing it after
+ * the transaction. Methods without a transaction of their own, as told by
+ * {@link Bulkheads#isLimited(TransactionAttribute)}, don't need a permit, so a rejected permit
+ * always ends in the interceptor answering 503.
+ */
+@RequestScoped
+public class BulkheadPermit {
+
+	private final Bulkheads bulkheads;
+	private final TransactionAttributes attributes;
+	private AdaptiveLimit limit;
+	private long acquiredAt;
+	private boolean taken;
+	private boolean rejected;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected BulkheadPermit() {
+		this(null, null);
+	}
+
+	@Inject
+	public BulkheadPermit(Bulkheads bulkheads, TransactionAttributes attributes) {
+		this.bulkheads = bulkheads;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Takes a permit to run the method, if the request hasn't taken one yet.
+	 *
+	 * @return false if the request must be rejected.
+	 */
+	public boolean acquire(ControllerMethod method) {
+		if (!taken) {
+			taken = true;
+			if (isLimited(method)) {
+				limit = bulkheads.acquire(method);
+				rejected = limit == null;
+				acquiredAt = System.nanoTime();
+			}
+		}
+		return !rejected;
+	}
+
+	/**
+	 * Gives the permit back, with the time it was held. Also called at the end of the request,
+	 * for the requests that took it but never reached the transaction.
+	 */
+	@PreDestroy
+	public void release() {
+		if (limit != null) {
+			limit.release(System.nanoTime() - acquiredAt);
+			limit = null;
+		}
+	}
+
+	private boolean isLimited(ControllerMethod method) {
+		return bulkheads.isEnabled() && bulkheads.isLimited(attributes.of(method));
+	}
+}
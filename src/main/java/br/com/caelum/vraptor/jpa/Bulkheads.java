@@ -0,0 +1,146 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+
+/**
+ * Limits how many transactions run at once, when <code>br.com.caelum.vraptor.jpa.bulkhead</code>
+ * is <code>true</code>, so a slow database doesn't get every request thread waiting for a
+ * connection. There is an {@link AdaptiveLimit} per {@link Bulkhead} group, limiting the
+ * transactions of the main unit, the only one the {@link JPATransactionInterceptor} opens.
+ *
+ * The limits start at <code>br.com.caelum.vraptor.jpa.bulkhead.initial</code> (20 by default) and
+ * stay between <code>bulkhead.min</code> (1) and <code>bulkhead.max</code> (200), going down by
+ * <code>bulkhead.backoff</code> (0.9) when a transaction takes more than
+ * <code>bulkhead.latency</code> milliseconds (500). A request over the limit waits up to
+ * <code>bulkhead.timeout</code> milliseconds (0 by default) for a permit, and is rejected after.
+ */
+@ApplicationScoped
+public class Bulkheads {
+
+	private final Environment environment;
+	private final JPAMetrics metrics;
+	private final BeanManager beanManager;
+	private final ConcurrentMap<String, AdaptiveLimit> groups = new ConcurrentHashMap<>();
+	private final ConcurrentMap<ControllerMethod, AdaptiveLimit> methods = new ConcurrentHashMap<>();
+	private boolean enabled;
+	private boolean decorated;
+	private long timeout;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected Bulkheads() {
+		this(null, null, null);
+	}
+
+	@Inject
+	public Bulkheads(Environment environment, JPAMetrics metrics, BeanManager beanManager) {
+		this.environment = environment;
+		this.metrics = metrics;
+		this.beanManager = beanManager;
+	}
+
+	@PostConstruct
+	public void init() {
+		enabled = Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.bulkhead", "false"));
+		timeout = Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.bulkhead.timeout", "0").trim());
+		decorated = enabled && TransactionDecorator.isEnabled(beanManager);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return true if the method runs a transaction of its own, so it needs a permit. With the
+	 *         {@link TransactionDecorator}, methods without {@link javax.transaction.Transactional}
+	 *         or {@link ReadOnly} don't run one.
+	 */
+	public boolean isLimited(TransactionAttribute attribute) {
+		if (!enabled || attribute.isNonTransactional() || attribute.isMandatory()) {
+			return false;
+		}
+		return !decorated || attribute.isTransactional();
+	}
+
+	/**
+	 * Takes a permit to run the method's transaction.
+	 *
+	 * @return the limit to release the permit to, or null if the request must be rejected.
+	 */
+	public AdaptiveLimit acquire(ControllerMethod method) {
+		AdaptiveLimit limit = limitOf(method);
+		try {
+			return limit.acquire(timeout, TimeUnit.MILLISECONDS) ? limit : null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	public AdaptiveLimit limitOf(ControllerMethod method) {
+		AdaptiveLimit limit = methods.get(method);
+		if (limit == null) {
+			limit = groupOf(groupName(method));
+			methods.putIfAbsent(method, limit);
+		}
+		return limit;
+	}
+
+	private String groupName(ControllerMethod method) {
+		Bulkhead bulkhead = method.getMethod().getAnnotation(Bulkhead.class);
+		if (bulkhead == null) {
+			bulkhead = method.getController().getType().getAnnotation(Bulkhead.class);
+		}
+		return bulkhead == null ? "default" : bulkhead.value();
+	}
+
+	private AdaptiveLimit groupOf(String name) {
+		AdaptiveLimit limit = groups.get(name);
+		if (limit == null) {
+			AdaptiveLimit created = new AdaptiveLimit(setting("initial", "20"), setting("min", "1"), setting("max", "200"),
+					Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.bulkhead.latency", "500").trim()),
+					Double.parseDouble(environment.get("br.com.caelum.vraptor.jpa.bulkhead.backoff", "0.9").trim()));
+			limit = groups.putIfAbsent(name, created);
+			if (limit == null) {
+				limit = created;
+				if (metrics.isEnabled()) {
+					metrics.register(created, "type=Bulkhead,name=" + ObjectName.quote(name));
+				}
+			}
+		}
+		return limit;
+	}
+
+	private int setting(String name, String defaultValue) {
+		return Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.bulkhead." + name, defaultValue).trim());
+	}
+}
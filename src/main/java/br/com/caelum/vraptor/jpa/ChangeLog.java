@@ -0,0 +1,189 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import br.com.caelum.vraptor.jpa.event.Change;
+import br.com.caelum.vraptor.jpa.event.Change.Operation;
+
+/**
+ * The {@link Change}s of a transaction, in order and once per entity, a later remove winning.
+ *
+ * The changes are recorded in entries of its own, and handed out as copies, so the lists and
+ * changes asynchronous observers keep never see what the transaction writes afterwards. The
+ * copies are made again only for the entries that changed since the last view, or whose ids
+ * the provider hadn't assigned yet.
+ * Clearing the persistence context compacts the changes into one per type and operation, so a
+ * bulk write doesn't keep one change per entity.
+ */
+class ChangeLog {
+
+	private final EntityManagerFactory factory;
+	private List<Entry> entries = new ArrayList<>();
+	private Map<Object, Entry> byEntity = new IdentityHashMap<>();
+	private Map<List<Object>, Entry> byId = new HashMap<>();
+	private List<Change> view = Collections.emptyList();
+	private boolean unresolved;
+
+	ChangeLog(EntityManagerFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Records an entity given to persist, merge or remove, reading its id only when needed.
+	 */
+	void record(Object entity, Operation operation) {
+		Entry entry = byEntity.get(entity);
+		if (entry == null) {
+			entry = new Entry(entity.getClass(), entity, null, operation);
+			byEntity.put(entity, entry);
+			add(entry);
+		} else if (operation == Operation.REMOVE) {
+			removed(entry);
+		}
+	}
+
+	/**
+	 * Records a change the provider flushed, or one to many entities of the type if the id is
+	 * null.
+	 */
+	void record(Class<?> type, Object id, Operation operation) {
+		List<Object> key = Arrays.asList(type, id);
+		Entry entry = id == null ? null : byId.get(key);
+		if (entry == null) {
+			entry = new Entry(type, null, id, operation);
+			if (id != null) {
+				byId.put(key, entry);
+			}
+			add(entry);
+		} else if (operation == Operation.REMOVE) {
+			removed(entry);
+		}
+	}
+
+	boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return copies of the changes recorded so far, in a list that won't change.
+	 */
+	List<Change> view() {
+		if (view == null || unresolved) {
+			List<Change> changes = new ArrayList<>(entries.size());
+			unresolved = false;
+			for (Entry entry : entries) {
+				changes.add(entry.toChange(factory));
+				unresolved |= entry.entity != null;
+			}
+			view = Collections.unmodifiableList(changes);
+		}
+		return view;
+	}
+
+	/**
+	 * Replaces the changes by one per type and operation, without ids, and forgets the
+	 * entities, as the persistence context is being cleared.
+	 */
+	void compact() {
+		if (isEmpty()) {
+			return;
+		}
+		Map<List<Object>, Entry> compacted = new LinkedHashMap<>();
+		for (Entry entry : entries) {
+			List<Object> key = Arrays.<Object> asList(entry.type, entry.operation);
+			if (!compacted.containsKey(key)) {
+				compacted.put(key, new Entry(entry.type, null, null, entry.operation));
+			}
+		}
+		entries = new ArrayList<>(compacted.values());
+		byEntity = new IdentityHashMap<>();
+		byId = new HashMap<>();
+		view = null;
+		unresolved = false;
+	}
+
+	/**
+	 * Forgets every change, leaving the handed out lists as they are.
+	 */
+	void reset() {
+		entries = new ArrayList<>();
+		byEntity = new IdentityHashMap<>();
+		byId = new HashMap<>();
+		view = Collections.emptyList();
+		unresolved = false;
+	}
+
+	private void add(Entry entry) {
+		entries.add(entry);
+		view = null;
+	}
+
+	/**
+	 * The entity was removed after being persisted or merged in the same transaction.
+	 */
+	private void removed(Entry entry) {
+		if (entry.operation != Operation.REMOVE) {
+			entry.operation = Operation.REMOVE;
+			entry.change = null;
+			view = null;
+		}
+	}
+
+	private static class Entry {
+
+		private final Class<?> type;
+		private Object entity;
+		private Object id;
+		private Operation operation;
+		private Change change;
+
+		Entry(Class<?> type, Object entity, Object id, Operation operation) {
+			this.type = type;
+			this.entity = entity;
+			this.id = id;
+			this.operation = operation;
+		}
+
+		/**
+		 * Reads the id of the entity once the provider assigned it, and copies the entry.
+		 */
+		Change toChange(EntityManagerFactory factory) {
+			if (entity != null) {
+				id = factory.getPersistenceUnitUtil().getIdentifier(entity);
+				if (id != null) {
+					entity = null;
+					change = null;
+				}
+			}
+			if (change == null) {
+				change = new Change(type, id, operation);
+			}
+			return change;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * Resolves the tenant from the <code>br.com.caelum.vraptor.jpa.tenants.header</code> header
+ * (<code>X-Tenant</code> by default) or, when <code>br.com.caelum.vraptor.jpa.tenants.resolver</code>
+ * is <code>subdomain</code>, from the first label of the host name, as in
+ * <code>acme.example.com</code>.
+ *
+ * Both come from the client, so this resolver must only be used behind an authentication that
+ * checks the tenant of the user. <code>br.com.caelum.vraptor.jpa.tenants.allowed</code> limits
+ * the tenants {@link Tenants} accepts.
+ */
+@RequestScoped
+public class DefaultTenantResolver implements TenantResolver {
+
+	private final HttpServletRequest request;
+	private final Environment environment;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected DefaultTenantResolver() {
+		this(null, null);
+	}
+
+	@Inject
+	public DefaultTenantResolver(HttpServletRequest request, Environment environment) {
+		this.request = request;
+		this.environment = environment;
+	}
+
+	@Override
+	public String resolve() {
+		if ("subdomain".equals(environment.get("br.com.caelum.vraptor.jpa.tenants.resolver", "header"))) {
+			return subdomain(request.getServerName());
+		}
+		return request.getHeader(environment.get("br.com.caelum.vraptor.jpa.tenants.header", "X-Tenant"));
+	}
+
+	private String subdomain(String host) {
+		int dot = host == null ? -1 : host.indexOf('.');
+		if (dot <= 0 || Character.isDigit(host.charAt(host.length() - 1))) {
+			return null;
+		}
+		return host.substring(0, dot);
+	}
+}
@@ -19,12 +19,42 @@ package br.com.caelum.vraptor.jpa;
 import javax.enterprise.context.RequestScoped;
 import javax.enterprise.inject.Disposes;
 import javax.enterprise.inject.Produces;
+import javax.enterprise.inject.spi.InjectionPoint;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.core.MethodInfo;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+
 /**
- * An {@link EntityManager} producer, that creates an instance for each request.
+ * An {@link EntityManager} producer, that creates an instance for each request. The
+ * instance is a {@link LazyEntityManager}, so the real one is only created if the request
+ * uses it.
+ *
+ * Setting <code>br.com.caelum.vraptor.jpa.deferredtransaction</code> to <code>true</code>
+ * makes the transaction begin only on the first operation that needs the database.
+ *
+ * When {@link ReadReplicas} are configured, {@link ReadOnly} methods use one of them. Methods
+ * without {@link javax.transaction.Transactional} use them too when
+ * <code>br.com.caelum.vraptor.jpa.replicas.nontransactional</code> is <code>true</code> and the
+ * {@link TransactionDecorator} is enabled.
+ *
+ * The query and lock timeouts come from the method's {@link Timeouts}, or else from
+ * <code>br.com.caelum.vraptor.jpa.timeout.query</code> and <code>br.com.caelum.vraptor.jpa.timeout.lock</code>,
+ * in milliseconds.
+ *
+ * The replica and the timeouts are chosen when the real {@link EntityManager} is created, not
+ * when it is produced, since observers of {@link br.com.caelum.vraptor.events.ControllerFound}
+ * may get it before the {@link MethodInfo} knows the method.
+ *
+ * With {@link Tenants}, the request uses the factory of its tenant, or sets the tenant as a
+ * property of the {@link EntityManager}. Requests with a tenant don't use the read replicas.
+ *
+ * The {@link EntityManager}s qualified with {@link Unit} come from the {@link UnitEntityManagers}
+ * of the request.
  * 
  * @author Lucas Cavalcanti
  * @author Otávio Garcia
@@ -32,29 +62,130 @@ import javax.persistence.EntityManagerFactory;
 public class EntityManagerCreator {
 
 	private final EntityManagerFactory factory;
+	private final Environment environment;
+	private final ReadReplicas replicas;
+	private final MethodInfo methodInfo;
+	private final JPAMetrics metrics;
+	private final TransactionAttributes attributes;
+	private final Tenants tenants;
 
 	/**
 	 * @deprecated CDI eyes only.
 	 */
 	protected EntityManagerCreator() {
-		this(null);
+		this(null, null, null, null, null, null, null);
 	}
 
 	@Inject
-	public EntityManagerCreator(EntityManagerFactory factory) {
+	public EntityManagerCreator(EntityManagerFactory factory, Environment environment, ReadReplicas replicas,
+			MethodInfo methodInfo, JPAMetrics metrics, TransactionAttributes attributes, Tenants tenants) {
 		this.factory = factory;
+		this.environment = environment;
+		this.replicas = replicas;
+		this.methodInfo = methodInfo;
+		this.metrics = metrics;
+		this.attributes = attributes;
+		this.tenants = tenants;
 	}
 
 	@Produces
 	@RequestScoped
 	public EntityManager getEntityManager() {
-		return factory.createEntityManager();
+		final String tenant = tenants.current();
+		final EntityManagerFactory chosen;
+		if (tenant != null && tenants.isFactoryPerTenant()) {
+			chosen = tenants.acquire(tenant);
+		} else {
+			chosen = factory;
+		}
+		LazyEntityManager manager = new LazyEntityManager(chosen, isDeferredTransaction());
+		manager.setTenant(tenant);
+		if (tenant != null && tenants.getProperty() != null) {
+			manager.setProperty(tenants.getProperty(), tenant);
+		}
+		manager.setRouter(new LazyEntityManager.Router() {
+			@Override
+			public EntityManagerFactory route(LazyEntityManager lazy) {
+				ControllerMethod method = methodInfo == null ? null : methodInfo.getControllerMethod();
+				applyTimeouts(lazy, method);
+				return tenant == null && isReplicated(method) ? replicas.acquire() : chosen;
+			}
+		});
+		if (metrics.isEnabled()) {
+			manager.addListener(new LazyEntityManager.Listener() {
+				@Override
+				public void created(EntityManager manager) {
+					metrics.entityManagerOpened();
+				}
+
+				@Override
+				public void closed(EntityManager manager) {
+					metrics.entityManagerClosed();
+				}
+			});
+		}
+		return manager;
+	}
+
+	@Produces
+	@Unit("")
+	public EntityManager getEntityManager(InjectionPoint point, UnitEntityManagers managers) {
+		return managers.of(EntityManagerFactoryCreator.unitOf(point));
 	}
 
 	public void destroy(@Disposes EntityManager entityManager) {
+		replicas.release(entityManager.getEntityManagerFactory());
+		tenants.release(entityManager.getEntityManagerFactory());
+		if (!isInitialized(entityManager)) {
+			return;
+		}
 		if (entityManager.isOpen()) {
 			entityManager.close();
 		}
 	}
 
+	private boolean isReplicated(ControllerMethod method) {
+		if (method == null || replicas.isEmpty()) {
+			return false;
+		}
+		TransactionAttribute attribute = attributes.of(method);
+		return attribute.isReadOnly() || (!attribute.isTransactional() && replicas.isNonTransactional());
+	}
+
+	/**
+	 * Sets the query and lock timeouts of the method, or else the global ones. They are kept by
+	 * the {@link LazyEntityManager} until the real one is created.
+	 */
+	private void applyTimeouts(EntityManager manager, ControllerMethod method) {
+		TransactionAttribute attribute = method == null ? null : attributes.of(method);
+		int query = attribute == null ? -1 : attribute.getQueryTimeout();
+		int lock = attribute == null ? -1 : attribute.getLockTimeout();
+		if (query < 0) {
+			query = globalTimeout("query");
+		}
+		if (lock < 0) {
+			lock = globalTimeout("lock");
+		}
+		if (query >= 0) {
+			manager.setProperty(LazyEntityManager.QUERY_TIMEOUT, query);
+		}
+		if (lock >= 0) {
+			manager.setProperty(LazyEntityManager.LOCK_TIMEOUT, lock);
+		}
+	}
+
+	private int globalTimeout(String name) {
+		String timeout = environment.get("br.com.caelum.vraptor.jpa.timeout." + name, "-1");
+		return timeout == null ? -1 : Integer.parseInt(timeout.trim());
+	}
+
+	private boolean isDeferredTransaction() {
+		return Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.deferredtransaction", "false"));
+	}
+
+	private boolean isInitialized(EntityManager entityManager) {
+		return !(entityManager instanceof LazyEntityManager)
+				|| ((LazyEntityManager) entityManager).isInitialized();
+	}
+
 }
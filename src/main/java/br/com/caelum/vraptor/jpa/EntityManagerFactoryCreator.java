@@ -16,18 +16,21 @@
  */
 package br.com.caelum.vraptor.jpa;
 
+import java.lang.annotation.Annotation;
+
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Disposes;
 import javax.enterprise.inject.Produces;
+import javax.enterprise.inject.spi.InjectionPoint;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
-
-import br.com.caelum.vraptor.environment.Environment;
 
 /**
  * An {@link EntityManager} producer, that creates an instance for each request.
+ *
+ * The persistence unit is created with the {@link PersistenceProperties} of the environment,
+ * by {@link PersistenceUnits}, that also creates the factories injected with {@link Unit}.
  * 
  * @author Lucas Cavalcanti
  * @author Otávio Garcia
@@ -35,13 +38,27 @@ import br.com.caelum.vraptor.environment.Environment;
 public class EntityManagerFactoryCreator {
 	
 	@Inject 
-	private Environment environment;
+	private PersistenceUnits units;
 
 	@ApplicationScoped
 	@Produces
 	public EntityManagerFactory getEntityManagerFactory() {
-		String persistenceUnit = environment.get("br.com.caelum.vraptor.jpa.persistenceunit", "default");
-		return Persistence.createEntityManagerFactory(persistenceUnit);
+		return units.get(units.getDefault());
+	}
+
+	@Produces
+	@Unit("")
+	public EntityManagerFactory getEntityManagerFactory(InjectionPoint point) {
+		return units.get(unitOf(point));
+	}
+
+	static String unitOf(InjectionPoint point) {
+		for (Annotation qualifier : point.getQualifiers()) {
+			if (qualifier instanceof Unit) {
+				return ((Unit) qualifier).value();
+			}
+		}
+		throw new IllegalStateException("No @Unit on " + point);
 	}
 
 	public void destroy(@Disposes EntityManagerFactory factory) {
@@ -0,0 +1,58 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a controller method, or all methods of a controller, as safe to run again. When its
+ * transaction fails with an optimistic lock, a deadlock or a serialization failure, the
+ * EntityManager is reset and the method is called again, after an exponential backoff with
+ * jitter, as long as nothing was written to the response.
+ *
+ * Before calling it again, the {@link br.com.caelum.vraptor.jpa.extra.ParameterLoader} loads the
+ * <code>@Load</code> parameters and builds the other entity parameters from the request again.
+ * Any other entity the method holds is detached.
+ * @see RetryPolicy
+ */
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Idempotent {
+
+	/**
+	 * How many times the method runs at most, counting the first one.
+	 */
+	int attempts() default 3;
+
+	/**
+	 * The base backoff, in milliseconds, doubled on each retry.
+	 */
+	long backoff() default 20;
+
+	/**
+	 * The maximum backoff, in milliseconds.
+	 */
+	long maxBackoff() default 1000;
+
+	/**
+	 * Other exceptions that should be retried, besides lock and deadlock failures.
+	 */
+	Class<? extends Throwable>[] retryOn() default {};
+}
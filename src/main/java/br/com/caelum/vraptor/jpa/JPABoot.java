@@ -0,0 +1,151 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.events.VRaptorInitialized;
+import br.com.caelum.vraptor.http.route.Route;
+import br.com.caelum.vraptor.http.route.Router;
+import br.com.caelum.vraptor.jpa.extra.LoadPlans;
+
+/**
+ * Boots JPA when VRaptor starts, instead of on the first request, if
+ * <code>br.com.caelum.vraptor.jpa.eagerboot</code> is <code>true</code>. It creates the
+ * {@link EntityManagerFactory} and the {@link ReadReplicas}, opens
+ * <code>br.com.caelum.vraptor.jpa.eagerboot.connections</code> connections (1 by default) to
+ * fill the pool, resolves the transaction attributes and <code>@Load</code> plans of every
+ * route, and runs the native <code>br.com.caelum.vraptor.jpa.eagerboot.query</code>, if set.
+ *
+ * Any failure is thrown, so a broken configuration stops the application from starting.
+ */
+public class JPABoot {
+
+	private static final Logger logger = LoggerFactory.getLogger(JPABoot.class);
+
+	private final Environment environment;
+	private final EntityManagerFactory factory;
+	private final ReadReplicas replicas;
+	private final Router router;
+	private final TransactionAttributes attributes;
+	private final LoadPlans plans;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected JPABoot() {
+		this(null, null, null, null, null, null);
+	}
+
+	@Inject
+	public JPABoot(Environment environment, EntityManagerFactory factory, ReadReplicas replicas, Router router,
+			TransactionAttributes attributes, LoadPlans plans) {
+		this.environment = environment;
+		this.factory = factory;
+		this.replicas = replicas;
+		this.router = router;
+		this.attributes = attributes;
+		this.plans = plans;
+	}
+
+	public void boot(@Observes VRaptorInitialized event) {
+		if (!Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.eagerboot", "false"))) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		factory.getMetamodel();
+		replicas.isEmpty();
+		long factoryReady = System.nanoTime();
+
+		int connections = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.eagerboot.connections", "1").trim());
+		openConnections(connections);
+		long connectionsReady = System.nanoTime();
+
+		int routes = resolveRoutes();
+		long routesReady = System.nanoTime();
+
+		String query = environment.get("br.com.caelum.vraptor.jpa.eagerboot.query", "");
+		if (!query.trim().isEmpty()) {
+			warmUp(query);
+		}
+		long end = System.nanoTime();
+
+		logger.info("JPA booted in {} ms: factory {} ms, {} connections {} ms, {} routes {} ms, warm-up query {} ms",
+				millis(start, end), millis(start, factoryReady), connections, millis(factoryReady, connectionsReady),
+				routes, millis(connectionsReady, routesReady), millis(routesReady, end));
+	}
+
+	/**
+	 * Opens the connections at the same time, so the pool has to create all of them.
+	 */
+	private void openConnections(int count) {
+		List<EntityManager> managers = new ArrayList<>();
+		try {
+			for (int i = 0; i < count; i++) {
+				EntityManager manager = factory.createEntityManager();
+				managers.add(manager);
+				manager.getTransaction().begin();
+			}
+		} finally {
+			for (EntityManager manager : managers) {
+				if (manager.getTransaction().isActive()) {
+					manager.getTransaction().rollback();
+				}
+				manager.close();
+			}
+		}
+	}
+
+	private int resolveRoutes() {
+		int count = 0;
+		for (Route route : router.allRoutes()) {
+			ControllerMethod method = route.getControllerMethod();
+			if (method != null) {
+				attributes.of(method);
+				plans.planFor(method);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void warmUp(String query) {
+		EntityManager manager = factory.createEntityManager();
+		try {
+			manager.createNativeQuery(query).getResultList();
+		} finally {
+			manager.close();
+		}
+	}
+
+	private long millis(long from, long to) {
+		return TimeUnit.NANOSECONDS.toMillis(to - from);
+	}
+}
@@ -16,24 +16,72 @@
  */
 package br.com.caelum.vraptor.jpa;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.List;
+
 import javax.enterprise.inject.spi.BeanManager;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.TransactionRequiredException;
+import javax.servlet.http.HttpServletResponse;
 
 import br.com.caelum.vraptor.AroundCall;
+import br.com.caelum.vraptor.InterceptionException;
 import br.com.caelum.vraptor.Intercepts;
+import br.com.caelum.vraptor.controller.ControllerInstance;
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.core.ReflectionProviderException;
+import br.com.caelum.vraptor.events.InterceptorsExecuted;
 import br.com.caelum.vraptor.http.MutableResponse;
+import br.com.caelum.vraptor.interceptor.ApplicationLogicException;
 import br.com.caelum.vraptor.interceptor.SimpleInterceptorStack;
 import br.com.caelum.vraptor.jpa.event.AfterCommit;
 import br.com.caelum.vraptor.jpa.event.AfterRollback;
 import br.com.caelum.vraptor.jpa.event.BeforeCommit;
+import br.com.caelum.vraptor.jpa.event.BeforeRetry;
+import br.com.caelum.vraptor.jpa.event.Change;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+import br.com.caelum.vraptor.jpa.metrics.QueryCounter;
+import br.com.caelum.vraptor.jpa.metrics.TransactionSample;
+import br.com.caelum.vraptor.jpa.metrics.TransactionSample.Phase;
 import br.com.caelum.vraptor.validator.Validator;
 
 /**
  * An interceptor that manages Entity Manager Transaction. All requests are intercepted
  * and a transaction is created before execution. If the request has no erros, the transaction
  * will commited, or a rollback occurs otherwise.
+ *
+ * Methods or controllers annotated with {@link ReadOnly} are never flushed and their
+ * transactions are rolled back instead of committed, without firing the commit events.
+ *
+ * Methods annotated with {@link javax.transaction.Transactional} follow its rules: types
+ * <code>SUPPORTS</code>, <code>NOT_SUPPORTED</code> and <code>NEVER</code> run without a
+ * transaction, <code>MANDATORY</code> joins the active one or throws
+ * {@link TransactionRequiredException} if there is none, and the others run in a new one, as a
+ * request has no outer transaction. When they
+ * throw, <code>rollbackOn</code> and <code>dontRollbackOn</code> decide whether the work done is
+ * committed or rolled back. Methods without the annotation roll back on every exception.
+ *
+ * {@link Idempotent} methods are called again, in a new transaction, when it fails with an
+ * exception their {@link RetryPolicy} considers retryable. The interceptors after this one have
+ * already run, so the retries fire {@link InterceptorsExecuted} to call only the controller
+ * method, after {@link BeforeRetry} lets its parameters be loaded again.
+ *
+ * The commit and rollback events are fired by {@link TransactionEvents}, asynchronously if
+ * configured, while {@link BeforeCommit} is always fired on the request thread.
+ *
+ * When {@link Bulkheads} are enabled, transactions over the concurrency limit of their group
+ * wait for a permit or are answered with 503, Service Unavailable. The {@link BulkheadPermit}
+ * is usually taken before, when the parameters are loaded, and released after the transaction.
+ *
+ * When {@link JPAMetrics} are enabled, the time spent in each phase of the transaction is
+ * recorded per controller method, with the queries it ran.
  * 
  * @author Lucas Cavalcanti
  */
@@ -44,51 +92,308 @@ public class JPATransactionInterceptor implements JPAInterceptor {
 	private final EntityManager manager;
 	private final Validator validator;
 	private final MutableResponse response;
+	private final ControllerMethod method;
+	private final JPAMetrics metrics;
+	private final TransactionAttributes attributes;
+	private final RetryPolicy retries;
+	private final TransactionEvents events;
+	private final BulkheadPermit permit;
+	private final ControllerInstance controller;
+	private TransactionSample sample;
+	private boolean committed;
+	private long begunAt;
+	private Throwable failure;
 
 	/**
 	 * @deprecated CDI eyes only.
 	 */
 	protected JPATransactionInterceptor() {
-		this(null, null, null, null);
+		this(null, null, null, null, null, null, null, null, null, null, null);
 	}
 	
 	@Inject
-	public JPATransactionInterceptor(BeanManager beanManager, EntityManager manager, Validator validator, MutableResponse response) {
+	public JPATransactionInterceptor(BeanManager beanManager, EntityManager manager, Validator validator,
+			MutableResponse response, ControllerMethod method, JPAMetrics metrics, TransactionAttributes attributes,
+			RetryPolicy retries, TransactionEvents events, BulkheadPermit permit, ControllerInstance controller) {
 		this.beanManager = beanManager;
 		this.manager = manager;
 		this.validator = validator;
 		this.response = response;
+		this.method = method;
+		this.metrics = metrics;
+		this.attributes = attributes;
+		this.retries = retries;
+		this.events = events;
+		this.permit = permit;
+		this.controller = controller;
 	}
 
 	@AroundCall
 	public void intercept(SimpleInterceptorStack stack) {
 		
+		TransactionAttribute attribute = attributes.of(method);
+		if (attribute.isNonTransactional()) {
+			stack.next();
+			return;
+		}
+		if (attribute.isMandatory()) {
+			joinActiveTransaction(stack);
+			return;
+		}
+		if (!permit.acquire(method)) {
+			reject();
+			return;
+		}
+		try {
+			runInTransaction(stack, attribute);
+		} finally {
+			permit.release();
+		}
+	}
+
+	private void runInTransaction(SimpleInterceptorStack stack, TransactionAttribute attribute) {
 		addRedirectListener();
+		if (metrics.isEnabled()) {
+			sample = new TransactionSample(method);
+			countQueries(sample.getQueries());
+		}
 		
 		EntityTransaction transaction = null;
 		try {
-			transaction = manager.getTransaction();
-			transaction.begin();
-			
-			stack.next();
-			
-			commit(transaction);
-			
+			for (int attempt = 1; ; attempt++) {
+				try {
+					transaction = begin(attribute);
+					execute(stack, attribute, transaction, attempt);
+					commit(transaction);
+					return;
+				} catch (RuntimeException e) {
+					failure = causeOf(e);
+					if (!shouldRetry(attribute, attempt, e)) {
+						throw e;
+					}
+					rollbackIfActive(transaction);
+					if (!retries.backoff(attribute.getIdempotent(), attempt)) {
+						throw e;
+					}
+					reset();
+					beanManager.fireEvent(new BeforeRetry(attempt + 1, failure));
+				}
+			}
 		} finally {
-			if (transaction != null && transaction.isActive()) {
-				transaction.rollback();
-				beanManager.fireEvent(new AfterRollback());
+			rollbackIfActive(transaction);
+			if (sample != null) {
+				countQueries(null);
+				metrics.record(sample.finish());
+			}
+		}
+	}
+
+	/**
+	 * Runs the method in the transaction that is already active, leaving its commit or rollback
+	 * to whoever began it.
+	 */
+	private void joinActiveTransaction(SimpleInterceptorStack stack) {
+		if (!manager.getTransaction().isActive()) {
+			throw new TransactionRequiredException("No active transaction for " + method.getMethod()
+					+ ", which is @Transactional(TxType.MANDATORY)");
+		}
+		stack.next();
+	}
+
+	/**
+	 * Answers 503 to a request over the concurrency limit, without touching the database.
+	 */
+	private void reject() {
+		try {
+			response.setHeader("Retry-After", "1");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		} catch (IOException e) {
+			throw new InterceptionException(e);
+		}
+	}
+
+	private EntityTransaction begin(TransactionAttribute attribute) {
+		enter(Phase.BEGIN);
+		committed = false;
+		failure = null;
+		begunAt = System.nanoTime();
+		EntityTransaction transaction = manager.getTransaction();
+		transaction.begin();
+		if (attribute.isReadOnly()) {
+			markReadOnly();
+		}
+		return transaction;
+	}
+
+	private void execute(SimpleInterceptorStack stack, TransactionAttribute attribute, EntityTransaction transaction,
+			int attempt) {
+		enter(Phase.EXECUTION);
+		try {
+			if (attempt == 1) {
+				stack.next();
+			} else {
+				beanManager.fireEvent(new InterceptorsExecuted(method, controller.getController()));
+			}
+		} catch (RuntimeException e) {
+			if (!attribute.rollsBackOn(causeOf(e))) {
+				commitDespite(transaction, e);
 			}
+			throw e;
+		}
+	}
+
+	/**
+	 * An {@link Idempotent} method is retried while it has attempts left, if nothing was
+	 * committed nor written to the response, and the failure is retryable.
+	 */
+	private boolean shouldRetry(TransactionAttribute attribute, int attempt, RuntimeException e) {
+		Idempotent idempotent = attribute.getIdempotent();
+		return idempotent != null && attempt < idempotent.attempts() && !committed
+				&& !response.isCommitted() && retries.isRetryable(e, idempotent);
+	}
+
+	private void rollbackIfActive(EntityTransaction transaction) {
+		if (transaction != null && transaction.isActive()) {
+			rollback(transaction);
+			events.fire(new AfterRollback(method, System.nanoTime() - begunAt, changes(), tenant(), failure));
 		}
 	}
+
+	/**
+	 * Starts the next attempt with an empty persistence context.
+	 */
+	private void reset() {
+		LazyEntityManager lazy = lazy();
+		if (lazy != null) {
+			lazy.reset();
+		} else {
+			manager.clear();
+		}
+	}
+
+	private void countQueries(QueryCounter queries) {
+		LazyEntityManager lazy = lazy();
+		if (lazy != null) {
+			lazy.countQueries(queries);
+		}
+	}
+
+	private LazyEntityManager lazy() {
+		try {
+			return manager.unwrap(LazyEntityManager.class);
+		} catch (PersistenceException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The changes recorded so far, in a list that doesn't change afterwards, as observers may
+	 * run after the request.
+	 */
+	private List<Change> changes() {
+		LazyEntityManager lazy = lazy();
+		if (lazy == null) {
+			return Collections.emptyList();
+		}
+		return lazy.getChanges();
+	}
+
+	private String tenant() {
+		LazyEntityManager lazy = lazy();
+		return lazy == null ? null : lazy.getTenant();
+	}
+
+	/**
+	 * Commits the work done before an exception that does not roll back. If the commit fails,
+	 * its exception is thrown instead, with the original one as suppressed.
+	 */
+	private void commitDespite(EntityTransaction transaction, RuntimeException cause) {
+		try {
+			commit(transaction);
+		} catch (RuntimeException e) {
+			e.addSuppressed(cause);
+			throw e;
+		}
+	}
+
+	/**
+	 * Unwraps the exceptions VRaptor wraps the controller ones in.
+	 */
+	private Throwable causeOf(Throwable exception) {
+		Throwable cause = exception;
+		while (cause.getCause() != null && (cause instanceof InterceptionException
+				|| cause instanceof ApplicationLogicException || cause instanceof ReflectionProviderException
+				|| cause instanceof InvocationTargetException)) {
+			cause = cause.getCause();
+		}
+		return cause;
+	}
 	
+	/**
+	 * Flushes before firing {@link BeforeCommit}, so the flush is timed on its own and the
+	 * observers see the changes found by dirty-checking. The {@link AfterCommit} observers are
+	 * not timed as part of the commit.
+	 */
 	private void commit(EntityTransaction transaction) {
-		if (transaction.isActive())
-			beanManager.fireEvent(new BeforeCommit());
+		if (isReadOnly()) {
+			if (transaction.isActive()) {
+				rollback(transaction);
+			}
+			return;
+		}
+
+		if (transaction.isActive()) {
+			if (!validator.hasErrors()) {
+				enter(Phase.FLUSH);
+				manager.flush();
+			}
+			enter(Phase.BEFORE_COMMIT);
+			beanManager.fireEvent(new BeforeCommit(method, System.nanoTime() - begunAt, changes(), tenant()));
+		}
 
 		if (!validator.hasErrors() && transaction.isActive()) {
+			enter(Phase.COMMIT);
 			transaction.commit();
-			beanManager.fireEvent(new AfterCommit());
+			committed = true;
+			if (sample != null) {
+				sample.committed();
+				sample.leave();
+			}
+			events.fire(new AfterCommit(method, System.nanoTime() - begunAt, changes(), tenant()));
+		}
+	}
+
+	private void rollback(EntityTransaction transaction) {
+		enter(Phase.ROLLBACK);
+		transaction.rollback();
+		if (sample != null) {
+			sample.rolledBack();
+			sample.leave();
+		}
+	}
+
+	private void enter(Phase phase) {
+		if (sample != null) {
+			sample.enter(phase);
+		}
+	}
+
+	private boolean isReadOnly() {
+		return attributes.of(method).isReadOnly();
+	}
+
+	/**
+	 * Disables automatic flushes and, with Hibernate, loads the entities as read-only, so no
+	 * dirty-checking snapshot is kept for them.
+	 */
+	private void markReadOnly() {
+		manager.setFlushMode(FlushModeType.COMMIT);
+		manager.setProperty("org.hibernate.flushMode", "MANUAL");
+		LazyEntityManager lazy = lazy();
+		if (lazy != null) {
+			lazy.setReadOnly(true);
+		} else {
+			HibernateSupport.setDefaultReadOnly(manager, true);
 		}
 	}
 
@@ -0,0 +1,734 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.metamodel.Metamodel;
+
+import br.com.caelum.vraptor.jpa.event.Change;
+import br.com.caelum.vraptor.jpa.event.Change.Operation;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.ChangeRecorder;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.StatementRecorder;
+import br.com.caelum.vraptor.jpa.metrics.QueryCounter;
+
+/**
+ * An {@link EntityManager} that only asks the factory for the real one on the first call
+ * that needs it. Requests that never touch the database don't pay for a session nor for a
+ * connection. Metadata methods, like {@link #getMetamodel()} and {@link #getCriteriaBuilder()},
+ * are answered by the factory itself.
+ *
+ * Flush mode and properties set before the real one exists are kept and applied when it is
+ * created. A {@link Router} may still choose another factory, and set more properties, right
+ * before that, when what the request needs is known.
+ *
+ * When the transaction is deferred, {@link #getTransaction()} returns a transaction that is
+ * only marked as pending by {@link EntityTransaction#begin()}. The real transaction is begun
+ * on the first operation that hits the database, and it stays inactive otherwise.
+ *
+ * The entities written are recorded as {@link Change}s for the transaction events. With
+ * Hibernate, they are the inserts, updates and deletes it flushes, including the updates found
+ * by dirty-checking. With other providers, they are the entities given to persist, merge and
+ * remove. Bulk updates and deletes made with criteria are recorded for their whole type. The
+ * ones made with JPQL or SQL strings are not recorded at all.
+ */
+public class LazyEntityManager implements EntityManager {
+
+	static final String QUERY_TIMEOUT = "javax.persistence.query.timeout";
+	static final String LOCK_TIMEOUT = "javax.persistence.lock.timeout";
+
+	private EntityManagerFactory factory;
+	private Router router;
+	private final boolean deferTransaction;
+	private final DeferredTransaction transaction = new DeferredTransaction();
+	private final Map<String, Object> properties = new LinkedHashMap<>();
+	private final Map<String, Object> hints = new LinkedHashMap<>();
+	private final Set<Class<?>> writtenTypes = new HashSet<>();
+	private ChangeLog changes;
+	private final ChangeRecorder recorder = new ChangeRecorder() {
+		@Override
+		public void changed(Class<?> type, Object id, Operation operation) {
+			changes.record(type, id, operation);
+		}
+	};
+	private boolean providerRecordsChanges;
+	private final StatementRecorder statements = new StatementRecorder() {
+		@Override
+		public void executed(long nanos) {
+			if (queries != null) {
+				queries.record(nanos);
+			}
+		}
+	};
+	private boolean providerRecordsStatements;
+	private final List<Listener> listeners = new ArrayList<>();
+	private FlushModeType flushMode;
+	private QueryCounter queries;
+	private boolean readOnly;
+	private String tenant;
+	private EntityManager delegate;
+	private boolean closed;
+
+	public LazyEntityManager(EntityManagerFactory factory) {
+		this(factory, false);
+	}
+
+	public LazyEntityManager(EntityManagerFactory factory, boolean deferTransaction) {
+		this.factory = factory;
+		this.deferTransaction = deferTransaction;
+		this.changes = new ChangeLog(factory);
+	}
+
+	/**
+	 * @return true if the real {@link EntityManager} was already created.
+	 */
+	public boolean isInitialized() {
+		return delegate != null;
+	}
+
+	/**
+	 * Sets the router that chooses the factory of the real {@link EntityManager}. It is asked
+	 * once, before the real one is created or the factory is given away.
+	 */
+	public void setRouter(Router router) {
+		this.router = router;
+	}
+
+	/**
+	 * Adds a listener to be notified when the real {@link EntityManager} is created and closed.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @return the types of the entities given to persist, merge or remove.
+	 */
+	public Set<Class<?>> getWrittenTypes() {
+		return Collections.unmodifiableSet(writtenTypes);
+	}
+
+	/**
+	 * @return the tenant whose database this manager uses, or null if there is none.
+	 */
+	public String getTenant() {
+		return tenant;
+	}
+
+	public void setTenant(String tenant) {
+		this.tenant = tenant;
+	}
+
+	/**
+	 * Loads the entities as read-only, without dirty-checking snapshots, when the provider is
+	 * Hibernate. Kept until the real {@link EntityManager} is created, and applied again if it is
+	 * {@link #reset()}.
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+		if (isInitialized()) {
+			HibernateSupport.setDefaultReadOnly(delegate, readOnly);
+		}
+	}
+
+	/**
+	 * Counts the queries and finds from now on in the counter, or stops counting if null. With
+	 * Hibernate, every statement the session executes is counted instead, including lazy loads
+	 * and flushes, and the queries are given as they are.
+	 */
+	public void countQueries(QueryCounter queries) {
+		this.queries = queries;
+	}
+
+	private Query counted(Query query) {
+		hinted(query);
+		return queries == null || providerRecordsStatements ? query : queries.watch(query, Query.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> TypedQuery<T> counted(TypedQuery<T> query) {
+		hinted(query);
+		return queries == null || providerRecordsStatements ? query : queries.watch(query, TypedQuery.class);
+	}
+
+	private StoredProcedureQuery counted(StoredProcedureQuery query) {
+		hinted(query);
+		return queries == null || providerRecordsStatements ? query : queries.watch(query, StoredProcedureQuery.class);
+	}
+
+	/**
+	 * Not every provider takes the timeouts set as properties of the manager into account, so
+	 * they are also given as hints to every query.
+	 */
+	private void hinted(Query query) {
+		for (Entry<String, Object> hint : hints.entrySet()) {
+			query.setHint(hint.getKey(), hint.getValue());
+		}
+	}
+
+	/**
+	 * @return the given properties plus the lock timeout, if any, or null when both are absent.
+	 */
+	private Map<String, Object> locking(Map<String, Object> properties) {
+		if (!hints.containsKey(LOCK_TIMEOUT)) {
+			return properties;
+		}
+		Map<String, Object> locking = new HashMap<>();
+		locking.put(LOCK_TIMEOUT, hints.get(LOCK_TIMEOUT));
+		if (properties != null) {
+			locking.putAll(properties);
+		}
+		return locking;
+	}
+
+	private void counted(long start) {
+		if (queries != null && !providerRecordsStatements) {
+			queries.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return the entities written so far, once each, in order. The list doesn't change
+	 *         afterwards, so it can be kept after the request.
+	 */
+	public List<Change> getChanges() {
+		return changes.view();
+	}
+
+	private void record(Object entity, Operation operation) {
+		writtenTypes.add(entity.getClass());
+		if (!providerRecordsChanges) {
+			changes.record(entity, operation);
+		}
+	}
+
+	protected EntityManager delegate() {
+		if (closed) {
+			throw new IllegalStateException("EntityManager is closed");
+		}
+		if (delegate == null) {
+			delegate = factory().createEntityManager();
+			if (flushMode != null) {
+				delegate.setFlushMode(flushMode);
+			}
+			for (Entry<String, Object> property : properties.entrySet()) {
+				delegate.setProperty(property.getKey(), property.getValue());
+			}
+			if (readOnly) {
+				HibernateSupport.setDefaultReadOnly(delegate, true);
+			}
+			providerRecordsChanges = HibernateSupport.recordChanges(delegate, recorder);
+			providerRecordsStatements = HibernateSupport.recordStatements(delegate, statements);
+			for (Listener listener : listeners) {
+				listener.created(delegate);
+			}
+		}
+		return delegate;
+	}
+
+	/**
+	 * The delegate for operations that need the database, beginning the pending transaction
+	 * if there is one.
+	 */
+	protected EntityManager database() {
+		EntityManager manager = delegate();
+		transaction.beginIfPending(manager);
+		return manager;
+	}
+
+	@Override
+	public void persist(Object entity) {
+		database().persist(entity);
+		record(entity, Operation.PERSIST);
+	}
+
+	@Override
+	public <T> T merge(T entity) {
+		T merged = database().merge(entity);
+		record(merged, Operation.MERGE);
+		return merged;
+	}
+
+	@Override
+	public void remove(Object entity) {
+		database().remove(entity);
+		record(entity, Operation.REMOVE);
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey) {
+		long start = queries == null ? 0 : System.nanoTime();
+		try {
+			return database().find(entityClass, primaryKey);
+		} finally {
+			counted(start);
+		}
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey, Map<String, Object> properties) {
+		long start = queries == null ? 0 : System.nanoTime();
+		try {
+			return database().find(entityClass, primaryKey, properties);
+		} finally {
+			counted(start);
+		}
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode) {
+		long start = queries == null ? 0 : System.nanoTime();
+		try {
+			Map<String, Object> locking = locking(null);
+			if (locking == null) {
+				return database().find(entityClass, primaryKey, lockMode);
+			}
+			return database().find(entityClass, primaryKey, lockMode, locking);
+		} finally {
+			counted(start);
+		}
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode, Map<String, Object> properties) {
+		long start = queries == null ? 0 : System.nanoTime();
+		try {
+			return database().find(entityClass, primaryKey, lockMode, locking(properties));
+		} finally {
+			counted(start);
+		}
+	}
+
+	@Override
+	public <T> T getReference(Class<T> entityClass, Object primaryKey) {
+		return database().getReference(entityClass, primaryKey);
+	}
+
+	@Override
+	public void flush() {
+		database().flush();
+	}
+
+	@Override
+	public void setFlushMode(FlushModeType flushMode) {
+		if (isInitialized()) {
+			delegate().setFlushMode(flushMode);
+		} else {
+			this.flushMode = flushMode;
+		}
+	}
+
+	@Override
+	public FlushModeType getFlushMode() {
+		if (!isInitialized() && flushMode != null) {
+			return flushMode;
+		}
+		return delegate().getFlushMode();
+	}
+
+	@Override
+	public void lock(Object entity, LockModeType lockMode) {
+		Map<String, Object> locking = locking(null);
+		if (locking == null) {
+			database().lock(entity, lockMode);
+		} else {
+			database().lock(entity, lockMode, locking);
+		}
+	}
+
+	@Override
+	public void lock(Object entity, LockModeType lockMode, Map<String, Object> properties) {
+		database().lock(entity, lockMode, locking(properties));
+	}
+
+	@Override
+	public void refresh(Object entity) {
+		database().refresh(entity);
+	}
+
+	@Override
+	public void refresh(Object entity, Map<String, Object> properties) {
+		database().refresh(entity, properties);
+	}
+
+	@Override
+	public void refresh(Object entity, LockModeType lockMode) {
+		Map<String, Object> locking = locking(null);
+		if (locking == null) {
+			database().refresh(entity, lockMode);
+		} else {
+			database().refresh(entity, lockMode, locking);
+		}
+	}
+
+	@Override
+	public void refresh(Object entity, LockModeType lockMode, Map<String, Object> properties) {
+		database().refresh(entity, lockMode, locking(properties));
+	}
+
+	@Override
+	public void clear() {
+		if (isInitialized()) {
+			changes.compact();
+			delegate().clear();
+		}
+	}
+
+	@Override
+	public void detach(Object entity) {
+		delegate().detach(entity);
+	}
+
+	@Override
+	public boolean contains(Object entity) {
+		return delegate().contains(entity);
+	}
+
+	@Override
+	public LockModeType getLockMode(Object entity) {
+		return delegate().getLockMode(entity);
+	}
+
+	@Override
+	public void setProperty(String propertyName, Object value) {
+		if (QUERY_TIMEOUT.equals(propertyName) || LOCK_TIMEOUT.equals(propertyName)) {
+			hints.put(propertyName, value);
+		}
+		if (isInitialized()) {
+			delegate().setProperty(propertyName, value);
+		} else {
+			properties.put(propertyName, value);
+		}
+	}
+
+	@Override
+	public Map<String, Object> getProperties() {
+		return delegate().getProperties();
+	}
+
+	@Override
+	public Query createQuery(String qlString) {
+		return counted(database().createQuery(qlString));
+	}
+
+	@Override
+	public <T> TypedQuery<T> createQuery(CriteriaQuery<T> criteriaQuery) {
+		return counted(database().createQuery(criteriaQuery));
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Query createQuery(CriteriaUpdate updateQuery) {
+		Query query = counted(database().createQuery(updateQuery));
+		changes.record(updateQuery.getRoot().getJavaType(), null, Operation.UPDATE);
+		return query;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Query createQuery(CriteriaDelete deleteQuery) {
+		Query query = counted(database().createQuery(deleteQuery));
+		changes.record(deleteQuery.getRoot().getJavaType(), null, Operation.REMOVE);
+		return query;
+	}
+
+	@Override
+	public <T> TypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
+		return counted(database().createQuery(qlString, resultClass));
+	}
+
+	@Override
+	public Query createNamedQuery(String name) {
+		return counted(database().createNamedQuery(name));
+	}
+
+	@Override
+	public <T> TypedQuery<T> createNamedQuery(String name, Class<T> resultClass) {
+		return counted(database().createNamedQuery(name, resultClass));
+	}
+
+	@Override
+	public Query createNativeQuery(String sqlString) {
+		return counted(database().createNativeQuery(sqlString));
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Query createNativeQuery(String sqlString, Class resultClass) {
+		return counted(database().createNativeQuery(sqlString, resultClass));
+	}
+
+	@Override
+	public Query createNativeQuery(String sqlString, String resultSetMapping) {
+		return counted(database().createNativeQuery(sqlString, resultSetMapping));
+	}
+
+	@Override
+	public StoredProcedureQuery createNamedStoredProcedureQuery(String name) {
+		return counted(database().createNamedStoredProcedureQuery(name));
+	}
+
+	@Override
+	public StoredProcedureQuery createStoredProcedureQuery(String procedureName) {
+		return counted(database().createStoredProcedureQuery(procedureName));
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public StoredProcedureQuery createStoredProcedureQuery(String procedureName, Class... resultClasses) {
+		return counted(database().createStoredProcedureQuery(procedureName, resultClasses));
+	}
+
+	@Override
+	public StoredProcedureQuery createStoredProcedureQuery(String procedureName, String... resultSetMappings) {
+		return counted(database().createStoredProcedureQuery(procedureName, resultSetMappings));
+	}
+
+	@Override
+	public void joinTransaction() {
+		database().joinTransaction();
+	}
+
+	@Override
+	public boolean isJoinedToTransaction() {
+		return delegate().isJoinedToTransaction();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> cls) {
+		if (cls.isInstance(this)) {
+			return cls.cast(this);
+		}
+		return delegate().unwrap(cls);
+	}
+
+	@Override
+	public Object getDelegate() {
+		return delegate().getDelegate();
+	}
+
+	@Override
+	public void close() {
+		closeDelegate();
+		closed = true;
+	}
+
+	/**
+	 * Discards the real {@link EntityManager}, with its persistence context, so the next
+	 * operation starts from scratch in a new one. Used to retry a failed transaction, after it
+	 * was rolled back, so its changes are discarded too.
+	 */
+	public void reset() {
+		closeDelegate();
+		delegate = null;
+		transaction.pending = false;
+		changes.reset();
+	}
+
+	private void closeDelegate() {
+		if (isInitialized() && delegate.isOpen()) {
+			if (providerRecordsChanges) {
+				HibernateSupport.stopRecordingChanges(delegate);
+			}
+			delegate.close();
+			for (Listener listener : listeners) {
+				listener.closed(delegate);
+			}
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		if (isInitialized()) {
+			return delegate.isOpen();
+		}
+		return !closed;
+	}
+
+	@Override
+	public EntityTransaction getTransaction() {
+		if (deferTransaction) {
+			return transaction;
+		}
+		return delegate().getTransaction();
+	}
+
+	@Override
+	public EntityManagerFactory getEntityManagerFactory() {
+		return factory();
+	}
+
+	private EntityManagerFactory factory() {
+		if (router != null) {
+			Router routing = router;
+			router = null;
+			EntityManagerFactory routed = routing.route(this);
+			if (routed != factory) {
+				factory = routed;
+				changes = new ChangeLog(routed);
+			}
+		}
+		return factory;
+	}
+
+	@Override
+	public CriteriaBuilder getCriteriaBuilder() {
+		return factory.getCriteriaBuilder();
+	}
+
+	@Override
+	public Metamodel getMetamodel() {
+		return factory.getMetamodel();
+	}
+
+	@Override
+	public <T> EntityGraph<T> createEntityGraph(Class<T> rootType) {
+		return delegate().createEntityGraph(rootType);
+	}
+
+	@Override
+	public EntityGraph<?> createEntityGraph(String graphName) {
+		return delegate().createEntityGraph(graphName);
+	}
+
+	@Override
+	public EntityGraph<?> getEntityGraph(String graphName) {
+		return delegate().getEntityGraph(graphName);
+	}
+
+	@Override
+	public <T> List<EntityGraph<? super T>> getEntityGraphs(Class<T> entityClass) {
+		return delegate().getEntityGraphs(entityClass);
+	}
+
+	private class DeferredTransaction implements EntityTransaction {
+
+		private boolean pending;
+		private boolean rollbackOnly;
+
+		void beginIfPending(EntityManager manager) {
+			if (pending) {
+				pending = false;
+				EntityTransaction real = manager.getTransaction();
+				real.begin();
+				if (rollbackOnly) {
+					real.setRollbackOnly();
+				}
+			}
+		}
+
+		@Override
+		public void begin() {
+			if (isActive() || pending) {
+				throw new IllegalStateException("Transaction already active");
+			}
+			pending = true;
+			rollbackOnly = false;
+		}
+
+		@Override
+		public void commit() {
+			if (pending) {
+				pending = false;
+				return;
+			}
+			real().commit();
+		}
+
+		@Override
+		public void rollback() {
+			if (pending) {
+				pending = false;
+				return;
+			}
+			real().rollback();
+		}
+
+		@Override
+		public void setRollbackOnly() {
+			if (pending) {
+				rollbackOnly = true;
+				return;
+			}
+			real().setRollbackOnly();
+		}
+
+		@Override
+		public boolean getRollbackOnly() {
+			if (pending) {
+				return rollbackOnly;
+			}
+			return real().getRollbackOnly();
+		}
+
+		@Override
+		public boolean isActive() {
+			return !pending && isInitialized() && delegate.getTransaction().isActive();
+		}
+
+		private EntityTransaction real() {
+			if (!isInitialized()) {
+				throw new IllegalStateException("Transaction not active");
+			}
+			return delegate.getTransaction();
+		}
+	}
+
+	/**
+	 * Chooses the factory of the real {@link EntityManager}, right before it is created.
+	 */
+	public interface Router {
+
+		/**
+		 * @return the factory to create the real {@link EntityManager} with. Properties set on
+		 *         the manager are still applied to it.
+		 */
+		EntityManagerFactory route(LazyEntityManager manager);
+	}
+
+	/**
+	 * Notified about the lifecycle of the real {@link EntityManager}.
+	 */
+	public interface Listener {
+
+		void created(EntityManager manager);
+
+		void closed(EntityManager manager);
+	}
+}
@@ -0,0 +1,72 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * The properties given to {@link javax.persistence.Persistence#createEntityManagerFactory(String, Map)},
+ * overriding the ones of <code>persistence.xml</code>. They come from the environment:
+ * <ul>
+ * <li><code>br.com.caelum.vraptor.jpa.profile = batch</code> turns on JDBC batching and
+ * ordered inserts and updates;</li>
+ * <li><code>br.com.caelum.vraptor.jpa.batchsize</code> and <code>br.com.caelum.vraptor.jpa.fetchsize</code>
+ * set the JDBC batch and fetch sizes;</li>
+ * <li>any <code>br.com.caelum.vraptor.jpa.property.&lt;name&gt;</code> is passed as
+ * <code>&lt;name&gt;</code>, winning over the above.</li>
+ * </ul>
+ */
+final class PersistenceProperties {
+
+	static final String PREFIX = "br.com.caelum.vraptor.jpa.property.";
+	static final String DEFAULT_BATCH_SIZE = "50";
+	static final String DEFAULT_FETCH_SIZE = "100";
+
+	private PersistenceProperties() {
+	}
+
+	static Map<String, Object> of(Environment environment) {
+		Map<String, Object> properties = new HashMap<>();
+
+		if ("batch".equals(environment.get("br.com.caelum.vraptor.jpa.profile", ""))) {
+			properties.put("hibernate.jdbc.batch_size", DEFAULT_BATCH_SIZE);
+			properties.put("hibernate.jdbc.batch_versioned_data", "true");
+			properties.put("hibernate.order_inserts", "true");
+			properties.put("hibernate.order_updates", "true");
+			properties.put("hibernate.jdbc.fetch_size", DEFAULT_FETCH_SIZE);
+		}
+
+		String batchSize = environment.get("br.com.caelum.vraptor.jpa.batchsize", null);
+		if (batchSize != null) {
+			properties.put("hibernate.jdbc.batch_size", batchSize);
+		}
+		String fetchSize = environment.get("br.com.caelum.vraptor.jpa.fetchsize", null);
+		if (fetchSize != null) {
+			properties.put("hibernate.jdbc.fetch_size", fetchSize);
+		}
+
+		for (String key : environment.getKeys()) {
+			if (key.startsWith(PREFIX) && key.length() > PREFIX.length()) {
+				properties.put(key.substring(PREFIX.length()), environment.get(key));
+			}
+		}
+		return properties;
+	}
+}
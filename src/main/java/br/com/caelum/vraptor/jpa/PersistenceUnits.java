@@ -0,0 +1,197 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.events.VRaptorInitialized;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The {@link EntityManagerFactory}s of the main persistence unit,
+ * <code>br.com.caelum.vraptor.jpa.persistenceunit</code>, and of the ones listed in
+ * <code>br.com.caelum.vraptor.jpa.units</code>.
+ *
+ * The factories are built in parallel, by at most <code>br.com.caelum.vraptor.jpa.units.threads</code>
+ * threads (the number of processors by default), when VRaptor starts or when one of them is first
+ * needed. A unit that fails to build is logged and its error is thrown to whoever uses it, without
+ * affecting the other units.
+ */
+@ApplicationScoped
+public class PersistenceUnits {
+
+	private static final Logger logger = LoggerFactory.getLogger(PersistenceUnits.class);
+
+	private final Environment environment;
+	private Map<String, Future<EntityManagerFactory>> factories;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected PersistenceUnits() {
+		this(null);
+	}
+
+	@Inject
+	public PersistenceUnits(Environment environment) {
+		this.environment = environment;
+	}
+
+	/**
+	 * Builds the units at startup when there is more than one, reporting the ones that failed.
+	 */
+	public void boot(@Observes VRaptorInitialized event) {
+		if (names().size() < 2) {
+			return;
+		}
+		start();
+		for (Entry<String, Future<EntityManagerFactory>> factory : factories.entrySet()) {
+			try {
+				factory.getValue().get();
+			} catch (ExecutionException e) {
+				logger.error("Persistence unit {} failed to start", factory.getKey(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts building all the units, if they aren't built yet.
+	 */
+	public synchronized void start() {
+		if (factories != null) {
+			return;
+		}
+		List<String> names = names();
+		ExecutorService executor = executorFor(names.size());
+		Map<String, Future<EntityManagerFactory>> submitted = new LinkedHashMap<>();
+		try {
+			for (final String name : names) {
+				submitted.put(name, executor.submit(new Callable<EntityManagerFactory>() {
+					@Override
+					public EntityManagerFactory call() {
+						long start = System.currentTimeMillis();
+						EntityManagerFactory factory = createEntityManagerFactory(name);
+						logger.info("Persistence unit {} started in {} ms", name, System.currentTimeMillis() - start);
+						return factory;
+					}
+				}));
+			}
+		} finally {
+			executor.shutdown();
+		}
+		factories = submitted;
+	}
+
+	private ExecutorService executorFor(int units) {
+		int threads = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.units.threads",
+				String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+		threads = Math.min(threads, units);
+		if (threads < 2) {
+			return MoreExecutors.sameThreadExecutor();
+		}
+		return Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("vraptor-jpa-unit-%d").setDaemon(true).build());
+	}
+
+	protected EntityManagerFactory createEntityManagerFactory(String persistenceUnit) {
+		return Persistence.createEntityManagerFactory(persistenceUnit, PersistenceProperties.of(environment));
+	}
+
+	/**
+	 * The name of the main persistence unit.
+	 */
+	public String getDefault() {
+		return environment.get("br.com.caelum.vraptor.jpa.persistenceunit", "default");
+	}
+
+	/**
+	 * The factory of the given unit, waiting for it to be built.
+	 *
+	 * @throws PersistenceException if the unit failed to build.
+	 */
+	public EntityManagerFactory get(String unit) {
+		start();
+		Future<EntityManagerFactory> factory = factories.get(unit);
+		if (factory == null) {
+			throw new IllegalArgumentException("Unknown persistence unit " + unit
+					+ ", add it to br.com.caelum.vraptor.jpa.units");
+		}
+		try {
+			return factory.get();
+		} catch (ExecutionException e) {
+			throw new PersistenceException("Persistence unit " + unit + " failed to start", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while starting persistence unit " + unit, e);
+		}
+	}
+
+	private List<String> names() {
+		List<String> names = new ArrayList<>();
+		names.add(getDefault());
+		for (String unit : environment.get("br.com.caelum.vraptor.jpa.units", "").split(",")) {
+			if (!unit.trim().isEmpty() && !names.contains(unit.trim())) {
+				names.add(unit.trim());
+			}
+		}
+		return Collections.unmodifiableList(names);
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		if (factories == null) {
+			return;
+		}
+		for (Future<EntityManagerFactory> factory : factories.values()) {
+			try {
+				EntityManagerFactory built = factory.get();
+				if (built.isOpen()) {
+					built.close();
+				}
+			} catch (ExecutionException | InterruptedException e) {
+				logger.debug("Not closing a persistence unit that failed to start", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * The {@link EntityManagerFactory}s of the read replicas, configured as a comma separated list
+ * of persistence units in <code>br.com.caelum.vraptor.jpa.replicas</code>. A replica is
+ * chosen in round-robin, or the one with less open {@link javax.persistence.EntityManager}s
+ * when <code>br.com.caelum.vraptor.jpa.replicas.strategy</code> is <code>leastloaded</code>.
+ *
+ * Methods without {@link javax.transaction.Transactional} are sent to the replicas when
+ * <code>br.com.caelum.vraptor.jpa.replicas.nontransactional</code> is <code>true</code>, but only
+ * if the {@link TransactionDecorator} is enabled: without it they run in a transaction too, and
+ * may write.
+ */
+@ApplicationScoped
+public class ReadReplicas {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReadReplicas.class);
+
+	private final Environment environment;
+	private final BeanManager beanManager;
+	private final AtomicInteger next = new AtomicInteger();
+	private List<Replica> replicas = Collections.emptyList();
+	private boolean leastLoaded;
+	private boolean nonTransactional;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected ReadReplicas() {
+		this(null, null);
+	}
+
+	@Inject
+	public ReadReplicas(Environment environment, BeanManager beanManager) {
+		this.environment = environment;
+		this.beanManager = beanManager;
+	}
+
+	@PostConstruct
+	public void init() {
+		String units = environment.get("br.com.caelum.vraptor.jpa.replicas", "");
+		leastLoaded = "leastloaded".equals(environment.get("br.com.caelum.vraptor.jpa.replicas.strategy", "roundrobin"));
+
+		List<Replica> created = new ArrayList<>();
+		for (String unit : units.split(",")) {
+			if (!unit.trim().isEmpty()) {
+				created.add(new Replica(createEntityManagerFactory(unit.trim())));
+			}
+		}
+		replicas = created;
+
+		nonTransactional = Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.replicas.nontransactional", "false"));
+		if (nonTransactional && !TransactionDecorator.isEnabled(beanManager)) {
+			logger.warn("br.com.caelum.vraptor.jpa.replicas.nontransactional is ignored, as the TransactionDecorator is not enabled");
+			nonTransactional = false;
+		}
+	}
+
+	protected EntityManagerFactory createEntityManagerFactory(String persistenceUnit) {
+		return Persistence.createEntityManagerFactory(persistenceUnit, PersistenceProperties.of(environment));
+	}
+
+	public boolean isEmpty() {
+		return replicas.isEmpty();
+	}
+
+	/**
+	 * @return true if the methods without {@link javax.transaction.Transactional} should use a
+	 *         replica too.
+	 */
+	public boolean isNonTransactional() {
+		return nonTransactional;
+	}
+
+	/**
+	 * Chooses a replica and counts it as in use until {@link #release(EntityManagerFactory)}.
+	 */
+	public EntityManagerFactory acquire() {
+		Replica replica = leastLoaded ? leastLoaded() : roundRobin();
+		replica.inUse.incrementAndGet();
+		return replica.factory;
+	}
+
+	/**
+	 * Stops counting the factory as in use. Does nothing if it is not a replica.
+	 */
+	public void release(EntityManagerFactory factory) {
+		for (Replica replica : replicas) {
+			if (replica.factory == factory) {
+				replica.inUse.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private Replica roundRobin() {
+		int index = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+		return replicas.get(index);
+	}
+
+	private Replica leastLoaded() {
+		Replica chosen = replicas.get(0);
+		for (Replica replica : replicas) {
+			if (replica.inUse.get() < chosen.inUse.get()) {
+				chosen = replica;
+			}
+		}
+		return chosen;
+	}
+
+	@PreDestroy
+	public void close() {
+		for (Replica replica : replicas) {
+			if (replica.factory.isOpen()) {
+				replica.factory.close();
+			}
+		}
+	}
+
+	private static class Replica {
+		private final EntityManagerFactory factory;
+		private final AtomicInteger inUse = new AtomicInteger();
+
+		Replica(EntityManagerFactory factory) {
+			this.factory = factory;
+		}
+	}
+}
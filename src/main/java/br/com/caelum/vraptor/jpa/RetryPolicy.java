@@ -0,0 +1,137 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * Decides which failures of an {@link Idempotent} method are retried, and how long to wait
+ * before each retry. Besides optimistic and pessimistic lock failures, SQL exceptions with a
+ * state listed in <code>br.com.caelum.vraptor.jpa.retry.sqlstates</code> (by default
+ * <code>40001</code> and <code>40P01</code>) or a vendor code listed in
+ * <code>br.com.caelum.vraptor.jpa.retry.errorcodes</code> (by default MySQL's deadlock,
+ * <code>1213</code>) are retried.
+ */
+@ApplicationScoped
+public class RetryPolicy {
+
+	private static final int MAX_CAUSES = 20;
+
+	private final Environment environment;
+	private final Set<String> sqlStates = new HashSet<>();
+	private final Set<Integer> errorCodes = new HashSet<>();
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected RetryPolicy() {
+		this(null);
+	}
+
+	@Inject
+	public RetryPolicy(Environment environment) {
+		this.environment = environment;
+	}
+
+	@PostConstruct
+	public void init() {
+		for (String state : environment.get("br.com.caelum.vraptor.jpa.retry.sqlstates", "40001,40P01").split(",")) {
+			if (!state.trim().isEmpty()) {
+				sqlStates.add(state.trim());
+			}
+		}
+		for (String code : environment.get("br.com.caelum.vraptor.jpa.retry.errorcodes", "1213").split(",")) {
+			if (!code.trim().isEmpty()) {
+				errorCodes.add(Integer.valueOf(code.trim()));
+			}
+		}
+	}
+
+	/**
+	 * @return true if the exception, or one of its causes, is worth another attempt.
+	 */
+	public boolean isRetryable(Throwable exception, Idempotent idempotent) {
+		Throwable cause = exception;
+		for (int i = 0; cause != null && i < MAX_CAUSES; i++, cause = cause.getCause()) {
+			if (isRetryableCause(cause, idempotent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isRetryableCause(Throwable cause, Idempotent idempotent) {
+		for (Class<? extends Throwable> type : idempotent.retryOn()) {
+			if (type.isInstance(cause)) {
+				return true;
+			}
+		}
+		if (cause instanceof OptimisticLockException || cause instanceof PessimisticLockException
+				|| cause instanceof SQLTransactionRollbackException) {
+			return true;
+		}
+		if (cause instanceof SQLException) {
+			SQLException sql = (SQLException) cause;
+			return sqlStates.contains(sql.getSQLState()) || errorCodes.contains(sql.getErrorCode());
+		}
+		return false;
+	}
+
+	/**
+	 * The backoff before the given retry: half of it is fixed and half is random, so competing
+	 * requests don't collide again.
+	 *
+	 * @param attempt the attempt that just failed, starting at 1.
+	 */
+	public long backoffOf(Idempotent idempotent, int attempt) {
+		long exponential = idempotent.backoff() << Math.min(attempt - 1, 30);
+		long ceiling = Math.max(0, Math.min(idempotent.maxBackoff(), exponential));
+		long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+
+	/**
+	 * Waits before the next attempt.
+	 *
+	 * @return false if the thread was interrupted, so it should not retry.
+	 */
+	public boolean backoff(Idempotent idempotent, int attempt) {
+		long millis = backoffOf(idempotent, attempt);
+		if (millis == 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
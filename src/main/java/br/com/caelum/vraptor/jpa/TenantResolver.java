@@ -0,0 +1,33 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+/**
+ * Tells the tenant of the current request, used by {@link Tenants} to choose its database.
+ * The {@link DefaultTenantResolver} reads it from a header or from the subdomain; to resolve it
+ * in another way, e.g. from the logged user, specialize it or implement this interface as an
+ * alternative.
+ */
+public interface TenantResolver {
+
+	/**
+	 * @return the tenant of the current request, or null if there is none, in which case the
+	 * default persistence unit is used.
+	 */
+	String resolve();
+
+}
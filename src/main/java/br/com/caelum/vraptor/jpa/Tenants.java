@@ -0,0 +1,336 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Routes each request to the database of its tenant, told by the {@link TenantResolver}, when
+ * <code>br.com.caelum.vraptor.jpa.tenants</code> is:
+ * <ul>
+ * <li><code>factory</code>: each tenant has its own {@link EntityManagerFactory} of the main
+ * persistence unit, with <code>{tenant}</code> replaced by the tenant in the
+ * {@link PersistenceProperties}. The factories are built on the first request of the tenant and
+ * kept in a cache of at most <code>br.com.caelum.vraptor.jpa.tenants.max</code> factories (100
+ * by default), closing the least recently used one when it is full, and the ones idle for
+ * <code>br.com.caelum.vraptor.jpa.tenants.idle</code> seconds (600 by default). A factory is
+ * never closed while an {@link javax.persistence.EntityManager} uses it.</li>
+ * <li><code>property</code>: all tenants share the main factory, and the tenant is set as the
+ * <code>br.com.caelum.vraptor.jpa.tenants.property</code> of the
+ * {@link javax.persistence.EntityManager}, <code>eclipselink.tenant-id</code> by default.</li>
+ * </ul>
+ *
+ * When <code>br.com.caelum.vraptor.jpa.tenants.allowed</code> lists the tenants, separated by
+ * commas, requests of any other tenant are refused, so a forged tenant can't make a factory be
+ * built nor reach a database it shouldn't.
+ */
+@ApplicationScoped
+public class Tenants {
+
+	private static final Logger logger = LoggerFactory.getLogger(Tenants.class);
+	private static final Pattern VALID = Pattern.compile("[A-Za-z0-9_-]+");
+	static final String PLACEHOLDER = "{tenant}";
+
+	private final Environment environment;
+	private final PersistenceUnits units;
+	private final TenantResolver resolver;
+	private final LinkedHashMap<String, Tenant> tenants = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<EntityManagerFactory, Tenant> byFactory = new IdentityHashMap<>();
+	private final Set<String> allowed = new HashSet<>();
+	private String mode = "none";
+	private int max;
+	private long idleNanos;
+	private ScheduledExecutorService sweeper;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected Tenants() {
+		this(null, null, null);
+	}
+
+	@Inject
+	public Tenants(Environment environment, PersistenceUnits units, TenantResolver resolver) {
+		this.environment = environment;
+		this.units = units;
+		this.resolver = resolver;
+	}
+
+	@PostConstruct
+	public void init() {
+		mode = environment.get("br.com.caelum.vraptor.jpa.tenants", "none");
+		max = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.tenants.max", "100").trim());
+		long idle = Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.tenants.idle", "600").trim());
+		idleNanos = SECONDS.toNanos(idle);
+		String names = environment.get("br.com.caelum.vraptor.jpa.tenants.allowed", "");
+		for (String name : (names == null ? "" : names).split(",")) {
+			if (!name.trim().isEmpty()) {
+				allowed.add(name.trim());
+			}
+		}
+
+		if (isFactoryPerTenant() && idle > 0) {
+			sweeper = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("vraptor-jpa-tenants").setDaemon(true).build());
+			long period = Math.max(1, Math.min(60, idle));
+			sweeper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					closeIdle();
+				}
+			}, period, period, SECONDS);
+		}
+	}
+
+	public boolean isFactoryPerTenant() {
+		return "factory".equals(mode);
+	}
+
+	/**
+	 * @return the {@link javax.persistence.EntityManager} property to set the tenant in, or null
+	 * when the tenants don't share the factory.
+	 */
+	public String getProperty() {
+		if (!"property".equals(mode)) {
+			return null;
+		}
+		return environment.get("br.com.caelum.vraptor.jpa.tenants.property", "eclipselink.tenant-id");
+	}
+
+	/**
+	 * @return the tenant of the current request, or null if there is none or tenants are disabled.
+	 * @throws IllegalArgumentException if the tenant has anything but letters, digits, '_' and '-',
+	 *         or is not one of the allowed tenants.
+	 */
+	public String current() {
+		if (!isFactoryPerTenant() && getProperty() == null) {
+			return null;
+		}
+		String tenant = resolver.resolve();
+		if (tenant != null && !VALID.matcher(tenant).matches()) {
+			throw new IllegalArgumentException("Invalid tenant " + tenant);
+		}
+		if (tenant != null && !allowed.isEmpty() && !allowed.contains(tenant)) {
+			throw new IllegalArgumentException("Unknown tenant " + tenant);
+		}
+		return tenant;
+	}
+
+	/**
+	 * The factory of the tenant, building it if needed, counted as in use until
+	 * {@link #release(EntityManagerFactory)}.
+	 */
+	public EntityManagerFactory acquire(String name) {
+		Tenant tenant;
+		List<Tenant> evicted;
+		synchronized (this) {
+			tenant = tenants.get(name);
+			if (tenant == null) {
+				tenant = new Tenant(name);
+				tenants.put(name, tenant);
+			}
+			tenant.inUse++;
+			evicted = evict(false);
+		}
+		close(evicted);
+
+		try {
+			return tenant.factory();
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				if (--tenant.inUse == 0) {
+					tenants.remove(name);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops counting the factory as in use. Does nothing if it is not the factory of a tenant.
+	 */
+	public synchronized void release(EntityManagerFactory factory) {
+		Tenant tenant = byFactory.get(factory);
+		if (tenant != null) {
+			tenant.inUse--;
+			tenant.lastUsed = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The factory of the tenant, if it has one open, kept from being closed until
+	 * {@link #giveBack(EntityManagerFactory)}. Unlike {@link #acquire(String)}, it never builds a
+	 * factory nor counts as a use of the tenant, so background work, like draining the outbox,
+	 * doesn't keep an idle factory open nor push the tenants of requests out of the cache.
+	 *
+	 * @return the factory, or null if the tenant has none open.
+	 */
+	public synchronized EntityManagerFactory borrow(String name) {
+		for (Tenant tenant : byFactory.values()) {
+			if (tenant.name.equals(name)) {
+				tenant.inUse++;
+				return tenant.factory;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gives back a factory {@link #borrow(String) borrowed}, without counting it as used.
+	 */
+	public synchronized void giveBack(EntityManagerFactory factory) {
+		Tenant tenant = byFactory.get(factory);
+		if (tenant != null) {
+			tenant.inUse--;
+		}
+	}
+
+	/**
+	 * Closes the factories not used for the idle time.
+	 */
+	public void closeIdle() {
+		List<Tenant> idle;
+		synchronized (this) {
+			idle = evict(true);
+		}
+		close(idle);
+	}
+
+	/**
+	 * @return the tenants with a factory, least recently used first.
+	 */
+	public synchronized List<String> names() {
+		return new ArrayList<>(tenants.keySet());
+	}
+
+	/**
+	 * @return the number of tenants with a factory.
+	 */
+	public synchronized int size() {
+		return tenants.size();
+	}
+
+	/**
+	 * Removes the least recently used tenants not in use, while there are more than the max or,
+	 * if idle, all the ones not used for the idle time.
+	 */
+	private List<Tenant> evict(boolean idle) {
+		List<Tenant> evicted = new ArrayList<>();
+		long now = System.nanoTime();
+		Iterator<Tenant> eldest = tenants.values().iterator();
+		while (eldest.hasNext() && (idle || tenants.size() > max)) {
+			Tenant tenant = eldest.next();
+			if (tenant.inUse == 0 && (!idle || now - tenant.lastUsed >= idleNanos)) {
+				eldest.remove();
+				byFactory.remove(tenant.factory);
+				evicted.add(tenant);
+			}
+		}
+		return evicted;
+	}
+
+	private void close(List<Tenant> evicted) {
+		for (Tenant tenant : evicted) {
+			try {
+				if (tenant.factory != null && tenant.factory.isOpen()) {
+					tenant.factory.close();
+					logger.debug("Closed the factory of tenant {}", tenant.name);
+				}
+			} catch (RuntimeException e) {
+				logger.warn("Could not close the factory of tenant {}", tenant.name, e);
+			}
+		}
+	}
+
+	protected EntityManagerFactory createEntityManagerFactory(String tenant) {
+		return Persistence.createEntityManagerFactory(units.getDefault(), propertiesOf(tenant));
+	}
+
+	Map<String, Object> propertiesOf(String tenant) {
+		Map<String, Object> properties = PersistenceProperties.of(environment);
+		for (Entry<String, Object> property : properties.entrySet()) {
+			if (property.getValue() instanceof String) {
+				property.setValue(((String) property.getValue()).replace(PLACEHOLDER, tenant));
+			}
+		}
+		return properties;
+	}
+
+	@PreDestroy
+	public void close() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+		}
+		List<Tenant> all;
+		synchronized (this) {
+			all = new ArrayList<>(tenants.values());
+			tenants.clear();
+			byFactory.clear();
+		}
+		close(all);
+	}
+
+	private class Tenant {
+		private final String name;
+		private volatile EntityManagerFactory factory;
+		private int inUse;
+		private long lastUsed = System.nanoTime();
+
+		Tenant(String name) {
+			this.name = name;
+		}
+
+		synchronized EntityManagerFactory factory() {
+			if (factory == null) {
+				long start = System.currentTimeMillis();
+				factory = createEntityManagerFactory(name);
+				synchronized (Tenants.this) {
+					byFactory.put(factory, this);
+				}
+				logger.info("Factory of tenant {} started in {} ms", name, System.currentTimeMillis() - start);
+			}
+			return factory;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets the query and lock timeouts of the request EntityManager for a controller method, or
+ * for all methods of a controller, overriding <code>br.com.caelum.vraptor.jpa.timeout.query</code>
+ * and <code>br.com.caelum.vraptor.jpa.timeout.lock</code>. A query or lock that takes longer
+ * fails, and the transaction is rolled back.
+ */
+@Target({ ElementType.METHOD, ElementType.TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Timeouts {
+
+	/**
+	 * The <code>javax.persistence.query.timeout</code>, in milliseconds, or -1 to keep the default.
+	 */
+	int query() default -1;
+
+	/**
+	 * The <code>javax.persistence.lock.timeout</code>, in milliseconds, or -1 to keep the default.
+	 */
+	int lock() default -1;
+}
@@ -0,0 +1,149 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+
+/**
+ * The resolved transaction settings of a controller method: its {@link Transactional}
+ * annotation, from the method or else from the controller, whether it is {@link ReadOnly},
+ * whether it is {@link Idempotent} and its {@link Timeouts}.
+ */
+public class TransactionAttribute {
+
+	private static final Class<?>[] NO_CLASSES = new Class<?>[0];
+
+	private final boolean annotated;
+	private final TxType type;
+	private final boolean readOnly;
+	private final Class<?>[] rollbackOn;
+	private final Class<?>[] dontRollbackOn;
+	private final Idempotent idempotent;
+	private final Timeouts timeouts;
+
+	public TransactionAttribute(Transactional transactional, boolean readOnly) {
+		this(transactional, readOnly, null);
+	}
+
+	public TransactionAttribute(Transactional transactional, boolean readOnly, Idempotent idempotent) {
+		this(transactional, readOnly, idempotent, null);
+	}
+
+	public TransactionAttribute(Transactional transactional, boolean readOnly, Idempotent idempotent, Timeouts timeouts) {
+		this.idempotent = idempotent;
+		this.timeouts = timeouts;
+		this.annotated = transactional != null;
+		this.type = annotated ? transactional.value() : TxType.REQUIRED;
+		this.readOnly = readOnly;
+		this.rollbackOn = annotated ? transactional.rollbackOn() : NO_CLASSES;
+		this.dontRollbackOn = annotated ? transactional.dontRollbackOn() : NO_CLASSES;
+	}
+
+	/**
+	 * @return true if the method or its controller is annotated with {@link Transactional}.
+	 */
+	public boolean isAnnotated() {
+		return annotated;
+	}
+
+	/**
+	 * @return true if the method is annotated with {@link Transactional} or {@link ReadOnly},
+	 *         and its {@link TxType} runs inside a transaction.
+	 */
+	public boolean isTransactional() {
+		return (annotated || readOnly) && !isNonTransactional();
+	}
+
+	/**
+	 * @return true if the {@link TxType} runs without a transaction. A request never has an
+	 *         outer transaction, so <code>SUPPORTS</code> runs without one too.
+	 */
+	public boolean isNonTransactional() {
+		return annotated && (type == TxType.SUPPORTS || type == TxType.NOT_SUPPORTED || type == TxType.NEVER);
+	}
+
+	/**
+	 * @return true if the {@link TxType} requires a transaction that is already active.
+	 */
+	public boolean isMandatory() {
+		return annotated && type == TxType.MANDATORY;
+	}
+
+	/**
+	 * Whether an exception thrown by the method should roll the transaction back. Without
+	 * {@link Transactional} every exception does. With it, the JTA rules apply: unchecked
+	 * exceptions roll back and checked ones do not, unless they match
+	 * {@link Transactional#rollbackOn()}; {@link Transactional#dontRollbackOn()} takes
+	 * precedence over both.
+	 */
+	public boolean rollsBackOn(Throwable cause) {
+		if (!annotated) {
+			return true;
+		}
+		if (matches(dontRollbackOn, cause)) {
+			return false;
+		}
+		return matches(rollbackOn, cause) || cause instanceof RuntimeException || cause instanceof Error;
+	}
+
+	private boolean matches(Class<?>[] types, Throwable cause) {
+		for (Class<?> type : types) {
+			if (type.isInstance(cause)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public TxType getType() {
+		return type;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * @return the retry settings, or null if the method should not be retried.
+	 */
+	public Idempotent getIdempotent() {
+		return idempotent;
+	}
+
+	/**
+	 * @return the query timeout of the method in milliseconds, or -1 if it has none.
+	 */
+	public int getQueryTimeout() {
+		return timeouts == null ? -1 : timeouts.query();
+	}
+
+	/**
+	 * @return the lock timeout of the method in milliseconds, or -1 if it has none.
+	 */
+	public int getLockTimeout() {
+		return timeouts == null ? -1 : timeouts.lock();
+	}
+
+	public Class<?>[] getRollbackOn() {
+		return rollbackOn.clone();
+	}
+
+	public Class<?>[] getDontRollbackOn() {
+		return dontRollbackOn.clone();
+	}
+}
@@ -0,0 +1,72 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Transactional;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * Resolves and caches the {@link TransactionAttribute} of each controller method, so the
+ * annotations are inspected only once. The method annotations override the controller ones.
+ */
+@ApplicationScoped
+public class TransactionAttributes {
+
+	private final ConcurrentMap<ControllerMethod, TransactionAttribute> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Called on every request, so a hit is a single lookup.
+	 */
+	public TransactionAttribute of(ControllerMethod method) {
+		TransactionAttribute attribute = cache.get(method);
+		if (attribute == null) {
+			attribute = resolve(method);
+			TransactionAttribute existing = cache.putIfAbsent(method, attribute);
+			if (existing != null) {
+				attribute = existing;
+			}
+		}
+		return attribute;
+	}
+
+	private TransactionAttribute resolve(ControllerMethod method) {
+		Class<?> controller = method.getController().getType();
+
+		Transactional transactional = method.getMethod().getAnnotation(Transactional.class);
+		if (transactional == null) {
+			transactional = controller.getAnnotation(Transactional.class);
+		}
+		boolean readOnly = method.getMethod().isAnnotationPresent(ReadOnly.class) || controller.isAnnotationPresent(ReadOnly.class);
+
+		Idempotent idempotent = method.getMethod().getAnnotation(Idempotent.class);
+		if (idempotent == null) {
+			idempotent = controller.getAnnotation(Idempotent.class);
+		}
+
+		Timeouts timeouts = method.getMethod().getAnnotation(Timeouts.class);
+		if (timeouts == null) {
+			timeouts = controller.getAnnotation(Timeouts.class);
+		}
+
+		return new TransactionAttribute(transactional, readOnly, idempotent, timeouts);
+	}
+}
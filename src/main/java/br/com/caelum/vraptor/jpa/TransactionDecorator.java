@@ -1,14 +1,22 @@
 package br.com.caelum.vraptor.jpa;
 
+import java.lang.reflect.Type;
+import java.util.Collections;
+
 import javax.decorator.Decorator;
 import javax.decorator.Delegate;
 import javax.enterprise.inject.Any;
+import javax.enterprise.inject.spi.BeanManager;
 import javax.inject.Inject;
-import javax.transaction.Transactional;
 
 import br.com.caelum.vraptor.controller.ControllerMethod;
 import br.com.caelum.vraptor.interceptor.SimpleInterceptorStack;
 
+/**
+ * Opens transactions only for methods, or controllers, annotated with
+ * {@link javax.transaction.Transactional} or {@link ReadOnly}, unless the type of the former
+ * is <code>SUPPORTS</code>, <code>NOT_SUPPORTED</code> or <code>NEVER</code>.
+ */
 @Decorator 
 public class TransactionDecorator implements JPAInterceptor {
 
@@ -18,6 +26,9 @@ public class TransactionDecorator implements JPAInterceptor {
 	@Inject
 	private ControllerMethod method;
 
+	@Inject
+	private TransactionAttributes attributes;
+
 	@Override
 	public void intercept(SimpleInterceptorStack stack) {
 		
@@ -29,6 +40,22 @@ public class TransactionDecorator implements JPAInterceptor {
 	}
 
 	private boolean isTransactional() {
-		return method.containsAnnotation(Transactional.class);
+		return attributes.of(method).isTransactional();
+	}
+
+	/**
+	 * @return true if this decorator is enabled in <code>beans.xml</code>.
+	 */
+	static boolean isEnabled(BeanManager beanManager) {
+		if (beanManager == null) {
+			return false;
+		}
+		for (javax.enterprise.inject.spi.Decorator<?> decorator
+				: beanManager.resolveDecorators(Collections.<Type> singleton(JPAInterceptor.class))) {
+			if (decorator.getBeanClass() == TransactionDecorator.class) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
\ No newline at end of file
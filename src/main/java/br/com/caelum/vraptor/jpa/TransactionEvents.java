@@ -0,0 +1,245 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.event.AfterCommit;
+import br.com.caelum.vraptor.jpa.extra.LoadCache;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Fires the events of a finished transaction, {@link br.com.caelum.vraptor.jpa.event.AfterCommit}
+ * and {@link br.com.caelum.vraptor.jpa.event.AfterRollback}. They are fired on the request thread,
+ * unless <code>br.com.caelum.vraptor.jpa.events.async</code> is <code>true</code>: then they are
+ * fired by at most <code>br.com.caelum.vraptor.jpa.events.threads</code> threads, virtual ones when
+ * the JDK has them, and wait in a queue of <code>br.com.caelum.vraptor.jpa.events.queue</code> events.
+ *
+ * When the queue is full, <code>br.com.caelum.vraptor.jpa.events.rejection</code> decides what
+ * happens to the event: <code>callerruns</code> (default) fires it on the request thread,
+ * <code>discard</code> drops it, <code>discardoldest</code> drops the oldest queued one and
+ * <code>abort</code> drops it and logs an error. Only the events dropped by the last three count
+ * as rejected.
+ *
+ * The {@link LoadCache} is invalidated on the request thread, before an
+ * {@link br.com.caelum.vraptor.jpa.event.AfterCommit} is fired, so the next request never gets a
+ * stale entity, whatever happens to the event.
+ *
+ * Firing never throws: the transaction is already over, so a failing observer or a rejected
+ * event must not turn a commit into an error, nor hide the exception that caused a rollback.
+ * Failures are logged and counted instead.
+ *
+ * Asynchronous observers run outside of the request, so they can't use request scoped beans.
+ */
+@ApplicationScoped
+public class TransactionEvents implements TransactionEventsMBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(TransactionEvents.class);
+
+	private final BeanManager beanManager;
+	private final Environment environment;
+	private final JPAMetrics metrics;
+	private final LoadCache cache;
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected TransactionEvents() {
+		this(null, null, null, null);
+	}
+
+	@Inject
+	public TransactionEvents(BeanManager beanManager, Environment environment, JPAMetrics metrics, LoadCache cache) {
+		this.beanManager = beanManager;
+		this.environment = environment;
+		this.metrics = metrics;
+		this.cache = cache;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.events.async", "false"))) {
+			return;
+		}
+		int threads = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.events.threads",
+				String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+		int queue = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.events.queue", "1000").trim());
+
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), threadFactory(), new Rejection(rejectionHandler()));
+		executor.allowCoreThreadTimeOut(true);
+		if (metrics.isEnabled()) {
+			metrics.register(this, "type=TransactionEvents");
+		}
+	}
+
+	public boolean isAsync() {
+		return executor != null;
+	}
+
+	/**
+	 * Fires the event of a finished transaction, asynchronously if configured. Never throws.
+	 */
+	public void fire(final Object event) {
+		if (event instanceof AfterCommit && cache != null) {
+			cache.invalidate((AfterCommit) event);
+		}
+		if (executor == null) {
+			dispatch(event);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					dispatch(event);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.error("{} was rejected and will not be fired", event.getClass().getSimpleName(), e);
+		}
+	}
+
+	private void dispatch(Object event) {
+		try {
+			beanManager.fireEvent(event);
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			logger.error("Observer of {} failed", event.getClass().getSimpleName(), e);
+		} finally {
+			dispatched.incrementAndGet();
+		}
+	}
+
+	private RejectedExecutionHandler rejectionHandler() {
+		String policy = environment.get("br.com.caelum.vraptor.jpa.events.rejection", "callerruns").trim();
+		switch (policy) {
+			case "callerruns":
+				return new ThreadPoolExecutor.CallerRunsPolicy();
+			case "discard":
+				return new ThreadPoolExecutor.DiscardPolicy();
+			case "discardoldest":
+				return new ThreadPoolExecutor.DiscardOldestPolicy();
+			case "abort":
+				return new ThreadPoolExecutor.AbortPolicy();
+			default:
+				throw new IllegalArgumentException("Unknown br.com.caelum.vraptor.jpa.events.rejection: " + policy);
+		}
+	}
+
+	/**
+	 * Virtual threads when the JDK has them, daemon platform threads otherwise.
+	 */
+	private ThreadFactory threadFactory() {
+		if (Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.events.virtual", "true"))) {
+			try {
+				Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "vraptor-jpa-events-", 0L);
+				return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				logger.debug("Virtual threads are not available, using platform threads", e);
+			}
+		}
+		return new ThreadFactoryBuilder().setNameFormat("vraptor-jpa-events-%d").setDaemon(true).build();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	@Override
+	public int getActiveDispatches() {
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+
+	@Override
+	public long getDispatchedEvents() {
+		return dispatched.get();
+	}
+
+	@Override
+	public long getRejectedEvents() {
+		return rejected.get();
+	}
+
+	@Override
+	public long getFailedEvents() {
+		return failed.get();
+	}
+
+	/**
+	 * Gives the queued events some time to be fired before the application stops.
+	 */
+	@PreDestroy
+	public void destroy() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				logger.warn("{} transaction events were not fired", executor.shutdownNow().size());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Counts the events dropped by the policy before applying it.
+	 */
+	private class Rejection implements RejectedExecutionHandler {
+		private final RejectedExecutionHandler policy;
+
+		Rejection(RejectedExecutionHandler policy) {
+			this.policy = policy;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (!(policy instanceof ThreadPoolExecutor.CallerRunsPolicy)) {
+				rejected.incrementAndGet();
+			}
+			policy.rejectedExecution(task, executor);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+/**
+ * JMX view of the asynchronous dispatch of the transaction events.
+ */
+public interface TransactionEventsMBean {
+
+	/**
+	 * @return the events waiting for a thread.
+	 */
+	int getQueueDepth();
+
+	int getActiveDispatches();
+
+	long getDispatchedEvents();
+
+	/**
+	 * @return the events that found the queue full.
+	 */
+	long getRejectedEvents();
+
+	/**
+	 * @return the events that an observer failed to handle.
+	 */
+	long getFailedEvents();
+}
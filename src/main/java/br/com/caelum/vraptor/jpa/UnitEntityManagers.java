@@ -0,0 +1,68 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+/**
+ * The {@link EntityManager}s of the request for each {@link Unit}, created on the first use
+ * and closed at the end of the request. Their transactions are not handled by the
+ * {@link JPATransactionInterceptor}, that only knows the main unit.
+ */
+@RequestScoped
+public class UnitEntityManagers {
+
+	private final PersistenceUnits units;
+	private final Map<String, LazyEntityManager> managers = new HashMap<>();
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected UnitEntityManagers() {
+		this(null);
+	}
+
+	@Inject
+	public UnitEntityManagers(PersistenceUnits units) {
+		this.units = units;
+	}
+
+	public EntityManager of(String unit) {
+		LazyEntityManager manager = managers.get(unit);
+		if (manager == null) {
+			manager = new LazyEntityManager(units.get(unit));
+			managers.put(unit, manager);
+		}
+		return manager;
+	}
+
+	@PreDestroy
+	public void close() {
+		for (LazyEntityManager manager : managers.values()) {
+			if (manager.isInitialized() && manager.isOpen()) {
+				manager.close();
+			}
+		}
+		managers.clear();
+	}
+}
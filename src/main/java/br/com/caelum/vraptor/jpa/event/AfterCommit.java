@@ -1,3 +1,24 @@
 package br.com.caelum.vraptor.jpa.event;
 
-public class AfterCommit {}
\ No newline at end of file
+import java.util.Collections;
+import java.util.List;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * Fired after the transaction is committed, with the changes that are now durable.
+ */
+public class AfterCommit extends TransactionEvent {
+
+	public AfterCommit() {
+		this(null, 0, Collections.<Change> emptyList());
+	}
+
+	public AfterCommit(ControllerMethod method, long durationNanos, List<Change> changes) {
+		super(method, durationNanos, changes);
+	}
+
+	public AfterCommit(ControllerMethod method, long durationNanos, List<Change> changes, String tenant) {
+		super(method, durationNanos, changes, tenant);
+	}
+}
@@ -1,3 +1,36 @@
 package br.com.caelum.vraptor.jpa.event;
 
-public class AfterRollback {}
\ No newline at end of file
+import java.util.Collections;
+import java.util.List;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * Fired after the transaction is rolled back, with the changes that were discarded.
+ */
+public class AfterRollback extends TransactionEvent {
+
+	private final Throwable cause;
+
+	public AfterRollback() {
+		this(null, 0, Collections.<Change> emptyList(), null);
+	}
+
+	public AfterRollback(ControllerMethod method, long durationNanos, List<Change> changes, Throwable cause) {
+		this(method, durationNanos, changes, null, cause);
+	}
+
+	public AfterRollback(ControllerMethod method, long durationNanos, List<Change> changes, String tenant,
+			Throwable cause) {
+		super(method, durationNanos, changes, tenant);
+		this.cause = cause;
+	}
+
+	/**
+	 * @return the exception that caused the rollback, or null when it was caused by validation
+	 * errors.
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+}
@@ -1,3 +1,25 @@
 package br.com.caelum.vraptor.jpa.event;
 
-public class BeforeCommit {}
\ No newline at end of file
+import java.util.Collections;
+import java.util.List;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * Fired before the transaction is committed, on the request thread, so observers can still
+ * write in the same transaction.
+ */
+public class BeforeCommit extends TransactionEvent {
+
+	public BeforeCommit() {
+		this(null, 0, Collections.<Change> emptyList());
+	}
+
+	public BeforeCommit(ControllerMethod method, long durationNanos, List<Change> changes) {
+		super(method, durationNanos, changes);
+	}
+
+	public BeforeCommit(ControllerMethod method, long durationNanos, List<Change> changes, String tenant) {
+		super(method, durationNanos, changes, tenant);
+	}
+}
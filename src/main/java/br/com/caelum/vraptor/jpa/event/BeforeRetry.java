@@ -0,0 +1,30 @@
+package br.com.caelum.vraptor.jpa.event;
+
+/**
+ * Fired before an {@link br.com.caelum.vraptor.jpa.Idempotent} method is called again, after
+ * its transaction was rolled back and the EntityManager was reset.
+ */
+public class BeforeRetry {
+
+	private final int attempt;
+	private final Throwable cause;
+
+	public BeforeRetry(int attempt, Throwable cause) {
+		this.attempt = attempt;
+		this.cause = cause;
+	}
+
+	/**
+	 * @return the attempt about to run, starting at 2.
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * @return why the previous attempt failed.
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+}
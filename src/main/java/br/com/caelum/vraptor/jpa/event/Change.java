@@ -0,0 +1,48 @@
+package br.com.caelum.vraptor.jpa.event;
+
+/**
+ * An entity written during a transaction. With Hibernate, the inserts, updates and deletes are
+ * recorded as they are flushed, with their ids. With other providers, the entities given to
+ * persist, merge or remove are recorded, and their ids are read when the changes are handed
+ * out, as generated ids may not be assigned yet when the change is recorded.
+ *
+ * The id is null when the change is about many entities of the type: a bulk update or delete
+ * made with {@link javax.persistence.criteria.CriteriaUpdate} or
+ * {@link javax.persistence.criteria.CriteriaDelete}, or the changes that were compacted when
+ * the persistence context was cleared. It is also null when the provider hadn't assigned it yet.
+ *
+ * Changes never change once created, so they can be kept and read by other threads.
+ */
+public final class Change {
+
+	public enum Operation {
+		PERSIST, MERGE, UPDATE, REMOVE
+	}
+
+	private final Class<?> type;
+	private final Object id;
+	private final Operation operation;
+
+	public Change(Class<?> type, Object id, Operation operation) {
+		this.type = type;
+		this.id = id;
+		this.operation = operation;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	public Object getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return operation + " " + type.getSimpleName() + "#" + id;
+	}
+}
@@ -0,0 +1,65 @@
+package br.com.caelum.vraptor.jpa.event;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * What the events of a transaction tell about it: the controller method that ran it, how long
+ * it has taken, the entities it changed and the tenant it ran for.
+ */
+public abstract class TransactionEvent {
+
+	private final ControllerMethod method;
+	private final long durationNanos;
+	private final List<Change> changes;
+	private final String tenant;
+
+	protected TransactionEvent(ControllerMethod method, long durationNanos, List<Change> changes) {
+		this(method, durationNanos, changes, null);
+	}
+
+	protected TransactionEvent(ControllerMethod method, long durationNanos, List<Change> changes, String tenant) {
+		this.method = method;
+		this.durationNanos = durationNanos;
+		this.changes = Collections.unmodifiableList(changes);
+		this.tenant = tenant;
+	}
+
+	public ControllerMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the time since the transaction was begun.
+	 */
+	public long getDuration(TimeUnit unit) {
+		return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the entities written, in order, once each.
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return the tenant whose database ran the transaction, or null if there is none.
+	 */
+	public String getTenant() {
+		return tenant;
+	}
+
+	public Set<Class<?>> getChangedTypes() {
+		Set<Class<?>> types = new LinkedHashSet<>();
+		for (Change change : changes) {
+			types.add(change.getType());
+		}
+		return types;
+	}
+}
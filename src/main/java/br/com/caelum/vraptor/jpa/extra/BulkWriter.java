@@ -0,0 +1,90 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package br.com.caelum.vraptor.jpa.extra;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * Writes many entities in a single transaction, flushing and clearing the persistence context
+ * every <code>br.com.caelum.vraptor.jpa.batchsize</code> (50 by default) entities, so it does
+ * not grow without bound and the inserts go in JDBC batches of that size.
+ *
+ * Clearing detaches every entity of the EntityManager, including the ones loaded before the
+ * bulk write, like <code>@Load</code> parameters. Merge them back if they are used afterwards.
+ */
+public class BulkWriter {
+
+	private final EntityManager manager;
+	private final int chunkSize;
+	private int pending;
+
+	/**
+	 * @deprecated CDI eyes only
+	 */
+	protected BulkWriter() {
+		this(null, 1);
+	}
+
+	@Inject
+	public BulkWriter(EntityManager manager, Environment environment) {
+		this(manager, Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.batchsize", "50").trim()));
+	}
+
+	public BulkWriter(EntityManager manager, int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.manager = manager;
+		this.chunkSize = chunkSize;
+	}
+
+	public void persist(Object entity) {
+		manager.persist(entity);
+		written();
+	}
+
+	public <T> T merge(T entity) {
+		T merged = manager.merge(entity);
+		written();
+		return merged;
+	}
+
+	public void remove(Object entity) {
+		manager.remove(entity);
+		written();
+	}
+
+	/**
+	 * Flushes and clears the pending entities. Call it at the end of the bulk write if the
+	 * persistence context will be used afterwards.
+	 */
+	public void flush() {
+		if (pending > 0) {
+			manager.flush();
+			manager.clear();
+			pending = 0;
+		}
+	}
+
+	private void written() {
+		if (++pending >= chunkSize) {
+			flush();
+		}
+	}
+}
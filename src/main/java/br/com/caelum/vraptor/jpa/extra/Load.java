@@ -29,4 +29,67 @@ import java.lang.annotation.Target;
 @Target(ElementType.PARAMETER)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Load {
+
+	/**
+	 * How the entity is loaded. Defaults to a full {@link Mode#ENTITY} load.
+	 */
+	Mode mode() default Mode.ENTITY;
+
+	/**
+	 * The name of an entity graph, declared with {@link javax.persistence.NamedEntityGraph}, to
+	 * be used when loading the entity.
+	 */
+	String graph() default "";
+
+	/**
+	 * Attribute paths, like <code>{"category", "items.product"}</code>, to be fetched together
+	 * with the entity. Ignored if {@link #graph()} is set.
+	 */
+	String[] fetch() default {};
+
+	/**
+	 * How the graph is applied: as a fetch graph, where attributes outside of it are lazy, or
+	 * as a load graph, where they keep their mapped fetch type.
+	 */
+	GraphType graphType() default GraphType.FETCH;
+
+	/**
+	 * Takes the entity from the {@link LoadCache}, if it is enabled and the entity is
+	 * {@link javax.persistence.Cacheable} and {@link java.io.Serializable}. The parameter is then
+	 * a detached copy, so its changes must be written with
+	 * {@link javax.persistence.EntityManager#merge(Object)}.
+	 */
+	boolean cache() default false;
+
+	enum Mode {
+		/**
+		 * Loads the whole entity, with {@link javax.persistence.EntityManager#find(Class, Object)}.
+		 */
+		ENTITY,
+		/**
+		 * Doesn't hit the database, the parameter is a reference given by
+		 * {@link javax.persistence.EntityManager#getReference(Class, Object)}. Useful when the
+		 * entity is only used as a foreign key. Missing ids are not detected.
+		 */
+		REFERENCE,
+		/**
+		 * Like {@link #REFERENCE}, but checks that the id exists by selecting only the id, so
+		 * missing ids still result in not found.
+		 */
+		CHECKED_REFERENCE
+	}
+
+	enum GraphType {
+		FETCH("javax.persistence.fetchgraph"), LOAD("javax.persistence.loadgraph");
+
+		private final String hint;
+
+		GraphType(String hint) {
+			this.hint = hint;
+		}
+
+		public String getHint() {
+			return hint;
+		}
+	}
 }
@@ -0,0 +1,250 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package br.com.caelum.vraptor.jpa.extra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.Tenants;
+import br.com.caelum.vraptor.jpa.event.AfterCommit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * An application wide cache of {@link Load} results, for entities annotated with
+ * {@link javax.persistence.Cacheable} that are {@link java.io.Serializable}. Enabled by setting
+ * its maximum size in <code>br.com.caelum.vraptor.jpa.loadcache.size</code>; entries expire
+ * after <code>br.com.caelum.vraptor.jpa.loadcache.ttl</code> seconds (60 by default).
+ *
+ * Only parameters annotated with <code>@Load(cache = true)</code> use it, since each request gets
+ * its own detached copy of the cached entity and changes must be written back with
+ * {@link EntityManager#merge(Object)}.
+ *
+ * All entries of a type are invalidated after a commit that changed an entity of that type, by
+ * moving the type to a new generation: entries of older generations are never handed out again,
+ * and entities loaded before an invalidation are not cached after it.
+ *
+ * With {@link Tenants}, the entries and their invalidations are kept per tenant, the one of the
+ * current request, so a tenant never gets the entities of another.
+ */
+@ApplicationScoped
+public class LoadCache {
+
+	private final Environment environment;
+	private final Tenants tenants;
+	private final AtomicLong invalidations = new AtomicLong();
+	private final ConcurrentMap<List<Object>, AtomicLong> generations = new ConcurrentHashMap<>();
+	private Cache<List<Object>, Cached> cache;
+
+	/**
+	 * @deprecated CDI eyes only
+	 */
+	protected LoadCache() {
+		this(null, null);
+	}
+
+	@Inject
+	public LoadCache(Environment environment, Tenants tenants) {
+		this.environment = environment;
+		this.tenants = tenants;
+	}
+
+	@PostConstruct
+	public void init() {
+		long size = Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.loadcache.size", "0"));
+		long ttl = Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.loadcache.ttl", "60"));
+		if (size > 0) {
+			cache = CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttl, TimeUnit.SECONDS)
+					.recordStats().build();
+		}
+	}
+
+	public boolean isEnabled() {
+		return cache != null;
+	}
+
+	/**
+	 * @return the current generation of the type for the current tenant, to be read before
+	 *         loading entities that will be {@link #put(Class, Object, Object, long) put} in the
+	 *         cache.
+	 */
+	public long generation(Class<?> type) {
+		return generation(tenants.current(), type);
+	}
+
+	/**
+	 * @return a copy of the cached entity of the current tenant, or null if it is not cached.
+	 */
+	public Object get(Class<?> type, Object id) {
+		String tenant = tenants.current();
+		List<Object> key = key(tenant, type, id);
+		Cached cached = cache.getIfPresent(key);
+		if (cached == null) {
+			return null;
+		}
+		if (cached.generation != generation(tenant, type)) {
+			cache.asMap().remove(key, cached);
+			return null;
+		}
+		return deserialize(cached.serialized, type.getClassLoader());
+	}
+
+	/**
+	 * Caches the entity, loaded when the type was in the given generation, returning a copy of
+	 * it. The entity is not cached if the type was invalidated since then.
+	 */
+	public Object put(Class<?> type, Object id, Object entity, long generation) {
+		String tenant = tenants.current();
+		List<Object> key = key(tenant, type, id);
+		Cached entry = new Cached(generation, serialize(entity));
+		if (generation(tenant, type) == generation) {
+			cache.put(key, entry);
+			if (generation(tenant, type) != generation) {
+				cache.asMap().remove(key, entry);
+			}
+		}
+		return deserialize(entry.serialized, type.getClassLoader());
+	}
+
+	/**
+	 * Invalidates all entries of the tenant, or of no tenant if null, of the type and of its
+	 * subtypes and supertypes, without going through the entries.
+	 */
+	public void invalidate(String tenant, Class<?> written) {
+		for (Entry<List<Object>, AtomicLong> generation : generations.entrySet()) {
+			List<Object> key = generation.getKey();
+			Class<?> type = (Class<?>) key.get(1);
+			if (Objects.equals(tenant, key.get(0))
+					&& (type.isAssignableFrom(written) || written.isAssignableFrom(type))) {
+				generation.getValue().incrementAndGet();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the types changed by the transaction. Called by
+	 * {@link br.com.caelum.vraptor.jpa.TransactionEvents} on the request thread, even when the
+	 * events are fired asynchronously.
+	 */
+	public void invalidate(AfterCommit event) {
+		if (!isEnabled()) {
+			return;
+		}
+		for (Class<?> written : event.getChangedTypes()) {
+			invalidate(event.getTenant(), written);
+		}
+	}
+
+	public long getHitCount() {
+		return isEnabled() ? cache.stats().hitCount() : 0;
+	}
+
+	public long getMissCount() {
+		return isEnabled() ? cache.stats().missCount() : 0;
+	}
+
+	public long getEvictionCount() {
+		return isEnabled() ? cache.stats().evictionCount() : 0;
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	private long generation(String tenant, Class<?> type) {
+		List<Object> key = Arrays.<Object> asList(tenant, type);
+		AtomicLong generation = generations.get(key);
+		if (generation == null) {
+			AtomicLong created = new AtomicLong();
+			generation = generations.putIfAbsent(key, created);
+			return generation == null ? created.get() : generation.get();
+		}
+		return generation.get();
+	}
+
+	private List<Object> key(String tenant, Class<?> type, Object id) {
+		return Arrays.asList(tenant, type, id);
+	}
+
+	private byte[] serialize(Object entity) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(entity);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not cache " + entity, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private Object deserialize(byte[] serialized, final ClassLoader loader) {
+		try (ObjectInputStream in = new ClassLoaderObjectInputStream(new ByteArrayInputStream(serialized), loader)) {
+			return in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalStateException("Could not read cached entity", e);
+		}
+	}
+
+	private static class Cached {
+
+		final long generation;
+		final byte[] serialized;
+
+		Cached(long generation, byte[] serialized) {
+			this.generation = generation;
+			this.serialized = serialized;
+		}
+	}
+
+	private static class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+		private final ClassLoader loader;
+
+		ClassLoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+			super(in);
+			this.loader = loader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, loader);
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+	}
+}
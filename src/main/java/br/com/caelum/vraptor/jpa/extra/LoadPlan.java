@@ -0,0 +1,184 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package br.com.caelum.vraptor.jpa.extra;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.Cacheable;
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManagerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The {@link Load} parameters of a controller method, with everything that doesn't change
+ * between requests already resolved.
+ */
+public class LoadPlan {
+
+	static final LoadPlan EMPTY = new LoadPlan(Collections.<Target> emptyList());
+
+	private final List<Target> targets;
+
+	LoadPlan(List<Target> targets) {
+		this.targets = targets;
+	}
+
+	public boolean isEmpty() {
+		return targets.isEmpty();
+	}
+
+	public List<Target> getTargets() {
+		return targets;
+	}
+
+	/**
+	 * A parameter to be loaded: its position on the method, its name, the entity type and the
+	 * name and type of its id. Collection parameters, like <code>List&lt;Product&gt;</code>,
+	 * have the element type as entity type.
+	 */
+	public static class Target {
+
+		private final int index;
+		private final String name;
+		private final Class<?> parameterType;
+		private final Class<?> type;
+		private final String entityName;
+		private final String idName;
+		private final Class<?> idType;
+		private final boolean singleId;
+		private final Load load;
+		private final Cache<EntityManagerFactory, EntityGraph<?>> graphs = CacheBuilder.newBuilder().weakKeys()
+				.<EntityManagerFactory, EntityGraph<?>> build();
+
+		Target(int index, String name, Class<?> parameterType, Class<?> type, String entityName,
+				String idName, Class<?> idType, boolean singleId, Load load) {
+			this.index = index;
+			this.name = name;
+			this.parameterType = parameterType;
+			this.type = type;
+			this.entityName = entityName;
+			this.idName = idName;
+			this.idType = idType;
+			this.singleId = singleId;
+			this.load = load;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+
+		public Class<?> getParameterType() {
+			return parameterType;
+		}
+
+		public String getEntityName() {
+			return entityName;
+		}
+
+		public String getIdName() {
+			return idName;
+		}
+
+		public Class<?> getIdType() {
+			return idType;
+		}
+
+		public boolean isCollection() {
+			return Collection.class.isAssignableFrom(parameterType);
+		}
+
+		/**
+		 * @return true if the entity has a single, basic, id attribute, so it can be loaded
+		 *         together with others of the same type by an <code>in</code> query.
+		 */
+		public boolean isSingleId() {
+			return singleId;
+		}
+
+		public Load.Mode getMode() {
+			return load.mode();
+		}
+
+		/**
+		 * @return true if the entity can be kept in the {@link LoadCache}: the parameter asks for
+		 *         it and it is a full load, without graphs, of a serializable entity annotated
+		 *         with {@link Cacheable}.
+		 */
+		public boolean isCacheable() {
+			Cacheable cacheable = type.getAnnotation(Cacheable.class);
+			return load.cache() && cacheable != null && cacheable.value() && Serializable.class.isAssignableFrom(type)
+					&& load.mode() == Load.Mode.ENTITY && !hasGraph();
+		}
+
+		public boolean hasGraph() {
+			return !load.graph().isEmpty() || load.fetch().length > 0;
+		}
+
+		public String getGraphName() {
+			return load.graph();
+		}
+
+		public String[] getFetch() {
+			return load.fetch();
+		}
+
+		public String getGraphHint() {
+			return load.graphType().getHint();
+		}
+
+		/**
+		 * @return the entity graph already built for this parameter with the factory, if any. A
+		 *         graph belongs to the factory that built it, so each unit or tenant gets its own.
+		 */
+		public EntityGraph<?> getGraph(EntityManagerFactory factory) {
+			return graphs.getIfPresent(factory);
+		}
+
+		public void setGraph(EntityManagerFactory factory, EntityGraph<?> graph) {
+			graphs.put(factory, graph);
+		}
+
+		/**
+		 * @return a key shared by the targets that can be loaded together: same entity type,
+		 *         same mode and same graph.
+		 */
+		public List<Object> getGroupKey() {
+			return Arrays.<Object> asList(type, load.mode(), load.graph(), Arrays.asList(load.fetch()), load.graphType());
+		}
+
+		/**
+		 * @return the request parameter that holds the id, like <code>product.id</code>, or
+		 *         <code>products[].id</code> for collections.
+		 */
+		public String getParameterKey() {
+			return isCollection() ? name + "[]." + idName : name + "." + idName;
+		}
+	}
+}
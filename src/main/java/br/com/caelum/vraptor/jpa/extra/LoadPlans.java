@@ -0,0 +1,122 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package br.com.caelum.vraptor.jpa.extra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.IdentifiableType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import javax.persistence.metamodel.Type.PersistenceType;
+
+import br.com.caelum.vraptor.cache.CacheStore;
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.http.Parameter;
+import br.com.caelum.vraptor.http.ParameterNameProvider;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Builds and caches the {@link LoadPlan} of each controller method, so the parameters and the
+ * metamodel are inspected only once.
+ */
+@ApplicationScoped
+public class LoadPlans {
+
+	private final EntityManagerFactory factory;
+	private final ParameterNameProvider provider;
+	private final CacheStore<ControllerMethod, LoadPlan> cache;
+
+	/**
+	 * @deprecated CDI eyes only
+	 */
+	protected LoadPlans() {
+		this(null, null, null);
+	}
+
+	@Inject
+	public LoadPlans(EntityManagerFactory factory, ParameterNameProvider provider,
+			CacheStore<ControllerMethod, LoadPlan> cache) {
+		this.factory = factory;
+		this.provider = provider;
+		this.cache = cache;
+	}
+
+	public LoadPlan planFor(final ControllerMethod method) {
+		return cache.fetch(method, new Supplier<LoadPlan>() {
+			@Override
+			public LoadPlan get() {
+				return build(method);
+			}
+		});
+	}
+
+	private LoadPlan build(ControllerMethod method) {
+		Parameter[] parameters = provider.parametersFor(method.getMethod());
+		List<LoadPlan.Target> targets = new ArrayList<>();
+
+		for (int i = 0; i < parameters.length; i++) {
+			Parameter parameter = parameters[i];
+			if (parameter.isAnnotationPresent(Load.class)) {
+				Class<?> type = entityTypeOf(parameter);
+				EntityType<?> entity = factory.getMetamodel().entity(type);
+				SingularAttribute<?, ?> idProperty = getIdProperty(entity, type);
+				boolean singleId = entity.hasSingleIdAttribute()
+						&& idProperty.getType().getPersistenceType() == PersistenceType.BASIC;
+
+				targets.add(new LoadPlan.Target(i, parameter.getName(), parameter.getType(), type, entity.getName(),
+						idProperty.getName(), idProperty.getType().getJavaType(), singleId,
+						parameter.getAnnotation(Load.class)));
+			}
+		}
+		return targets.isEmpty() ? LoadPlan.EMPTY : new LoadPlan(targets);
+	}
+
+	private Class<?> entityTypeOf(Parameter parameter) {
+		if (!Collection.class.isAssignableFrom(parameter.getType())) {
+			return parameter.getType();
+		}
+		java.lang.reflect.Type generic = parameter.getParameterizedType();
+		checkArgument(generic instanceof ParameterizedType, "Collection parameter %s must declare its entity type for @Load.",
+				parameter.getName());
+		return (Class<?>) ((ParameterizedType) generic).getActualTypeArguments()[0];
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private <T> SingularAttribute<?, ?> getIdProperty(IdentifiableType entity, final Class type) {
+		Type<?> idType = entity.getIdType();
+		checkArgument(idType != null, "Entity %s must have an id property for @Load.", type.getSimpleName());
+
+		if (hasSupertype(entity)) {
+			entity = entity.getSupertype();
+		}
+
+		return entity.getDeclaredId(idType.getJavaType());
+	}
+
+	private <T> boolean hasSupertype(IdentifiableType<? super T> entity) {
+		return entity.getSupertype() != null;
+	}
+}
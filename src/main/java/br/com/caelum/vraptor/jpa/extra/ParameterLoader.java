@@ -18,27 +18,46 @@ package br.com.caelum.vraptor.jpa.extra;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.Serializable;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.enterprise.context.RequestScoped;
 import javax.enterprise.event.Observes;
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
-import javax.persistence.metamodel.IdentifiableType;
-import javax.persistence.metamodel.SingularAttribute;
-import javax.persistence.metamodel.Type;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Subgraph;
+import javax.persistence.TypedQuery;
 import javax.servlet.http.HttpServletRequest;
 
 import br.com.caelum.vraptor.Result;
 import br.com.caelum.vraptor.controller.ControllerMethod;
 import br.com.caelum.vraptor.converter.Converter;
 import br.com.caelum.vraptor.core.Converters;
+import br.com.caelum.vraptor.core.MethodInfo;
 import br.com.caelum.vraptor.events.ControllerFound;
-import br.com.caelum.vraptor.http.Parameter;
-import br.com.caelum.vraptor.http.ParameterNameProvider;
+import br.com.caelum.vraptor.http.ParametersProvider;
+import br.com.caelum.vraptor.jpa.BulkheadPermit;
+import br.com.caelum.vraptor.jpa.event.BeforeRetry;
+import br.com.caelum.vraptor.jpa.extra.LoadPlan.Target;
+import br.com.caelum.vraptor.validator.Message;
 import br.com.caelum.vraptor.view.FlashScope;
 
 /**
- * Observer that loads given entity from the database.
+ * Observer that loads given entity from the database. Entities of the same type are loaded
+ * together, by a single query. The {@link BulkheadPermit} of the request is taken before, so a
+ * rejected request doesn't touch the database.
  *
  * @author Lucas Cavalcanti
  * @author Cecilia Fernandes
@@ -50,85 +69,342 @@ public class ParameterLoader {
 
 	private final EntityManager em;
 	private final HttpServletRequest request;
-	private final ParameterNameProvider provider;
+	private final LoadPlans plans;
 	private final Result result;
 	private final Converters converters;
 	private final FlashScope flash;
+	private final LoadCache cache;
+	private final MethodInfo methodInfo;
+	private final BulkheadPermit permit;
+	private final ParametersProvider parameters;
 
 	/**
 	 * @deprecated CDI eyes only
 	 */
 	protected ParameterLoader() {
-		this(null, null, null, null, null, null);
+		this(null, null, null, null, null, null, null, null, null, null);
 	}
 
 	@Inject
-	public ParameterLoader(EntityManager em, HttpServletRequest request, ParameterNameProvider provider,
-			Result result, Converters converters, FlashScope flash) {
+	public ParameterLoader(EntityManager em, HttpServletRequest request, LoadPlans plans,
+			Result result, Converters converters, FlashScope flash, LoadCache cache, MethodInfo methodInfo,
+			BulkheadPermit permit, ParametersProvider parameters) {
 		this.em = em;
 		this.request = request;
-		this.provider = provider;
+		this.plans = plans;
 		this.result = result;
 		this.converters = converters;
 		this.flash = flash;
+		this.cache = cache;
+		this.methodInfo = methodInfo;
+		this.permit = permit;
+		this.parameters = parameters;
 	}
 
 	public void load(@Observes ControllerFound event) {
 		ControllerMethod method = event.getMethod();
+		LoadPlan plan = plans.planFor(method);
+		if (plan.isEmpty()) {
+			return;
+		}
+		if (!permit.acquire(method)) {
+			// the JPATransactionInterceptor answers 503 for it, without loading anything
+			return;
+		}
+		// the EntityManager chooses its replica and timeouts by the method, and this observer may
+		// run before MethodInfo's own
+		methodInfo.setControllerMethod(method);
+
 		Object[] args = flash.consumeParameters(method);
-		Parameter[] parameters = provider.parametersFor(method.getMethod());
-
-		for (int i = 0; i < parameters.length; i++) {
-			Parameter parameter = parameters[i];
-			if (parameter.isAnnotationPresent(Load.class)) {
-				Object loaded = load(parameter.getName(), parameter.getType());
-
-				if (loaded == null) {
-					result.notFound();
-					return;
-				}
-
-				if (args != null) {
-					args[i] = loaded;
-				} else {
-					request.setAttribute(parameter.getName(), loaded);
-				}
+
+		Map<Target, Object> loaded = loadAll(plan);
+		if (loaded == null) {
+			return;
+		}
+
+		for (Entry<Target, Object> entry : loaded.entrySet()) {
+			if (args != null) {
+				args[entry.getKey().getIndex()] = entry.getValue();
+			} else {
+				request.setAttribute(entry.getKey().getName(), entry.getValue());
 			}
 		}
 		flash.includeParameters(method, args);
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private <T> Object load(String name, Class type) {
-		final SingularAttribute<?, ?> idProperty = getIdProperty(type);
+	/**
+	 * Loads the entities again when an {@link br.com.caelum.vraptor.jpa.Idempotent} method is
+	 * retried, as the ones it got before were detached by the reset of the EntityManager. The
+	 * other entity parameters are built again from the request, since the failed attempt may have
+	 * persisted or merged them.
+	 */
+	public void reload(@Observes BeforeRetry event) {
+		ControllerMethod method = methodInfo.getControllerMethod();
+		rebuild(method);
+		LoadPlan plan = plans.planFor(method);
+		if (plan.isEmpty()) {
+			return;
+		}
+
+		Map<Target, Object> loaded = loadAll(plan);
+		if (loaded == null) {
+			return;
+		}
+
+		for (Entry<Target, Object> entry : loaded.entrySet()) {
+			methodInfo.setParameter(entry.getKey().getIndex(), entry.getValue());
+		}
+	}
+
+	private void rebuild(ControllerMethod method) {
+		Class<?>[] types = method.getMethod().getParameterTypes();
+		Annotation[][] annotations = method.getMethod().getParameterAnnotations();
+		Object[] rebuilt = null;
+		for (int i = 0; i < types.length; i++) {
+			if (isLoaded(annotations[i]) || !isEntity(types[i])) {
+				continue;
+			}
+			if (rebuilt == null) {
+				rebuilt = parameters.getParametersFor(method, new ArrayList<Message>());
+			}
+			methodInfo.setParameter(i, rebuilt[i]);
+		}
+	}
+
+	private boolean isLoaded(Annotation[] annotations) {
+		for (Annotation annotation : annotations) {
+			if (annotation instanceof Load) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isEntity(Class<?> type) {
+		try {
+			return em.getMetamodel().entity(type) != null;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
 
-		final String parameter = request.getParameter(name + "." + idProperty.getName());
-		if (parameter == null) {
-			return null;
+	/**
+	 * @return the loaded value of each target, or null if any of them was not found.
+	 */
+	private Map<Target, Object> loadAll(LoadPlan plan) {
+		Map<Target, List<Object>> ids = new LinkedHashMap<>();
+		for (Target target : plan.getTargets()) {
+			List<Object> targetIds = idsOf(target);
+			if (targetIds.isEmpty()) {
+				result.notFound();
+				return null;
+			}
+			ids.put(target, targetIds);
 		}
 
-		Converter<?> converter = converters.to(idProperty.getType().getJavaType());
-		checkArgument(converter != null, "Entity %s id type %s must have a converter", type.getSimpleName(), idProperty.getType());
+		Map<List<Object>, Map<Object, Object>> entities = find(ids);
+
+		Map<Target, Object> loaded = new LinkedHashMap<>();
+		for (Entry<Target, List<Object>> entry : ids.entrySet()) {
+			Target target = entry.getKey();
+			Object value = valueOf(target, entry.getValue(), entities.get(target.getGroupKey()));
 
-		Serializable id = (Serializable) converter.convert(parameter, type);
-		return em.find(type, id);
+			if (value == null) {
+				result.notFound();
+				return null;
+			}
+			loaded.put(target, value);
+		}
+		return loaded;
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private <T> SingularAttribute<?, ?> getIdProperty(final Class type) {
-		IdentifiableType entity = em.getMetamodel().entity(type);
+	private List<Object> idsOf(Target target) {
+		String[] parameters = target.isCollection()
+				? request.getParameterValues(target.getParameterKey())
+				: new String[] { request.getParameter(target.getParameterKey()) };
+
+		List<Object> ids = new ArrayList<>();
+		if (parameters == null || parameters[0] == null) {
+			return ids;
+		}
 
-		Type<?> idType = entity.getIdType();
-		checkArgument(idType != null, "Entity %s must have an id property for @Load.", type.getSimpleName());
+		Converter<?> converter = converters.to(target.getIdType());
+		checkArgument(converter != null, "Entity %s id type %s must have a converter",
+				target.getType().getSimpleName(), target.getIdType());
 
-		if (hasSupertype(entity)) {
-			entity = entity.getSupertype();
+		for (String parameter : parameters) {
+			ids.add((Serializable) converter.convert(parameter, (Class) target.getType()));
+		}
+		return ids;
+	}
+
+	/**
+	 * Finds all entities of the same type at once, with an <code>in</code> query, falling back
+	 * to one find for each id when there is only one id or when the id is composite.
+	 */
+	private Map<List<Object>, Map<Object, Object>> find(Map<Target, List<Object>> ids) {
+		Map<List<Object>, Target> targets = new LinkedHashMap<>();
+		Map<List<Object>, Set<Object>> idsByGroup = new LinkedHashMap<>();
+		for (Entry<Target, List<Object>> entry : ids.entrySet()) {
+			List<Object> group = entry.getKey().getGroupKey();
+			if (!idsByGroup.containsKey(group)) {
+				targets.put(group, entry.getKey());
+				idsByGroup.put(group, new LinkedHashSet<>());
+			}
+			idsByGroup.get(group).addAll(entry.getValue());
 		}
 
-		return entity.getDeclaredId(idType.getJavaType());
+		Map<List<Object>, Map<Object, Object>> entities = new HashMap<>();
+		for (Entry<List<Object>, Set<Object>> entry : idsByGroup.entrySet()) {
+			entities.put(entry.getKey(), find(targets.get(entry.getKey()), entry.getValue()));
+		}
+		return entities;
 	}
 
-	private <T> boolean hasSupertype(IdentifiableType<? super T> entity) {
-		return entity.getSupertype() != null;
+	private Map<Object, Object> find(Target target, Set<Object> ids) {
+		switch (target.getMode()) {
+		case REFERENCE:
+			return referencesTo(target, ids);
+		case CHECKED_REFERENCE:
+			if (target.isSingleId()) {
+				return referencesTo(target, existing(target, ids));
+			}
+			return findEach(target, ids);
+		default:
+			if (target.isCacheable() && cache.isEnabled()) {
+				return findCached(target, ids);
+			}
+			return findEntities(target, ids);
+		}
+	}
+
+	private Map<Object, Object> findEntities(Target target, Set<Object> ids) {
+		if (target.isSingleId() && ids.size() > 1) {
+			return findAll(target, ids);
+		}
+		return findEach(target, ids);
+	}
+
+	/**
+	 * Takes what it can from the {@link LoadCache}, finding only the missing ids.
+	 */
+	private Map<Object, Object> findCached(Target target, Set<Object> ids) {
+		Map<Object, Object> entities = new HashMap<>();
+		Set<Object> missing = new LinkedHashSet<>();
+		for (Object id : ids) {
+			Object cached = cache.get(target.getType(), id);
+			if (cached == null) {
+				missing.add(id);
+			} else {
+				entities.put(id, cached);
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			long generation = cache.generation(target.getType());
+			for (Entry<Object, Object> found : findEntities(target, missing).entrySet()) {
+				entities.put(found.getKey(), cache.put(target.getType(), found.getKey(), found.getValue(), generation));
+			}
+		}
+		return entities;
+	}
+
+	private Map<Object, Object> referencesTo(Target target, Collection<Object> ids) {
+		Map<Object, Object> references = new HashMap<>();
+		for (Object id : ids) {
+			references.put(id, em.getReference(target.getType(), id));
+		}
+		return references;
+	}
+
+	/**
+	 * Selects only the ids, without hydrating the entities.
+	 */
+	private List<Object> existing(Target target, Set<Object> ids) {
+		String jpql = "select e." + target.getIdName() + " from " + target.getEntityName() + " e where e."
+				+ target.getIdName() + " in :ids";
+		return em.createQuery(jpql, Object.class).setParameter("ids", ids).getResultList();
+	}
+
+	private Map<Object, Object> findAll(Target target, Set<Object> ids) {
+		String jpql = "select e from " + target.getEntityName() + " e where e." + target.getIdName() + " in :ids";
+		TypedQuery<?> query = em.createQuery(jpql, target.getType()).setParameter("ids", ids);
+		for (Entry<String, Object> hint : hintsFor(target).entrySet()) {
+			query.setHint(hint.getKey(), hint.getValue());
+		}
+
+		PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		Map<Object, Object> entities = new HashMap<>();
+		for (Object entity : query.getResultList()) {
+			entities.put(util.getIdentifier(entity), entity);
+		}
+		return entities;
+	}
+
+	private Map<Object, Object> findEach(Target target, Set<Object> ids) {
+		Map<String, Object> hints = hintsFor(target);
+		Map<Object, Object> entities = new HashMap<>();
+		for (Object id : ids) {
+			Object entity = hints.isEmpty() ? em.find(target.getType(), id) : em.find(target.getType(), id, hints);
+			if (entity != null) {
+				entities.put(id, entity);
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * The entity graph hint of the target, building the graph on its first use with the factory
+	 * of the request.
+	 */
+	private Map<String, Object> hintsFor(Target target) {
+		if (!target.hasGraph()) {
+			return Collections.emptyMap();
+		}
+		EntityManagerFactory factory = em.getEntityManagerFactory();
+		EntityGraph<?> graph = target.getGraph(factory);
+		if (graph == null) {
+			graph = buildGraph(target);
+			target.setGraph(factory, graph);
+		}
+		return Collections.<String, Object> singletonMap(target.getGraphHint(), graph);
+	}
+
+	private EntityGraph<?> buildGraph(Target target) {
+		if (!target.getGraphName().isEmpty()) {
+			return em.getEntityGraph(target.getGraphName());
+		}
+		EntityGraph<?> graph = em.createEntityGraph(target.getType());
+		for (String path : target.getFetch()) {
+			String[] attributes = path.split("\\.");
+			if (attributes.length == 1) {
+				graph.addAttributeNodes(attributes[0]);
+				continue;
+			}
+			Subgraph<?> subgraph = graph.addSubgraph(attributes[0]);
+			for (int i = 1; i < attributes.length - 1; i++) {
+				subgraph = subgraph.addSubgraph(attributes[i]);
+			}
+			subgraph.addAttributeNodes(attributes[attributes.length - 1]);
+		}
+		return graph;
+	}
+
+	private Object valueOf(Target target, List<Object> ids, Map<Object, Object> entities) {
+		if (!target.isCollection()) {
+			return entities.get(ids.get(0));
+		}
+
+		Collection<Object> values = Set.class.isAssignableFrom(target.getParameterType())
+				? new LinkedHashSet<>() : new ArrayList<>();
+		for (Object id : ids) {
+			Object entity = entities.get(id);
+			if (entity == null) {
+				return null;
+			}
+			values.add(entity);
+		}
+		return values;
 	}
 }
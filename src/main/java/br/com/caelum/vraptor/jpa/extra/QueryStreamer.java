@@ -0,0 +1,267 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package br.com.caelum.vraptor.jpa.extra;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.Cursor;
+
+/**
+ * Iterates over big query results with constant memory, using the request EntityManager and
+ * transaction. The rows are fetched in chunks of <code>br.com.caelum.vraptor.jpa.stream.chunksize</code>
+ * (500 by default) and each chunk is released from the persistence context before the next
+ * one is fetched.
+ *
+ * With Hibernate, the query runs once, through a forward-only cursor with the chunk size as
+ * its fetch size. Other providers have no cursors in JPA 2.1, so each chunk is a page of the
+ * query: give it an <code>order by</code> on a unique column, or rows may be skipped or
+ * repeated, and mind that the database reads all the skipped rows again for each page.
+ */
+public class QueryStreamer {
+
+	/**
+	 * How the rows of a chunk leave the persistence context.
+	 */
+	public enum Release {
+		/**
+		 * With Hibernate, flushes and evicts every entity that entered the persistence context
+		 * while streaming, including the eager associations of the rows, and keeps the ones
+		 * that were managed before. With other providers, detaches only the rows themselves,
+		 * so their associations stay managed unless they cascade the detach: use
+		 * {@link #CLEAR} for those.
+		 */
+		DETACH,
+		/**
+		 * Clears the whole persistence context. Cheaper, but unflushed changes are lost and
+		 * every entity, including the ones loaded before, is detached.
+		 */
+		CLEAR
+	}
+
+	static final String FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+
+	private final EntityManager manager;
+	private final int chunkSize;
+
+	/**
+	 * @deprecated CDI eyes only
+	 */
+	protected QueryStreamer() {
+		this(null, 1);
+	}
+
+	@Inject
+	public QueryStreamer(EntityManager manager, Environment environment) {
+		this(manager, Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.stream.chunksize", "500").trim()));
+	}
+
+	public QueryStreamer(EntityManager manager, int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.manager = manager;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Streams the query, detaching each chunk of rows after it was iterated.
+	 */
+	public <T> Iterable<T> stream(TypedQuery<T> query) {
+		return stream(query, Release.DETACH);
+	}
+
+	/**
+	 * Streams the query, starting at its first result and stopping at its max results, if set.
+	 */
+	public <T> Iterable<T> stream(final TypedQuery<T> query, final Release release) {
+		query.setHint(FETCH_SIZE_HINT, chunkSize);
+		final int first = query.getFirstResult();
+		final int max = query.getMaxResults();
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				Cursor<T> cursor = HibernateSupport.scroll(manager, query, chunkSize);
+				if (cursor != null) {
+					return new Scrolled<>(cursor, release);
+				}
+				return new Chunks<>(query, release, first, max);
+			}
+		};
+	}
+
+	/**
+	 * Reads the rows from a cursor, releasing them after every chunk and when it is over.
+	 */
+	private class Scrolled<T> implements Iterator<T> {
+
+		private final Cursor<T> cursor;
+		private final Release release;
+		private int unreleased;
+		private boolean ready;
+		private boolean over;
+
+		Scrolled(Cursor<T> cursor, Release release) {
+			this.cursor = cursor;
+			this.release = release;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (ready || over) {
+				return ready;
+			}
+			if (unreleased == chunkSize) {
+				releaseChunk();
+			}
+			ready = cursor.next();
+			if (!ready) {
+				over = true;
+				releaseChunk();
+				cursor.close();
+			}
+			return ready;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			unreleased++;
+			return cursor.get();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Streamed results can't be removed");
+		}
+
+		private void releaseChunk() {
+			if (unreleased == 0) {
+				return;
+			}
+			if (release == Release.CLEAR) {
+				manager.clear();
+			} else {
+				cursor.evictLoaded();
+			}
+			unreleased = 0;
+		}
+	}
+
+	private class Chunks<T> implements Iterator<T> {
+
+		private final TypedQuery<T> query;
+		private final Release release;
+		private final Map<Class<?>, Boolean> entities = new HashMap<>();
+		private int offset;
+		private int remaining;
+		private List<T> chunk = Collections.emptyList();
+		private int index;
+		private boolean last;
+
+		Chunks(TypedQuery<T> query, Release release, int offset, int remaining) {
+			this.query = query;
+			this.release = release;
+			this.offset = offset;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (index < chunk.size()) {
+				return true;
+			}
+			releaseChunk();
+			if (!last) {
+				fetch();
+			}
+			return index < chunk.size();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return chunk.get(index++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Streamed results can't be removed");
+		}
+
+		private void fetch() {
+			int size = Math.min(chunkSize, remaining);
+			chunk = size > 0 ? query.setFirstResult(offset).setMaxResults(size).getResultList()
+					: Collections.<T> emptyList();
+			index = 0;
+			offset += chunk.size();
+			remaining -= chunk.size();
+			last = chunk.size() < size || remaining <= 0;
+		}
+
+		private void releaseChunk() {
+			if (chunk.isEmpty()) {
+				return;
+			}
+			if (release == Release.CLEAR) {
+				manager.clear();
+			} else {
+				for (T row : chunk) {
+					if (isEntity(row)) {
+						manager.detach(row);
+					}
+				}
+			}
+			chunk = Collections.emptyList();
+			index = 0;
+		}
+
+		private boolean isEntity(T row) {
+			if (row == null) {
+				return false;
+			}
+			Boolean entity = entities.get(row.getClass());
+			if (entity == null) {
+				entity = isEntity(row.getClass());
+				entities.put(row.getClass(), entity);
+			}
+			return entity;
+		}
+
+		private boolean isEntity(Class<?> type) {
+			try {
+				return manager.getMetamodel().entity(type) != null;
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+import br.com.caelum.vraptor.jpa.event.Change.Operation;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.ChangeRecorder;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Listens to the inserts, updates and deletes of every session of a factory, and tells them
+ * to the {@link ChangeRecorder} of the session, if it has one. It is registered once per
+ * factory, the first time one of its sessions is tracked.
+ */
+final class ChangeTracker implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Set<SessionFactory> TRACKED = Collections.newSetFromMap(
+			new MapMaker().weakKeys().<SessionFactory, Boolean> makeMap());
+	private static final Map<Session, ChangeRecorder> RECORDERS = new MapMaker().weakKeys().makeMap();
+
+	private ChangeTracker() {
+	}
+
+	static void track(Session session, ChangeRecorder recorder) {
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) session.getSessionFactory();
+		if (TRACKED.add(factory)) {
+			ChangeTracker tracker = new ChangeTracker();
+			EventListenerRegistry registry = factory.getServiceRegistry().getService(EventListenerRegistry.class);
+			registry.appendListeners(EventType.POST_INSERT, tracker);
+			registry.appendListeners(EventType.POST_UPDATE, tracker);
+			registry.appendListeners(EventType.POST_DELETE, tracker);
+		}
+		RECORDERS.put(session, recorder);
+	}
+
+	static void untrack(Session session) {
+		RECORDERS.remove(session);
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent event) {
+		record(event.getSession(), event.getPersister(), event.getId(), Operation.PERSIST);
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		record(event.getSession(), event.getPersister(), event.getId(), Operation.UPDATE);
+	}
+
+	@Override
+	public void onPostDelete(PostDeleteEvent event) {
+		record(event.getSession(), event.getPersister(), event.getId(), Operation.REMOVE);
+	}
+
+	private void record(Session session, EntityPersister persister, Serializable id, Operation operation) {
+		ChangeRecorder recorder = RECORDERS.get(session);
+		if (recorder != null) {
+			recorder.changed(persister.getMappedClass(), id, operation);
+		}
+	}
+
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return false;
+	}
+}
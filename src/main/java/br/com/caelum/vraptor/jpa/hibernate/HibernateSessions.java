@@ -0,0 +1,197 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.hibernate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.ChangeRecorder;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.Cursor;
+import br.com.caelum.vraptor.jpa.hibernate.HibernateSupport.StatementRecorder;
+
+/**
+ * The Hibernate calls of {@link HibernateSupport}, in a class of its own so it is only loaded
+ * when Hibernate is in the classpath.
+ */
+final class HibernateSessions {
+
+	private HibernateSessions() {
+	}
+
+	static Session sessionOf(EntityManager manager) {
+		try {
+			return manager.unwrap(Session.class);
+		} catch (PersistenceException e) {
+			return null;
+		}
+	}
+
+	static boolean setDefaultReadOnly(EntityManager manager, boolean readOnly) {
+		Session session = sessionOf(manager);
+		if (session == null) {
+			return false;
+		}
+		session.setDefaultReadOnly(readOnly);
+		return true;
+	}
+
+	static boolean recordChanges(EntityManager manager, ChangeRecorder recorder) {
+		Session session = sessionOf(manager);
+		if (session == null) {
+			return false;
+		}
+		ChangeTracker.track(session, recorder);
+		return true;
+	}
+
+	static void stopRecordingChanges(EntityManager manager) {
+		Session session = sessionOf(manager);
+		if (session != null) {
+			ChangeTracker.untrack(session);
+		}
+	}
+
+	static boolean recordStatements(EntityManager manager, StatementRecorder recorder) {
+		Session session = sessionOf(manager);
+		if (session == null) {
+			return false;
+		}
+		session.addEventListeners(new StatementListener(recorder));
+		return true;
+	}
+
+	static <T> Cursor<T> scroll(EntityManager manager, TypedQuery<T> query, int fetchSize) {
+		Session session = sessionOf(manager);
+		Query hibernate = unwrap(query);
+		if (session == null || hibernate == null) {
+			return null;
+		}
+		return new ScrollCursor<>(session, hibernate.setFetchSize(fetchSize));
+	}
+
+	private static Query unwrap(TypedQuery<?> query) {
+		try {
+			return query.unwrap(Query.class);
+		} catch (PersistenceException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The managed entities by key. Hibernate 4 declares the map raw, but it always holds these types.
+	 */
+	private static Map<EntityKey, Object> entitiesOf(Session session) {
+		@SuppressWarnings("unchecked")
+		Map<EntityKey, Object> entities = ((SessionImplementor) session).getPersistenceContext().getEntitiesByKey();
+		return entities;
+	}
+
+	/**
+	 * Times the statements and batches, which a session executes one at a time.
+	 */
+	private static class StatementListener extends BaseSessionEventListener {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient StatementRecorder recorder;
+		private long start;
+
+		StatementListener(StatementRecorder recorder) {
+			this.recorder = recorder;
+		}
+
+		@Override
+		public void jdbcExecuteStatementStart() {
+			start = System.nanoTime();
+		}
+
+		@Override
+		public void jdbcExecuteStatementEnd() {
+			recorder.executed(System.nanoTime() - start);
+		}
+
+		@Override
+		public void jdbcExecuteBatchStart() {
+			start = System.nanoTime();
+		}
+
+		@Override
+		public void jdbcExecuteBatchEnd() {
+			recorder.executed(System.nanoTime() - start);
+		}
+	}
+
+	private static class ScrollCursor<T> implements Cursor<T> {
+
+		private final Session session;
+		private final Set<EntityKey> managed;
+		private final ScrollableResults results;
+
+		ScrollCursor(Session session, Query query) {
+			this.session = session;
+			this.managed = new HashSet<>(entitiesOf(session).keySet());
+			this.results = query.scroll(ScrollMode.FORWARD_ONLY);
+		}
+
+		@Override
+		public boolean next() {
+			return results.next();
+		}
+
+		/**
+		 * A row of a single column is the value itself, as in {@link javax.persistence.Query#getResultList()}.
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public T get() {
+			Object[] row = results.get();
+			return (T) (row.length == 1 ? row[0] : row);
+		}
+
+		@Override
+		public void evictLoaded() {
+			if (session.getTransaction().isActive()) {
+				session.flush();
+			}
+			for (Entry<EntityKey, Object> entity : new ArrayList<>(entitiesOf(session).entrySet())) {
+				if (!managed.contains(entity.getKey())) {
+					session.evict(entity.getValue());
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			results.close();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.hibernate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import br.com.caelum.vraptor.jpa.event.Change.Operation;
+
+/**
+ * What the plugin does better when the provider is Hibernate. Every method checks that
+ * Hibernate is in the classpath and that the {@link EntityManager} is a Hibernate one, and
+ * does nothing otherwise, so the plugin keeps working with any other provider.
+ */
+public final class HibernateSupport {
+
+	private static final boolean PRESENT = isPresent("org.hibernate.Session");
+
+	private HibernateSupport() {
+	}
+
+	/**
+	 * A forward-only cursor over the rows of a query.
+	 */
+	public interface Cursor<T> {
+
+		boolean next();
+
+		T get();
+
+		/**
+		 * Flushes, then evicts every entity that entered the session since the cursor was
+		 * opened: the rows, their associations, and the entities persisted meanwhile. The
+		 * ones that were already managed are kept.
+		 */
+		void evictLoaded();
+
+		void close();
+	}
+
+	/**
+	 * Told about the entities a session inserts, updates and deletes, as they are flushed.
+	 */
+	public interface ChangeRecorder {
+
+		void changed(Class<?> type, Object id, Operation operation);
+	}
+
+	/**
+	 * Told about every statement a session executes, with the time it took.
+	 */
+	public interface StatementRecorder {
+
+		void executed(long nanos);
+	}
+
+	private static boolean isPresent(String type) {
+		try {
+			Class.forName(type, false, HibernateSupport.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Makes the entities loaded by the manager from now on read-only, so no snapshot is kept
+	 * for dirty-checking and they are never flushed.
+	 *
+	 * @return false if the manager is not a Hibernate one.
+	 */
+	public static boolean setDefaultReadOnly(EntityManager manager, boolean readOnly) {
+		return PRESENT && HibernateSessions.setDefaultReadOnly(manager, readOnly);
+	}
+
+	/**
+	 * Tells the recorder about every insert, update and delete the manager flushes, including
+	 * the updates found by dirty-checking, until {@link #stopRecordingChanges(EntityManager)}.
+	 *
+	 * @return false if the manager is not a Hibernate one, so nothing will be recorded.
+	 */
+	public static boolean recordChanges(EntityManager manager, ChangeRecorder recorder) {
+		return PRESENT && HibernateSessions.recordChanges(manager, recorder);
+	}
+
+	public static void stopRecordingChanges(EntityManager manager) {
+		if (PRESENT) {
+			HibernateSessions.stopRecordingChanges(manager);
+		}
+	}
+
+	/**
+	 * Tells the recorder about every JDBC statement the manager executes from now on, including
+	 * lazy loads and flushes, until it is closed.
+	 *
+	 * @return false if the manager is not a Hibernate one, so nothing will be recorded.
+	 */
+	public static boolean recordStatements(EntityManager manager, StatementRecorder recorder) {
+		return PRESENT && HibernateSessions.recordStatements(manager, recorder);
+	}
+
+	/**
+	 * Opens a {@link org.hibernate.ScrollMode#FORWARD_ONLY} cursor over the query, that fetches
+	 * <code>fetchSize</code> rows at a time from the database.
+	 *
+	 * @return null if the manager or the query is not a Hibernate one.
+	 */
+	public static <T> Cursor<T> scroll(EntityManager manager, TypedQuery<T> query, int fetchSize) {
+		return PRESENT ? HibernateSessions.scroll(manager, query, fetchSize) : null;
+	}
+}
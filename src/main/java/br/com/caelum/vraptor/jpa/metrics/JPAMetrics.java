@@ -0,0 +1,235 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * Collects transaction timings by controller method and counts the open
+ * {@link javax.persistence.EntityManager}s. Enabled by setting
+ * <code>br.com.caelum.vraptor.jpa.metrics</code> to <code>true</code>; the metrics are then
+ * published as MBeans under the <code>br.com.caelum.vraptor.jpa</code> domain and given to every
+ * {@link TransactionListener}. Transactions with too many queries or too long are flagged by
+ * {@link SlowRequests}.
+ */
+@ApplicationScoped
+public class JPAMetrics implements JPAMetricsMBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(JPAMetrics.class);
+	private static final String DOMAIN = "br.com.caelum.vraptor.jpa";
+
+	private final Environment environment;
+	private final Instance<TransactionListener> listenerInstances;
+	private final ConcurrentMap<ControllerMethod, TransactionStats> stats = new ConcurrentHashMap<>();
+	private final List<TransactionListener> listeners = new CopyOnWriteArrayList<>();
+	private final List<ObjectName> registered = new CopyOnWriteArrayList<>();
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private SlowRequests slowRequests;
+	private boolean enabled;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected JPAMetrics() {
+		this(null, null);
+	}
+
+	@Inject
+	public JPAMetrics(Environment environment, @Any Instance<TransactionListener> listenerInstances) {
+		this.environment = environment;
+		this.listenerInstances = listenerInstances;
+	}
+
+	@PostConstruct
+	public void init() {
+		enabled = Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.metrics", "false"));
+		if (enabled) {
+			for (TransactionListener listener : listenerInstances) {
+				listeners.add(listener);
+			}
+			register(this, objectName("type=JPAMetrics"));
+			slowRequests = new SlowRequests(environment);
+			register(slowRequests, objectName("type=SlowRequests"));
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void record(TransactionSample sample) {
+		if (!enabled) {
+			return;
+		}
+		statsFor(sample.getMethod()).record(sample);
+		slowRequests.record(sample);
+		for (TransactionListener listener : listeners) {
+			listener.transactionFinished(sample);
+		}
+	}
+
+	public TransactionStats statsFor(ControllerMethod method) {
+		TransactionStats methodStats = stats.get(method);
+		if (methodStats == null) {
+			TransactionStats created = new TransactionStats();
+			methodStats = stats.putIfAbsent(method, created);
+			if (methodStats == null) {
+				methodStats = created;
+				register(created, objectNameOf(method));
+			}
+		}
+		return methodStats;
+	}
+
+	public void entityManagerOpened() {
+		int current = open.incrementAndGet();
+		int max = peak.get();
+		while (current > max && !peak.compareAndSet(max, current)) {
+			max = peak.get();
+		}
+	}
+
+	public void entityManagerClosed() {
+		open.decrementAndGet();
+	}
+
+	@Override
+	public int getOpenEntityManagers() {
+		return open.get();
+	}
+
+	@Override
+	public int getPeakOpenEntityManagers() {
+		return peak.get();
+	}
+
+	@Override
+	public long getTransactionCount() {
+		long count = 0;
+		for (TransactionStats methodStats : stats.values()) {
+			count += methodStats.getTransactionCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getCommitCount() {
+		long count = 0;
+		for (TransactionStats methodStats : stats.values()) {
+			count += methodStats.getCommitCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getRollbackCount() {
+		long count = 0;
+		for (TransactionStats methodStats : stats.values()) {
+			count += methodStats.getRollbackCount();
+		}
+		return count;
+	}
+
+	@Override
+	public String[] getSlowestControllers() {
+		List<Entry<ControllerMethod, TransactionStats>> entries = new ArrayList<>(stats.entrySet());
+		Collections.sort(entries, new Comparator<Entry<ControllerMethod, TransactionStats>>() {
+			@Override
+			public int compare(Entry<ControllerMethod, TransactionStats> a, Entry<ControllerMethod, TransactionStats> b) {
+				return Double.compare(b.getValue().getMeanTransactionMillis(), a.getValue().getMeanTransactionMillis());
+			}
+		});
+
+		List<String> slowest = new ArrayList<>();
+		for (Entry<ControllerMethod, TransactionStats> entry : entries.subList(0, Math.min(10, entries.size()))) {
+			slowest.add(String.format("%s: %.2fms (%d transactions)", nameOf(entry.getKey()),
+					entry.getValue().getMeanTransactionMillis(), entry.getValue().getTransactionCount()));
+		}
+		return slowest.toArray(new String[slowest.size()]);
+	}
+
+	/**
+	 * Publishes another MBean under the <code>br.com.caelum.vraptor.jpa</code> domain, to be
+	 * unregistered with the metrics.
+	 */
+	public void register(Object mbean, String properties) {
+		register(mbean, objectName(properties));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				logger.debug("Could not unregister {}", name, e);
+			}
+		}
+	}
+
+	private ObjectName objectNameOf(ControllerMethod method) {
+		return objectName("type=Transaction,name=" + ObjectName.quote(nameOf(method)));
+	}
+
+	private ObjectName objectName(String properties) {
+		try {
+			return new ObjectName(DOMAIN + ":" + properties);
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String nameOf(ControllerMethod method) {
+		return method.getController().getType().getName() + "#" + method.getMethod().getName();
+	}
+
+	private void register(Object mbean, ObjectName name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			registered.add(name);
+		} catch (JMException e) {
+			logger.warn("Could not register JPA metrics as {}: {}", name, e.getMessage());
+		}
+	}
+}
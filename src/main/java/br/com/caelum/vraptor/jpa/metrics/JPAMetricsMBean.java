@@ -0,0 +1,38 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+/**
+ * JMX view of the application wide JPA metrics.
+ */
+public interface JPAMetricsMBean {
+
+	int getOpenEntityManagers();
+
+	int getPeakOpenEntityManagers();
+
+	long getTransactionCount();
+
+	long getCommitCount();
+
+	long getRollbackCount();
+
+	/**
+	 * @return the controller methods that held their transactions for longer, on average.
+	 */
+	String[] getSlowestControllers();
+}
@@ -0,0 +1,82 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Counts the queries of a request and the time spent running them, by {@link #record(long)}.
+ * With Hibernate, every statement the session executes is recorded, including lazy loads of
+ * associations and flushes.
+ *
+ * With other providers, queries are counted by {@link #watch(Object, Class)}, that wraps them in
+ * a proxy of the JPA interface so their executions are timed, and finds are recorded as they
+ * return. Only what goes through the {@link javax.persistence.EntityManager} is counted, and
+ * the wrapped queries can't be cast to the provider's query types: use
+ * {@link javax.persistence.Query#unwrap(Class)}, that reaches the provider's query.
+ */
+public class QueryCounter {
+
+	private int count;
+	private long nanos;
+
+	public void record(long queryNanos) {
+		count++;
+		nanos += queryNanos;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Wraps the query so each execution is recorded. Setters keep returning the wrapper, and
+	 * <code>unwrap</code> is given to the wrapped query.
+	 */
+	public <Q> Q watch(final Q query, Class<Q> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				boolean execution = isExecution(method);
+				long start = execution ? System.nanoTime() : 0;
+				try {
+					Object result = method.invoke(query, args);
+					return result == query ? proxy : result;
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					if (execution) {
+						record(System.nanoTime() - start);
+					}
+				}
+			}
+		}));
+	}
+
+	private boolean isExecution(Method method) {
+		String name = method.getName();
+		return name.equals("getResultList") || name.equals("getSingleResult") || name.equals("executeUpdate")
+				|| name.equals("execute");
+	}
+}
@@ -0,0 +1,185 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * Flags the transactions that ran more than <code>br.com.caelum.vraptor.jpa.slowrequest.queries</code>
+ * queries (100 by default) or took more than <code>br.com.caelum.vraptor.jpa.slowrequest.millis</code>
+ * milliseconds (1000 by default), logging them as warnings with their controller method.
+ *
+ * The flagged methods are counted in windows of <code>br.com.caelum.vraptor.jpa.slowrequest.window</code>
+ * seconds (600 by default), and the <code>br.com.caelum.vraptor.jpa.slowrequest.top</code> methods
+ * (10 by default) flagged more times in the current and previous windows are the top offenders.
+ */
+public class SlowRequests implements SlowRequestsMBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlowRequests.class);
+
+	private final int maxQueries;
+	private final long maxNanos;
+	private final long windowNanos;
+	private final int top;
+	private final AtomicLong flagged = new AtomicLong();
+	private volatile Window current;
+	private volatile Window previous;
+
+	public SlowRequests(Environment environment) {
+		this(Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.slowrequest.queries", "100").trim()),
+				Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.slowrequest.millis", "1000").trim()),
+				Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.slowrequest.window", "600").trim()),
+				Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.slowrequest.top", "10").trim()));
+	}
+
+	public SlowRequests(int maxQueries, long maxMillis, long windowSeconds, int top) {
+		this.maxQueries = maxQueries;
+		this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+		this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+		this.top = top;
+		this.current = new Window(System.nanoTime());
+		this.previous = new Window(current.start);
+	}
+
+	/**
+	 * @return true if the transaction was flagged.
+	 */
+	public boolean record(TransactionSample sample) {
+		QueryCounter queries = sample.getQueries();
+		if (queries.getCount() <= maxQueries && sample.getTotalNanos() <= maxNanos) {
+			return false;
+		}
+		flagged.incrementAndGet();
+		window().flag(sample.getMethod(), queries.getCount());
+		logger.warn("{} ran {} queries ({} ms) in a {} ms transaction", nameOf(sample.getMethod()), queries.getCount(),
+				TimeUnit.NANOSECONDS.toMillis(queries.getNanos()), TimeUnit.NANOSECONDS.toMillis(sample.getTotalNanos()));
+		return true;
+	}
+
+	private Window window() {
+		long now = System.nanoTime();
+		Window window = current;
+		if (now - window.start >= windowNanos) {
+			synchronized (this) {
+				if (current == window) {
+					previous = window;
+					current = new Window(now);
+				}
+				window = current;
+			}
+		}
+		return window;
+	}
+
+	@Override
+	public long getFlaggedRequests() {
+		return flagged.get();
+	}
+
+	@Override
+	public String[] getTopOffenders() {
+		window();
+		Map<ControllerMethod, Offender> merged = new HashMap<>();
+		for (Window window : new Window[] { previous, current }) {
+			for (Map.Entry<ControllerMethod, Offender> entry : window.offenders.entrySet()) {
+				Offender offender = merged.get(entry.getKey());
+				if (offender == null) {
+					offender = new Offender();
+					merged.put(entry.getKey(), offender);
+				}
+				offender.add(entry.getValue());
+			}
+		}
+
+		List<Map.Entry<ControllerMethod, Offender>> entries = new ArrayList<>(merged.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<ControllerMethod, Offender>>() {
+			@Override
+			public int compare(Map.Entry<ControllerMethod, Offender> a, Map.Entry<ControllerMethod, Offender> b) {
+				return Long.compare(b.getValue().times.get(), a.getValue().times.get());
+			}
+		});
+
+		List<String> offenders = new ArrayList<>();
+		for (Map.Entry<ControllerMethod, Offender> entry : entries.subList(0, Math.min(top, entries.size()))) {
+			offenders.add(String.format("%s: flagged %d times, up to %d queries", nameOf(entry.getKey()),
+					entry.getValue().times.get(), entry.getValue().maxQueries.get()));
+		}
+		return offenders.toArray(new String[offenders.size()]);
+	}
+
+	private String nameOf(ControllerMethod method) {
+		return method.getController().getType().getName() + "#" + method.getMethod().getName();
+	}
+
+	private static class Window {
+		private final long start;
+		private final ConcurrentMap<ControllerMethod, Offender> offenders = new ConcurrentHashMap<>();
+
+		Window(long start) {
+			this.start = start;
+		}
+
+		void flag(ControllerMethod method, int queries) {
+			Offender offender = offenders.get(method);
+			if (offender == null) {
+				Offender created = new Offender();
+				offender = offenders.putIfAbsent(method, created);
+				if (offender == null) {
+					offender = created;
+				}
+			}
+			offender.flag(queries);
+		}
+	}
+
+	private static class Offender {
+		private final AtomicLong times = new AtomicLong();
+		private final AtomicLong maxQueries = new AtomicLong();
+
+		void flag(long queries) {
+			times.incrementAndGet();
+			raiseMax(queries);
+		}
+
+		void add(Offender other) {
+			times.addAndGet(other.times.get());
+			raiseMax(other.maxQueries.get());
+		}
+
+		private void raiseMax(long queries) {
+			long max = maxQueries.get();
+			while (queries > max && !maxQueries.compareAndSet(max, queries)) {
+				max = maxQueries.get();
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+
+/**
+ * The timings of a single request transaction, split in {@link Phase}s. The time between two
+ * calls to {@link #enter(Phase)} is accounted to the first phase, and the time after
+ * {@link #leave()} to none. The queries run during the
+ * transaction are counted by {@link #getQueries()}.
+ */
+public class TransactionSample {
+
+	public enum Phase {
+		BEGIN, EXECUTION, FLUSH, BEFORE_COMMIT, COMMIT, ROLLBACK
+	}
+
+	private final ControllerMethod method;
+	private final Map<Phase, Long> nanos = new EnumMap<>(Phase.class);
+	private final QueryCounter queries = new QueryCounter();
+	private final long start;
+	private long lap;
+	private Phase current;
+	private long total;
+	private boolean committed;
+	private boolean rolledBack;
+
+	public TransactionSample(ControllerMethod method) {
+		this.method = method;
+		this.start = System.nanoTime();
+		this.lap = start;
+	}
+
+	public void enter(Phase phase) {
+		closeLap();
+		current = phase;
+	}
+
+	/**
+	 * Stops accounting the time to the current phase, until the next one is entered.
+	 */
+	public void leave() {
+		closeLap();
+		current = null;
+	}
+
+	public void committed() {
+		committed = true;
+	}
+
+	public void rolledBack() {
+		rolledBack = true;
+	}
+
+	public TransactionSample finish() {
+		closeLap();
+		current = null;
+		total = lap - start;
+		return this;
+	}
+
+	private void closeLap() {
+		long now = System.nanoTime();
+		if (current != null) {
+			nanos.put(current, getNanos(current) + now - lap);
+		}
+		lap = now;
+	}
+
+	public ControllerMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the time spent in the phase, or zero if the transaction never got there.
+	 */
+	public long getNanos(Phase phase) {
+		Long spent = nanos.get(phase);
+		return spent == null ? 0 : spent;
+	}
+
+	public boolean hasPhase(Phase phase) {
+		return nanos.containsKey(phase);
+	}
+
+	public long getTotalNanos() {
+		return total;
+	}
+
+	public QueryCounter getQueries() {
+		return queries;
+	}
+
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	public boolean isRolledBack() {
+		return rolledBack;
+	}
+}
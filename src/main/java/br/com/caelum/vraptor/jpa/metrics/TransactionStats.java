@@ -0,0 +1,150 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.caelum.vraptor.jpa.metrics.TransactionSample.Phase;
+
+/**
+ * Aggregated timings of the transactions of a controller method.
+ */
+public class TransactionStats implements TransactionStatsMBean {
+
+	private final LatencyHistogram transactions = new LatencyHistogram();
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong rollbacks = new AtomicLong();
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong queryNanos = new AtomicLong();
+	private final AtomicLong maxQueries = new AtomicLong();
+
+	public TransactionStats() {
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new LatencyHistogram());
+		}
+	}
+
+	public void record(TransactionSample sample) {
+		transactions.record(sample.getTotalNanos());
+		for (Phase phase : Phase.values()) {
+			if (sample.hasPhase(phase)) {
+				phases.get(phase).record(sample.getNanos(phase));
+			}
+		}
+		if (sample.isCommitted()) {
+			commits.incrementAndGet();
+		}
+		if (sample.isRolledBack()) {
+			rollbacks.incrementAndGet();
+		}
+		int count = sample.getQueries().getCount();
+		queries.addAndGet(count);
+		queryNanos.addAndGet(sample.getQueries().getNanos());
+		long max = maxQueries.get();
+		while (count > max && !maxQueries.compareAndSet(max, count)) {
+			max = maxQueries.get();
+		}
+	}
+
+	public LatencyHistogram getTransactions() {
+		return transactions;
+	}
+
+	public LatencyHistogram getPhase(Phase phase) {
+		return phases.get(phase);
+	}
+
+	@Override
+	public long getTransactionCount() {
+		return transactions.getCount();
+	}
+
+	@Override
+	public long getCommitCount() {
+		return commits.get();
+	}
+
+	@Override
+	public long getRollbackCount() {
+		return rollbacks.get();
+	}
+
+	@Override
+	public double getMeanTransactionMillis() {
+		return transactions.getMeanMillis();
+	}
+
+	@Override
+	public double get99thPercentileTransactionMillis() {
+		return transactions.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getMaxTransactionMillis() {
+		return transactions.getMaxMillis();
+	}
+
+	@Override
+	public double getMeanQueries() {
+		long count = transactions.getCount();
+		return count == 0 ? 0 : (double) queries.get() / count;
+	}
+
+	@Override
+	public long getMaxQueries() {
+		return maxQueries.get();
+	}
+
+	@Override
+	public double getMeanQueryMillis() {
+		long count = transactions.getCount();
+		return count == 0 ? 0 : queryNanos.get() / 1e6 / count;
+	}
+
+	@Override
+	public double getMeanBeginMillis() {
+		return phases.get(Phase.BEGIN).getMeanMillis();
+	}
+
+	@Override
+	public double getMeanExecutionMillis() {
+		return phases.get(Phase.EXECUTION).getMeanMillis();
+	}
+
+	@Override
+	public double getMeanFlushMillis() {
+		return phases.get(Phase.FLUSH).getMeanMillis();
+	}
+
+	@Override
+	public double getMeanBeforeCommitMillis() {
+		return phases.get(Phase.BEFORE_COMMIT).getMeanMillis();
+	}
+
+	@Override
+	public double getMeanCommitMillis() {
+		return phases.get(Phase.COMMIT).getMeanMillis();
+	}
+
+	@Override
+	public double getMeanRollbackMillis() {
+		return phases.get(Phase.ROLLBACK).getMeanMillis();
+	}
+}
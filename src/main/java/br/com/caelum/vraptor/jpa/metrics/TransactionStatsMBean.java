@@ -0,0 +1,66 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.metrics;
+
+/**
+ * JMX view of the transactions of a controller method. Times are in milliseconds.
+ */
+public interface TransactionStatsMBean {
+
+	long getTransactionCount();
+
+	long getCommitCount();
+
+	long getRollbackCount();
+
+	double getMeanTransactionMillis();
+
+	double get99thPercentileTransactionMillis();
+
+	double getMaxTransactionMillis();
+
+	/**
+	 * @return the mean number of queries and finds per transaction.
+	 */
+	double getMeanQueries();
+
+	long getMaxQueries();
+
+	/**
+	 * @return the mean time per transaction spent running queries and finds.
+	 */
+	double getMeanQueryMillis();
+
+	double getMeanBeginMillis();
+
+	double getMeanExecutionMillis();
+
+	/**
+	 * @return the mean time of the flush done before {@link br.com.caelum.vraptor.jpa.event.BeforeCommit}.
+	 */
+	double getMeanFlushMillis();
+
+	double getMeanBeforeCommitMillis();
+
+	/**
+	 * @return the mean time of the commit itself, without the flush and the
+	 *         {@link br.com.caelum.vraptor.jpa.event.AfterCommit} observers.
+	 */
+	double getMeanCommitMillis();
+
+	double getMeanRollbackMillis();
+}
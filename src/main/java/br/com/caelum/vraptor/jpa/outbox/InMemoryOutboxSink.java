@@ -0,0 +1,48 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.outbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Alternative;
+
+/**
+ * An {@link OutboxSink} that keeps the published messages in memory, for tests. Enable it as
+ * an alternative in your test beans.xml.
+ */
+@Alternative
+@ApplicationScoped
+public class InMemoryOutboxSink implements OutboxSink {
+
+	private final List<OutboxMessage> messages = new CopyOnWriteArrayList<>();
+
+	@Override
+	public void publish(OutboxMessage message) {
+		messages.add(message);
+	}
+
+	public List<OutboxMessage> getMessages() {
+		return new ArrayList<>(messages);
+	}
+
+	public void clear() {
+		messages.clear();
+	}
+}
@@ -0,0 +1,78 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.outbox;
+
+import java.sql.Timestamp;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+/**
+ * Writes the messages of a request to the outbox table, in the request transaction, as they
+ * are added. So the messages are only published if the transaction commits, and they aren't
+ * lost if the application stops before publishing them. A retried method adds its messages
+ * again, since the failed attempt is rolled back with them.
+ *
+ * Writing begins a deferred transaction, so a request that only adds messages still commits
+ * them. Each message is a single row insert with positional parameters, which every database
+ * accepts.
+ *
+ * The table is <code>br.com.caelum.vraptor.jpa.outbox.table</code>, <code>outbox</code> by
+ * default, with a generated <code>id</code> and the columns <code>message_key</code>,
+ * <code>type</code>, <code>payload</code> and <code>created_at</code>.
+ */
+@RequestScoped
+public class Outbox {
+
+	private final EntityManager manager;
+	private final Environment environment;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected Outbox() {
+		this(null, null);
+	}
+
+	@Inject
+	public Outbox(EntityManager manager, Environment environment) {
+		this.manager = manager;
+		this.environment = environment;
+	}
+
+	/**
+	 * Writes a message, to be published when the transaction commits.
+	 *
+	 * @param key messages with the same key are published in order; null is the same as empty.
+	 */
+	public void add(String key, String type, String payload) {
+		manager.createNativeQuery("insert into " + table(environment)
+				+ " (message_key, type, payload, created_at) values (?, ?, ?, ?)")
+				.setParameter(1, key == null ? "" : key)
+				.setParameter(2, type)
+				.setParameter(3, payload)
+				.setParameter(4, new Timestamp(System.currentTimeMillis()))
+				.executeUpdate();
+	}
+
+	static String table(Environment environment) {
+		return environment.get("br.com.caelum.vraptor.jpa.outbox.table", "outbox").trim();
+	}
+}
@@ -0,0 +1,71 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.outbox;
+
+import java.util.Date;
+
+/**
+ * A message written to the outbox table.
+ */
+public class OutboxMessage {
+
+	private final Long id;
+	private final String key;
+	private final String type;
+	private final String payload;
+	private final Date createdAt;
+
+	public OutboxMessage(Long id, String key, String type, String payload, Date createdAt) {
+		this.id = id;
+		this.key = key;
+		this.type = type;
+		this.payload = payload;
+		this.createdAt = createdAt;
+	}
+
+	/**
+	 * @return the id given by the database, or null before the message is written.
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the key that orders the messages: messages with the same key are published in
+	 * the order they were written.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	@Override
+	public String toString() {
+		return type + "[" + key + "]#" + id;
+	}
+}
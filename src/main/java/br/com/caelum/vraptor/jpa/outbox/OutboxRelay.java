@@ -0,0 +1,367 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.outbox;
+
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.events.VRaptorInitialized;
+import br.com.caelum.vraptor.jpa.Tenants;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Drains the outbox table into the {@link OutboxSink}, when
+ * <code>br.com.caelum.vraptor.jpa.outbox.relay</code> is <code>true</code>.
+ *
+ * Every <code>br.com.caelum.vraptor.jpa.outbox.interval</code> milliseconds (1000 by default)
+ * it drains the table in pages of <code>br.com.caelum.vraptor.jpa.outbox.batchsize</code>
+ * messages, oldest first, and publishes them on <code>br.com.caelum.vraptor.jpa.outbox.threads</code>
+ * threads (4 by default). Messages with the same key are published by the same thread, in
+ * order, and a failure blocks the following ones of that key until the next drain, while the
+ * next pages go on with the other keys. Each page is read in a transaction of its own, committed
+ * before publishing, and the published messages are deleted in another, so no transaction nor
+ * connection is held while the sink publishes. Delivery is at least once.
+ *
+ * Only one relay should drain a table, as the messages are not locked while published.
+ *
+ * When each tenant has its own factory, see {@link Tenants}, the outbox tables of the tenants with
+ * an open factory are drained after the one of the main factory, or only of the ones listed in
+ * <code>br.com.caelum.vraptor.jpa.outbox.tenants</code>. The relay never builds a factory, nor
+ * keeps one from being closed for being idle, so the messages left in the table of an idle tenant
+ * wait for its next request. When the tenants share the factory, they share the outbox table too.
+ */
+@ApplicationScoped
+public class OutboxRelay {
+
+	private static final Logger logger = LoggerFactory.getLogger(OutboxRelay.class);
+
+	private final EntityManagerFactory factory;
+	private final Environment environment;
+	private final Instance<OutboxSink> sinks;
+	private final Tenants tenants;
+	private ScheduledExecutorService scheduler;
+	private ExecutorService publishers;
+
+	/**
+	 * @deprecated CDI eyes only.
+	 */
+	protected OutboxRelay() {
+		this(null, null, null, null);
+	}
+
+	@Inject
+	public OutboxRelay(EntityManagerFactory factory, Environment environment, Instance<OutboxSink> sinks,
+			Tenants tenants) {
+		this.factory = factory;
+		this.environment = environment;
+		this.sinks = sinks;
+		this.tenants = tenants;
+	}
+
+	public void start(@Observes VRaptorInitialized event) {
+		if (!Boolean.parseBoolean(environment.get("br.com.caelum.vraptor.jpa.outbox.relay", "false"))) {
+			return;
+		}
+		if (sinks.isUnsatisfied() || sinks.isAmbiguous()) {
+			logger.warn("The outbox relay needs exactly one OutboxSink, it will not start");
+			return;
+		}
+		long interval = Long.parseLong(environment.get("br.com.caelum.vraptor.jpa.outbox.interval", "1000").trim());
+		int threads = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.outbox.threads", "4").trim());
+
+		publishers = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("vraptor-jpa-outbox-%d").setDaemon(true).build());
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("vraptor-jpa-outbox-relay").setDaemon(true).build());
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					drain();
+				} catch (RuntimeException e) {
+					logger.error("Could not drain the outbox", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Publishes the messages of the main factory and of the tenants.
+	 *
+	 * @return the number of messages published.
+	 */
+	public int drain() {
+		int published = drain(factory);
+		if (!tenants.isFactoryPerTenant()) {
+			return published;
+		}
+		for (String tenant : tenantsToDrain()) {
+			try {
+				EntityManagerFactory tenantFactory = tenants.borrow(tenant);
+				if (tenantFactory == null) {
+					continue;
+				}
+				try {
+					published += drain(tenantFactory);
+				} finally {
+					tenants.giveBack(tenantFactory);
+				}
+			} catch (RuntimeException e) {
+				logger.error("Could not drain the outbox of tenant {}", tenant, e);
+			}
+		}
+		return published;
+	}
+
+	private List<String> tenantsToDrain() {
+		String listed = environment.get("br.com.caelum.vraptor.jpa.outbox.tenants", "").trim();
+		if (listed.isEmpty()) {
+			return tenants.names();
+		}
+		List<String> names = new ArrayList<>();
+		for (String tenant : listed.split(",")) {
+			if (!tenant.trim().isEmpty()) {
+				names.add(tenant.trim());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Publishes the messages in the table, page by page, skipping the keys that failed.
+	 */
+	private int drain(EntityManagerFactory factory) {
+		int batchSize = Integer.parseInt(environment.get("br.com.caelum.vraptor.jpa.outbox.batchsize", "100").trim());
+		Set<String> blocked = new HashSet<>();
+		long after = Long.MIN_VALUE;
+		int published = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			List<OutboxMessage> page = read(factory, after, batchSize);
+			List<Long> ids = publish(unblocked(page, blocked), blocked);
+			delete(factory, ids);
+			published += ids.size();
+			if (page.size() < batchSize) {
+				return published;
+			}
+			after = page.get(page.size() - 1).getId();
+		}
+		return published;
+	}
+
+	private List<OutboxMessage> read(EntityManagerFactory factory, final long after, final int batchSize) {
+		return inTransaction(factory, new Work<List<OutboxMessage>>() {
+			@Override
+			public List<OutboxMessage> run(EntityManager manager) {
+				return read(manager, after, batchSize);
+			}
+		});
+	}
+
+	private void delete(EntityManagerFactory factory, final List<Long> ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		inTransaction(factory, new Work<Void>() {
+			@Override
+			public Void run(EntityManager manager) {
+				delete(manager, ids);
+				return null;
+			}
+		});
+	}
+
+	private <T> T inTransaction(EntityManagerFactory factory, Work<T> work) {
+		EntityManager manager = factory.createEntityManager();
+		try {
+			EntityTransaction transaction = manager.getTransaction();
+			transaction.begin();
+			try {
+				T result = work.run(manager);
+				transaction.commit();
+				return result;
+			} finally {
+				if (transaction.isActive()) {
+					transaction.rollback();
+				}
+			}
+		} finally {
+			manager.close();
+		}
+	}
+
+	private List<OutboxMessage> read(EntityManager manager, long after, int batchSize) {
+		Query select = manager.createNativeQuery("select id, message_key, type, payload, created_at from "
+				+ Outbox.table(environment) + " where id > ? order by id");
+		select.setParameter(1, after);
+		select.setMaxResults(batchSize);
+
+		List<OutboxMessage> messages = new ArrayList<>();
+		for (Object row : select.getResultList()) {
+			Object[] columns = (Object[]) row;
+			messages.add(new OutboxMessage(((Number) columns[0]).longValue(), text(columns[1]),
+					text(columns[2]), text(columns[3]), (Date) columns[4]));
+		}
+		return messages;
+	}
+
+	/**
+	 * Skips the messages after a failure of their key, to keep them in order.
+	 */
+	private List<OutboxMessage> unblocked(List<OutboxMessage> messages, Set<String> blocked) {
+		List<OutboxMessage> unblocked = new ArrayList<>();
+		for (OutboxMessage message : messages) {
+			if (!blocked.contains(message.getKey())) {
+				unblocked.add(message);
+			}
+		}
+		return unblocked;
+	}
+
+	/**
+	 * Payloads are usually kept in CLOB columns.
+	 */
+	private String text(Object column) {
+		if (column instanceof Clob) {
+			Clob clob = (Clob) column;
+			try {
+				return clob.getSubString(1, (int) clob.length());
+			} catch (SQLException e) {
+				throw new PersistenceException("Could not read outbox message", e);
+			}
+		}
+		return (String) column;
+	}
+
+	/**
+	 * Publishes each key in a task, and returns the ids of the messages published. The keys
+	 * that could not be published are added to the blocked ones.
+	 */
+	private List<Long> publish(List<OutboxMessage> messages, Set<String> blocked) {
+		if (messages.isEmpty()) {
+			return new ArrayList<>();
+		}
+		Map<String, List<OutboxMessage>> byKey = new LinkedHashMap<>();
+		for (OutboxMessage message : messages) {
+			List<OutboxMessage> sameKey = byKey.get(message.getKey());
+			if (sameKey == null) {
+				sameKey = new ArrayList<>();
+				byKey.put(message.getKey(), sameKey);
+			}
+			sameKey.add(message);
+		}
+
+		OutboxSink sink = sinks.get();
+		ExecutorService executor = publishers == null ? MoreExecutors.sameThreadExecutor() : publishers;
+		Map<String, Future<List<Long>>> tasks = new LinkedHashMap<>();
+		for (Entry<String, List<OutboxMessage>> sameKey : byKey.entrySet()) {
+			tasks.put(sameKey.getKey(), executor.submit(publishing(sink, sameKey.getValue())));
+		}
+
+		List<Long> published = new ArrayList<>();
+		for (Entry<String, Future<List<Long>>> task : tasks.entrySet()) {
+			try {
+				List<Long> ids = task.getValue().get();
+				published.addAll(ids);
+				if (ids.size() < byKey.get(task.getKey()).size()) {
+					blocked.add(task.getKey());
+				}
+			} catch (ExecutionException e) {
+				logger.error("Could not publish outbox messages", e.getCause());
+				blocked.add(task.getKey());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return published;
+	}
+
+	private Callable<List<Long>> publishing(final OutboxSink sink, final List<OutboxMessage> sameKey) {
+		return new Callable<List<Long>>() {
+			@Override
+			public List<Long> call() {
+				List<Long> published = new ArrayList<>();
+				for (OutboxMessage message : sameKey) {
+					try {
+						sink.publish(message);
+						published.add(message.getId());
+					} catch (Exception e) {
+						logger.warn("Could not publish {}, will try again on the next drain", message, e);
+						break;
+					}
+				}
+				return published;
+			}
+		};
+	}
+
+	private void delete(EntityManager manager, List<Long> ids) {
+		StringBuilder sql = new StringBuilder("delete from ").append(Outbox.table(environment)).append(" where id in (");
+		for (int i = 0; i < ids.size(); i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		Query delete = manager.createNativeQuery(sql.append(")").toString());
+		for (int i = 0; i < ids.size(); i++) {
+			delete.setParameter(i + 1, ids.get(i));
+		}
+		delete.executeUpdate();
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			publishers.shutdown();
+		}
+	}
+
+	private interface Work<T> {
+		T run(EntityManager manager);
+	}
+}
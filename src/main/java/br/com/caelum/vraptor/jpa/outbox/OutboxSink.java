@@ -0,0 +1,31 @@
+/***
+ * Copyright (c) 2009 Caelum - www.caelum.com.br/opensource
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.com.caelum.vraptor.jpa.outbox;
+
+/**
+ * Implement this interface, as a CDI bean, to publish the messages of the outbox, e.g. to a
+ * message broker. It is called by the {@link OutboxRelay} threads, never by the request ones.
+ */
+public interface OutboxSink {
+
+	/**
+	 * Publishes the message. If it throws, the message and the next ones with the same key
+	 * stay in the outbox, to be published again by the next drain.
+	 */
+	void publish(OutboxMessage message) throws Exception;
+
+}
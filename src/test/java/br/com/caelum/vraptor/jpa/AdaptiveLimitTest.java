@@ -0,0 +1,75 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveLimitTest {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(1000);
+
+	@Test
+	public void shouldRejectOverTheLimit() throws InterruptedException {
+		AdaptiveLimit limit = new AdaptiveLimit(2, 1, 10, 500, 0.5);
+
+		assertTrue(limit.acquire(0, TimeUnit.MILLISECONDS));
+		assertTrue(limit.acquire(0, TimeUnit.MILLISECONDS));
+		assertFalse(limit.acquire(0, TimeUnit.MILLISECONDS));
+		assertEquals(1, limit.getRejected());
+	}
+
+	@Test
+	public void shouldCutTheLimitWhenTransactionsAreSlow() throws InterruptedException {
+		AdaptiveLimit limit = new AdaptiveLimit(8, 1, 10, 500, 0.5);
+
+		limit.acquire(0, TimeUnit.MILLISECONDS);
+		limit.release(SLOW);
+		assertEquals(4, limit.getLimit());
+
+		for (int i = 0; i < 5; i++) {
+			limit.acquire(0, TimeUnit.MILLISECONDS);
+			limit.release(SLOW);
+		}
+		assertEquals(1, limit.getLimit());
+	}
+
+	@Test
+	public void shouldRaiseTheLimitWhenBusyAndFast() throws InterruptedException {
+		AdaptiveLimit limit = new AdaptiveLimit(2, 1, 3, 500, 0.5);
+
+		limit.acquire(0, TimeUnit.MILLISECONDS);
+		limit.release(FAST);
+		assertEquals(3, limit.getLimit());
+
+		limit.acquire(0, TimeUnit.MILLISECONDS);
+		limit.acquire(0, TimeUnit.MILLISECONDS);
+		limit.release(FAST);
+		assertEquals(3, limit.getLimit());
+	}
+
+	@Test
+	public void shouldWaitForAPermitUntilTheTimeout() throws InterruptedException {
+		final AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1, 500, 0.5);
+		limit.acquire(0, TimeUnit.MILLISECONDS);
+
+		assertFalse(limit.acquire(20, TimeUnit.MILLISECONDS));
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				limit.release(FAST);
+			}
+		}.start();
+		assertTrue(limit.acquire(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,65 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerMethod;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+
+public class BulkheadsTest {
+
+	private Bulkheads bulkheads;
+
+	@Before
+	public void setUp() {
+		Environment environment = mock(Environment.class, new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				Object[] arguments = invocation.getArguments();
+				return arguments.length == 2 ? arguments[1] : null;
+			}
+		});
+		bulkheads = new Bulkheads(environment, mock(JPAMetrics.class), null);
+		bulkheads.init();
+	}
+
+	@Test
+	public void shouldGroupTheMethodsByTheirBulkhead() throws Exception {
+		AdaptiveLimit main = bulkheads.limitOf(method(Controller.class, "list"));
+		AdaptiveLimit reports = bulkheads.limitOf(method(Controller.class, "report"));
+
+		assertNotSame(main, reports);
+		assertSame(main, bulkheads.limitOf(method(Controller.class, "show")));
+		assertSame(reports, bulkheads.limitOf(method(ReportController.class, "monthly")));
+	}
+
+	private ControllerMethod method(Class<?> type, String name) throws NoSuchMethodException {
+		return DefaultControllerMethod.instanceFor(type, type.getMethod(name));
+	}
+
+	static class Controller {
+		public void list() {
+		}
+
+		public void show() {
+		}
+
+		@Bulkhead("reports")
+		public void report() {
+		}
+	}
+
+	@Bulkhead("reports")
+	static class ReportController {
+		public void monthly() {
+		}
+	}
+}
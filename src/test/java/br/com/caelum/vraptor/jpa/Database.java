@@ -0,0 +1,51 @@
+package br.com.caelum.vraptor.jpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+/**
+ * The in-memory H2 database of the tests that need a real provider, created once per run.
+ */
+public class Database {
+
+    private static EntityManagerFactory factory;
+
+    public static synchronized EntityManagerFactory factory() {
+        if (factory == null) {
+            factory = Persistence.createEntityManagerFactory("test");
+        }
+        return factory;
+    }
+
+    /**
+     * Deletes every item and category, so each test starts with empty tables.
+     */
+    public static void clean() {
+        EntityManager manager = factory().createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            manager.createQuery("delete from Item").executeUpdate();
+            manager.createQuery("delete from Category").executeUpdate();
+            manager.getTransaction().commit();
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Saves the entities in a transaction of their own.
+     */
+    public static void save(Object... entities) {
+        EntityManager manager = factory().createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            for (Object entity : entities) {
+                manager.persist(entity);
+            }
+            manager.getTransaction().commit();
+        } finally {
+            manager.close();
+        }
+    }
+}
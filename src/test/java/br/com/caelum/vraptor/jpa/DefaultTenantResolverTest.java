@@ -0,0 +1,55 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+public class DefaultTenantResolverTest {
+
+    private @Mock HttpServletRequest request;
+    private @Mock Environment environment;
+
+    private DefaultTenantResolver resolver;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.resolver"), anyString())).thenReturn("header");
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.header"), anyString())).thenReturn("X-Tenant");
+        resolver = new DefaultTenantResolver(request, environment);
+    }
+
+    @Test
+    public void shouldResolveTheTenantFromTheHeader() {
+        when(request.getHeader("X-Tenant")).thenReturn("acme");
+
+        assertEquals("acme", resolver.resolve());
+    }
+
+    @Test
+    public void shouldResolveTheTenantFromTheSubdomain() {
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.resolver"), anyString())).thenReturn("subdomain");
+        when(request.getServerName()).thenReturn("acme.example.com");
+
+        assertEquals("acme", resolver.resolve());
+    }
+
+    @Test
+    public void shouldNotTakeAnAddressAsASubdomain() {
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.resolver"), anyString())).thenReturn("subdomain");
+        when(request.getServerName()).thenReturn("10.0.0.1");
+
+        assertNull(resolver.resolve());
+    }
+}
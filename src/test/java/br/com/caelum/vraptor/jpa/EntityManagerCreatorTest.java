@@ -1,34 +1,283 @@
 package br.com.caelum.vraptor.jpa;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+import java.util.List;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import javax.persistence.metamodel.Metamodel;
+import javax.transaction.Transactional;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerMethod;
+import br.com.caelum.vraptor.core.MethodInfo;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.http.ParanamerNameProvider;
+import br.com.caelum.vraptor.jpa.event.Change;
+import br.com.caelum.vraptor.jpa.event.Change.Operation;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+import br.com.caelum.vraptor.jpa.metrics.QueryCounter;
+
 public class EntityManagerCreatorTest {
 
     private @Mock EntityManagerFactory factory;
     private @Mock EntityManager entityManager;
+    private @Mock Metamodel metamodel;
+    private @Mock Environment environment;
+    private @Mock ReadReplicas replicas;
+    private @Mock EntityManagerFactory replica;
+    private @Mock JPAMetrics metrics;
+    private @Mock Tenants tenants;
+    private TransactionAttributes attributes;
     
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        attributes = new TransactionAttributes();
     }
     
     @Test
-    public void shouldReturnCreatedInstance() {
+    public void shouldDelegateToCreatedInstance() {
         when(factory.createEntityManager()).thenReturn(entityManager);
+        when(entityManager.find(String.class, 1L)).thenReturn("found");
         
-        EntityManagerCreator creator = new EntityManagerCreator(factory);
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants);
         
-        assertEquals(entityManager, creator.getEntityManager());
+        assertEquals("found", creator.getEntityManager().find(String.class, 1L));
+    }
+
+    @Test
+    public void shouldCreateANewInstanceAfterReset() {
+        EntityManager second = mock(EntityManager.class);
+        when(factory.createEntityManager()).thenReturn(entityManager, second);
+        when(entityManager.isOpen()).thenReturn(true);
+
+        LazyEntityManager lazy = (LazyEntityManager) new EntityManagerCreator(factory, environment, replicas, null,
+                metrics, attributes, tenants).getEntityManager();
+        lazy.find(String.class, 1L);
+        lazy.reset();
+        lazy.find(String.class, 1L);
+
+        verify(entityManager).close();
+        verify(second).find(String.class, 1L);
+    }
+
+    @Test
+    public void shouldRecordEachChangedEntityOnce() {
+        PersistenceUnitUtil util = mock(PersistenceUnitUtil.class);
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(factory.getPersistenceUnitUtil()).thenReturn(util);
+        when(entityManager.merge("updated")).thenReturn("updated");
+        when(util.getIdentifier("created")).thenReturn(1L);
+        when(util.getIdentifier("updated")).thenReturn(2L);
+
+        LazyEntityManager lazy = (LazyEntityManager) new EntityManagerCreator(factory, environment, replicas, null,
+                metrics, attributes, tenants).getEntityManager();
+        lazy.persist("created");
+        lazy.merge("updated");
+        lazy.merge("updated");
+        lazy.remove("updated");
+
+        List<Change> changes = lazy.getChanges();
+        assertEquals(2, changes.size());
+        assertEquals(Operation.PERSIST, changes.get(0).getOperation());
+        assertEquals(1L, changes.get(0).getId());
+        assertEquals(Operation.REMOVE, changes.get(1).getOperation());
+        assertEquals(2L, changes.get(1).getId());
+    }
+
+    @Test
+    public void shouldNotChangeTheHandedOutChangesWhenTheEntityIsRemovedLater() {
+        PersistenceUnitUtil util = mock(PersistenceUnitUtil.class);
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(factory.getPersistenceUnitUtil()).thenReturn(util);
+        when(entityManager.merge("updated")).thenReturn("updated");
+        when(util.getIdentifier("created")).thenReturn(null, 1L);
+        when(util.getIdentifier("updated")).thenReturn(2L);
+
+        LazyEntityManager lazy = (LazyEntityManager) new EntityManagerCreator(factory, environment, replicas, null,
+                metrics, attributes, tenants).getEntityManager();
+        lazy.persist("created");
+        lazy.merge("updated");
+        List<Change> before = lazy.getChanges();
+        Change merged = before.get(1);
+        lazy.remove("updated");
+
+        List<Change> changes = lazy.getChanges();
+        assertEquals(Operation.MERGE, merged.getOperation());
+        assertSame(merged, before.get(1));
+        assertNull(before.get(0).getId());
+        assertEquals(Operation.REMOVE, changes.get(1).getOperation());
+        assertEquals(2L, changes.get(1).getId());
+        assertEquals(1L, changes.get(0).getId());
+    }
+
+    @Test
+    public void shouldCompactTheChangesWhenClearing() {
+        PersistenceUnitUtil util = mock(PersistenceUnitUtil.class);
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(factory.getPersistenceUnitUtil()).thenReturn(util);
+
+        LazyEntityManager lazy = (LazyEntityManager) new EntityManagerCreator(factory, environment, replicas, null,
+                metrics, attributes, tenants).getEntityManager();
+        lazy.persist("first");
+        lazy.persist("second");
+        List<Change> before = lazy.getChanges();
+        lazy.clear();
+        lazy.persist("third");
+
+        verify(util, times(2)).getIdentifier(any());
+        List<Change> changes = lazy.getChanges();
+        assertEquals(2, changes.size());
+        assertEquals(String.class, changes.get(0).getType());
+        assertNull(changes.get(0).getId());
+        assertEquals(2, before.size());
+    }
+
+    @Test
+    public void shouldRecordTheUpdatesFoundByDirtyCheckingWithHibernate() {
+        Database.clean();
+        Item pen = new Item("pen", null);
+        Database.save(pen);
+
+        LazyEntityManager lazy = new LazyEntityManager(Database.factory());
+        try {
+            lazy.getTransaction().begin();
+            lazy.find(Item.class, pen.getId()).setName("pencil");
+            List<Change> beforeFlush = lazy.getChanges();
+            lazy.flush();
+
+            List<Change> changes = lazy.getChanges();
+            assertEquals(0, beforeFlush.size());
+            assertEquals(1, changes.size());
+            assertEquals(Operation.UPDATE, changes.get(0).getOperation());
+            assertEquals(Item.class, changes.get(0).getType());
+            assertEquals(pen.getId(), changes.get(0).getId());
+
+            Item eraser = new Item("eraser", null);
+            lazy.persist(eraser);
+            lazy.remove(eraser);
+            lazy.flush();
+
+            changes = lazy.getChanges();
+            assertEquals(2, changes.size());
+            assertEquals(Operation.REMOVE, changes.get(1).getOperation());
+            assertEquals(eraser.getId(), changes.get(1).getId());
+            lazy.getTransaction().rollback();
+        } finally {
+            lazy.close();
+        }
+    }
+
+    @Test
+    public void shouldCountQueriesAndFinds() {
+        Query query = mock(Query.class);
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(entityManager.createQuery("from Product")).thenReturn(query);
+        when(query.setMaxResults(10)).thenReturn(query);
+
+        LazyEntityManager lazy = (LazyEntityManager) new EntityManagerCreator(factory, environment, replicas, null,
+                metrics, attributes, tenants).getEntityManager();
+        QueryCounter queries = new QueryCounter();
+        lazy.countQueries(queries);
+        lazy.find(String.class, 1L);
+        lazy.createQuery("from Product").setMaxResults(10).getResultList();
+        lazy.createQuery("from Product");
+
+        assertEquals(2, queries.getCount());
+        verify(query).getResultList();
+    }
+
+    @Test
+    public void shouldCountTheStatementsOfTheSessionWithoutWrappingTheQueriesWithHibernate() {
+        Database.clean();
+        Item pen = new Item("pen", null);
+        Database.save(pen);
+
+        LazyEntityManager lazy = new LazyEntityManager(Database.factory());
+        try {
+            QueryCounter queries = new QueryCounter();
+            lazy.countQueries(queries);
+            lazy.getTransaction().begin();
+            Query query = lazy.createQuery("from Item");
+            query.getResultList();
+            lazy.find(Item.class, pen.getId());
+            lazy.persist(new Item("eraser", null));
+            lazy.getTransaction().rollback();
+
+            assertTrue(query instanceof org.hibernate.jpa.HibernateQuery);
+            assertEquals(2, queries.getCount());
+        } finally {
+            lazy.close();
+        }
+    }
+
+    @Test
+    public void shouldApplyTheGlobalTimeoutsWhenTheMethodHasNone() throws Exception {
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(environment.get("br.com.caelum.vraptor.jpa.timeout.query", "-1")).thenReturn("5000");
+        when(environment.get("br.com.caelum.vraptor.jpa.timeout.lock", "-1")).thenReturn("2000");
+        ControllerMethod method = DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod("report"));
+
+        EntityManager manager = new EntityManagerCreator(factory, environment, replicas, methodInfo(method), metrics, attributes, tenants)
+                .getEntityManager();
+        manager.find(String.class, 1L);
+
+        verify(entityManager).setProperty("javax.persistence.query.timeout", 60000);
+        verify(entityManager).setProperty("javax.persistence.lock.timeout", 2000);
+    }
+
+    @Test
+    public void shouldGiveTheTimeoutsAsHintsToQueriesAndLocks() throws Exception {
+        Query query = mock(Query.class);
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(entityManager.createQuery("from Product")).thenReturn(query);
+        when(environment.get("br.com.caelum.vraptor.jpa.timeout.lock", "-1")).thenReturn("2000");
+        ControllerMethod method = DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod("report"));
+
+        EntityManager manager = new EntityManagerCreator(factory, environment, replicas, methodInfo(method), metrics, attributes, tenants)
+                .getEntityManager();
+        manager.createQuery("from Product");
+        manager.find(String.class, 1L, LockModeType.PESSIMISTIC_WRITE);
+
+        verify(query).setHint("javax.persistence.query.timeout", 60000);
+        verify(entityManager).find(String.class, 1L, LockModeType.PESSIMISTIC_WRITE,
+                Collections.<String, Object>singletonMap("javax.persistence.lock.timeout", 2000));
+    }
+
+    @Test
+    public void shouldNotCreateInstanceUntilFirstUse() {
+        when(factory.getMetamodel()).thenReturn(metamodel);
+
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants);
+        EntityManager lazy = creator.getEntityManager();
+
+        assertSame(metamodel, lazy.getMetamodel());
+        assertSame(factory, lazy.getEntityManagerFactory());
+        verify(factory, never()).createEntityManager();
     }
     
     @Test
@@ -36,9 +285,148 @@ public class EntityManagerCreatorTest {
         when(factory.createEntityManager()).thenReturn(entityManager);
         when(entityManager.isOpen()).thenReturn(true);
         
-        EntityManagerCreator creator = new EntityManagerCreator(factory);
-        creator.destroy(creator.getEntityManager());
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants);
+        EntityManager lazy = creator.getEntityManager();
+        lazy.flush();
+        creator.destroy(lazy);
         
         verify(entityManager).close();
     }
+
+    @Test
+    public void shouldNotCreateInstanceOnDestroyWhenUnused() {
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants);
+        creator.destroy(creator.getEntityManager());
+
+        verify(factory, never()).createEntityManager();
+    }
+
+    @Test
+    public void shouldBeginDeferredTransactionOnFirstDatabaseAccess() {
+        EntityTransaction realTransaction = mock(EntityTransaction.class);
+        when(environment.get("br.com.caelum.vraptor.jpa.deferredtransaction", "false")).thenReturn("true");
+        when(factory.createEntityManager()).thenReturn(entityManager);
+        when(entityManager.getTransaction()).thenReturn(realTransaction);
+
+        EntityManager lazy = new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants).getEntityManager();
+        EntityTransaction transaction = lazy.getTransaction();
+        transaction.begin();
+
+        verify(factory, never()).createEntityManager();
+        assertFalse(transaction.isActive());
+
+        lazy.persist("entity");
+
+        InOrder callOrder = inOrder(realTransaction, entityManager);
+        callOrder.verify(realTransaction).begin();
+        callOrder.verify(entityManager).persist("entity");
+    }
+
+    @Test
+    public void shouldNotTouchDatabaseWhenDeferredTransactionIsNeverUsed() {
+        when(environment.get("br.com.caelum.vraptor.jpa.deferredtransaction", "false")).thenReturn("true");
+
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants);
+        EntityManager lazy = creator.getEntityManager();
+        lazy.getTransaction().begin();
+        lazy.getTransaction().commit();
+        creator.destroy(lazy);
+
+        verify(factory, never()).createEntityManager();
+    }
+
+    @Test
+    public void shouldUseReplicaForReadOnlyMethods() throws Exception {
+        ControllerMethod method = DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod("list"));
+        when(replicas.acquire()).thenReturn(replica);
+        when(replica.createEntityManager()).thenReturn(entityManager);
+
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, methodInfo(method), metrics, attributes, tenants);
+        EntityManager lazy = creator.getEntityManager();
+        lazy.flush();
+        creator.destroy(lazy);
+
+        verify(entityManager).flush();
+        verify(factory, never()).createEntityManager();
+        verify(replicas).release(replica);
+    }
+
+    @Test
+    public void shouldUsePrimaryForTransactionalMethods() throws Exception {
+        ControllerMethod method = DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod("save"));
+        when(factory.createEntityManager()).thenReturn(entityManager);
+
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, methodInfo(method), metrics, attributes, tenants);
+        creator.getEntityManager().flush();
+
+        verify(entityManager).flush();
+        verify(replicas, never()).acquire();
+    }
+
+    @Test
+    public void shouldUseTheFactoryOfTheTenant() throws Exception {
+        ControllerMethod method = DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod("list"));
+        EntityManagerFactory acme = mock(EntityManagerFactory.class);
+        when(tenants.current()).thenReturn("acme");
+        when(tenants.isFactoryPerTenant()).thenReturn(true);
+        when(tenants.acquire("acme")).thenReturn(acme);
+        when(acme.createEntityManager()).thenReturn(entityManager);
+
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, methodInfo(method), metrics, attributes, tenants);
+        EntityManager lazy = creator.getEntityManager();
+        lazy.flush();
+        creator.destroy(lazy);
+
+        verify(entityManager).flush();
+        verify(replicas, never()).acquire();
+        verify(factory, never()).createEntityManager();
+        verify(tenants).release(acme);
+    }
+
+    @Test
+    public void shouldSetTheTenantAsAPropertyOfTheSharedFactory() {
+        when(tenants.current()).thenReturn("acme");
+        when(tenants.getProperty()).thenReturn("eclipselink.tenant-id");
+        when(factory.createEntityManager()).thenReturn(entityManager);
+
+        new EntityManagerCreator(factory, environment, replicas, null, metrics, attributes, tenants)
+                .getEntityManager().flush();
+
+        verify(entityManager).setProperty("eclipselink.tenant-id", "acme");
+        verify(tenants, never()).acquire("acme");
+    }
+
+    @Test
+    public void shouldChooseTheReplicaAndTimeoutsOfAMethodKnownOnlyAfterTheManagerWasProduced() throws Exception {
+        MethodInfo methodInfo = new MethodInfo(new ParanamerNameProvider());
+        when(replicas.acquire()).thenReturn(replica);
+        when(replica.createEntityManager()).thenReturn(entityManager);
+
+        EntityManagerCreator creator = new EntityManagerCreator(factory, environment, replicas, methodInfo, metrics, attributes, tenants);
+        EntityManager lazy = creator.getEntityManager();
+        methodInfo.setControllerMethod(DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod("monthly")));
+        lazy.flush();
+        creator.destroy(lazy);
+
+        verify(entityManager).setProperty("javax.persistence.query.timeout", 30000);
+        verify(factory, never()).createEntityManager();
+        verify(replicas).release(replica);
+    }
+
+    private MethodInfo methodInfo(ControllerMethod method) {
+        MethodInfo methodInfo = new MethodInfo(new ParanamerNameProvider());
+        methodInfo.setControllerMethod(method);
+        return methodInfo;
+    }
+
+    static class Controller {
+        @ReadOnly public void list() {
+        }
+        @Timeouts(query = 60000) public void report() {
+        }
+        @Transactional public void save() {
+        }
+        @ReadOnly @Timeouts(query = 30000) public void monthly() {
+        }
+    }
 }
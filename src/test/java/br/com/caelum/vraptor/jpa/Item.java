@@ -0,0 +1,42 @@
+package br.com.caelum.vraptor.jpa;
+
+import java.io.Serializable;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+@Entity
+public class Item implements Serializable {
+
+    @Id @GeneratedValue
+    private Long id;
+    private String name;
+    @ManyToOne
+    private Category category;
+
+    protected Item() {
+    }
+
+    public Item(String name, Category category) {
+        this.name = name;
+        this.category = category;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Category getCategory() {
+        return category;
+    }
+}
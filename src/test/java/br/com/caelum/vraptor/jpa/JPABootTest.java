@@ -0,0 +1,114 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.events.VRaptorInitialized;
+import br.com.caelum.vraptor.http.route.Route;
+import br.com.caelum.vraptor.http.route.Router;
+import br.com.caelum.vraptor.jpa.extra.LoadPlans;
+
+public class JPABootTest {
+
+    private @Mock Environment environment;
+    private @Mock EntityManagerFactory factory;
+    private @Mock ReadReplicas replicas;
+    private @Mock Router router;
+    private @Mock TransactionAttributes attributes;
+    private @Mock LoadPlans plans;
+    private @Mock EntityManager manager;
+    private @Mock EntityTransaction transaction;
+    private @Mock Route route;
+    private @Mock ControllerMethod method;
+    private @Mock Query query;
+
+    private final Map<String, String> values = new HashMap<>();
+    private JPABoot boot;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(environment.get(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                String value = values.get(invocation.getArguments()[0]);
+                return value == null ? (String) invocation.getArguments()[1] : value;
+            }
+        });
+        when(factory.createEntityManager()).thenReturn(manager);
+        when(manager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        when(router.allRoutes()).thenReturn(Arrays.asList(route));
+        when(route.getControllerMethod()).thenReturn(method);
+        when(manager.createNativeQuery("select 1")).thenReturn(query);
+
+        boot = new JPABoot(environment, factory, replicas, router, attributes, plans);
+    }
+
+    @Test
+    public void shouldDoNothingUnlessEnabled() {
+        boot.boot(new VRaptorInitialized(null));
+
+        verify(factory, never()).getMetamodel();
+        verify(factory, never()).createEntityManager();
+    }
+
+    @Test
+    public void shouldBootTheFactoryAndResolveEveryRoute() {
+        values.put("br.com.caelum.vraptor.jpa.eagerboot", "true");
+        values.put("br.com.caelum.vraptor.jpa.eagerboot.connections", "3");
+        values.put("br.com.caelum.vraptor.jpa.eagerboot.query", "select 1");
+
+        boot.boot(new VRaptorInitialized(null));
+
+        verify(factory).getMetamodel();
+        verify(replicas).isEmpty();
+        verify(transaction, times(3)).begin();
+        verify(transaction, times(3)).rollback();
+        verify(attributes).of(method);
+        verify(plans).planFor(method);
+        verify(query).getResultList();
+        verify(manager, times(4)).close();
+    }
+
+    @Test
+    public void shouldFailWhenTheDatabaseIsNotReachable() {
+        values.put("br.com.caelum.vraptor.jpa.eagerboot", "true");
+        EntityTransaction broken = mock(EntityTransaction.class);
+        when(manager.getTransaction()).thenReturn(broken);
+        doThrow(new PersistenceException("no connection")).when(broken).begin();
+
+        try {
+            boot.boot(new VRaptorInitialized(null));
+        } catch (PersistenceException e) {
+            verify(manager).close();
+            return;
+        }
+        assertTrue("should have failed", false);
+    }
+}
@@ -1,32 +1,101 @@
 package br.com.caelum.vraptor.jpa;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.event.Event;
+import javax.enterprise.inject.Instance;
 import javax.enterprise.inject.spi.BeanManager;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
-
+import javax.persistence.FlushModeType;
+import javax.persistence.NoResultException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.RollbackException;
+import javax.persistence.TransactionRequiredException;
+import javax.servlet.http.HttpServletRequest;
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+
+import org.hibernate.Session;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import br.com.caelum.vraptor.InterceptionException;
+import br.com.caelum.vraptor.Result;
+import br.com.caelum.vraptor.cache.DefaultCacheStore;
+import br.com.caelum.vraptor.controller.ControllerInstance;
 import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerInstance;
+import br.com.caelum.vraptor.controller.DefaultControllerMethod;
+import br.com.caelum.vraptor.converter.LongConverter;
+import br.com.caelum.vraptor.core.Converters;
+import br.com.caelum.vraptor.core.DefaultInterceptorStack;
+import br.com.caelum.vraptor.core.DefaultReflectionProvider;
+import br.com.caelum.vraptor.core.InterceptorHandler;
+import br.com.caelum.vraptor.core.InterceptorStack;
+import br.com.caelum.vraptor.core.InterceptorStackHandlersCache;
+import br.com.caelum.vraptor.core.MethodInfo;
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.events.ControllerFound;
+import br.com.caelum.vraptor.events.InterceptorsExecuted;
+import br.com.caelum.vraptor.http.ParameterNameProvider;
+import br.com.caelum.vraptor.http.ParametersProvider;
+import br.com.caelum.vraptor.http.ParanamerNameProvider;
 import br.com.caelum.vraptor.http.MutableResponse;
+import br.com.caelum.vraptor.interceptor.ApplicationLogicException;
+import br.com.caelum.vraptor.interceptor.DefaultSimpleInterceptorStack;
 import br.com.caelum.vraptor.interceptor.SimpleInterceptorStack;
 import br.com.caelum.vraptor.jpa.event.AfterCommit;
 import br.com.caelum.vraptor.jpa.event.AfterRollback;
 import br.com.caelum.vraptor.jpa.event.BeforeCommit;
+import br.com.caelum.vraptor.jpa.event.BeforeRetry;
+import br.com.caelum.vraptor.jpa.extra.Load;
+import br.com.caelum.vraptor.jpa.extra.LoadCache;
+import br.com.caelum.vraptor.jpa.extra.LoadPlan;
+import br.com.caelum.vraptor.jpa.extra.LoadPlans;
+import br.com.caelum.vraptor.jpa.extra.ParameterLoader;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+import br.com.caelum.vraptor.jpa.metrics.TransactionSample;
+import br.com.caelum.vraptor.jpa.metrics.TransactionSample.Phase;
+import br.com.caelum.vraptor.observer.ExecuteMethod;
+import br.com.caelum.vraptor.observer.ExecuteMethodExceptionHandler;
+import br.com.caelum.vraptor.validator.Messages;
 import br.com.caelum.vraptor.validator.Validator;
+import br.com.caelum.vraptor.view.FlashScope;
 
 public class JPATransactionInterceptorTest {
 
@@ -37,15 +106,24 @@ public class JPATransactionInterceptorTest {
     @Mock private EntityTransaction transaction;
 	@Mock private Validator validator;
 	@Mock private MutableResponse response;
+	@Mock private JPAMetrics metrics;
+	@Mock private TransactionAttributes attributes;
+	@Mock private RetryPolicy retries;
+	@Mock private Bulkheads bulkheads;
+	@Mock private ControllerInstance controllerInstance;
 	
+	private BulkheadPermit permit;
 	private JPAInterceptor interceptor;
 
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
-        interceptor = new JPATransactionInterceptor(beanManager, entityManager, validator, response);
+        permit = new BulkheadPermit(bulkheads, attributes);
+        interceptor = new JPATransactionInterceptor(beanManager, entityManager, validator, response, method, metrics, attributes, retries,
+                new TransactionEvents(beanManager, null, metrics, null), permit, controllerInstance);
+        when(attributes.of(method)).thenReturn(new TransactionAttribute(null, false));
 
-        // Returns false when transaction.isActive() is called after committing the transaction.
+        // Returns false when transaction.isActive() is called after committing or rolling back the transaction.
         doAnswer(new Answer<Void>() {
 			@Override
 			public Void answer(InvocationOnMock invocation) throws Throwable {
@@ -53,6 +131,13 @@ public class JPATransactionInterceptorTest {
 				return null;
 			}
 		}).when(transaction).commit();
+        doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				when(transaction.isActive()).thenReturn(false);
+				return null;
+			}
+		}).when(transaction).rollback();
     }
 
     @Test
@@ -170,4 +255,648 @@ public class JPATransactionInterceptorTest {
     	verify(beanManager, never()).fireEvent(isA(AfterCommit.class));
     	verify(beanManager).fireEvent(isA(AfterRollback.class));
     }
+
+    @Test
+    public void shouldAnswerServiceUnavailableOverTheConcurrencyLimit() throws Exception {
+        when(bulkheads.isEnabled()).thenReturn(true);
+        when(bulkheads.isLimited(any(TransactionAttribute.class))).thenReturn(true);
+        when(bulkheads.acquire(method)).thenReturn(null);
+
+        interceptor.intercept(stack);
+
+        verify(response).sendError(503);
+        verify(stack, never()).next();
+        verify(entityManager, never()).getTransaction();
+    }
+
+    @Test
+    public void shouldUseThePermitTakenBeforeLoadingTheParameters() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1, 500, 0.9);
+        limit.acquire(0, TimeUnit.MILLISECONDS);
+        when(bulkheads.isEnabled()).thenReturn(true);
+        when(bulkheads.isLimited(any(TransactionAttribute.class))).thenReturn(true);
+        when(bulkheads.acquire(method)).thenReturn(limit);
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+
+        assertTrue(permit.acquire(method));
+        interceptor.intercept(stack);
+
+        verify(bulkheads, times(1)).acquire(method);
+        verify(stack).next();
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void shouldReleaseThePermitAfterTheTransaction() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1, 500, 0.9);
+        limit.acquire(0, TimeUnit.MILLISECONDS);
+        when(bulkheads.isEnabled()).thenReturn(true);
+        when(bulkheads.isLimited(any(TransactionAttribute.class))).thenReturn(true);
+        when(bulkheads.acquire(method)).thenReturn(limit);
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+
+        interceptor.intercept(stack);
+
+        verify(transaction).commit();
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void shouldRollbackWhenAQueryTimesOut() {
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        QueryTimeoutException timeout = new QueryTimeoutException("too slow");
+        doThrow(new InterceptionException(timeout)).when(stack).next();
+
+        try {
+            interceptor.intercept(stack);
+        } catch (InterceptionException e) {
+            // rethrown
+        }
+
+        verify(transaction).rollback();
+        verify(transaction, never()).commit();
+        ArgumentCaptor<AfterRollback> event = ArgumentCaptor.forClass(AfterRollback.class);
+        verify(beanManager).fireEvent(event.capture());
+        assertSame(timeout, event.getValue().getCause());
+    }
+
+    @Test
+    public void shouldTellTheMethodAndCauseOfTheRollback() {
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        IllegalStateException cause = new IllegalStateException();
+        doThrow(new InterceptionException(cause)).when(stack).next();
+
+        try {
+            interceptor.intercept(stack);
+        } catch (InterceptionException e) {
+            // rethrown
+        }
+
+        ArgumentCaptor<AfterRollback> event = ArgumentCaptor.forClass(AfterRollback.class);
+        verify(beanManager).fireEvent(event.capture());
+        assertSame(method, event.getValue().getMethod());
+        assertSame(cause, event.getValue().getCause());
+        assertTrue(event.getValue().getChanges().isEmpty());
+    }
+
+    @Test
+    public void shouldRollbackInsteadOfCommitWhenReadOnly() {
+
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        when(validator.hasErrors()).thenReturn(false);
+        when(attributes.of(method)).thenReturn(new TransactionAttribute(null, true));
+
+        interceptor.intercept(stack);
+
+        verify(entityManager).setFlushMode(FlushModeType.COMMIT);
+        verify(transaction).rollback();
+        verify(transaction, never()).commit();
+
+        verify(beanManager, never()).fireEvent(isA(BeforeCommit.class));
+        verify(beanManager, never()).fireEvent(isA(AfterCommit.class));
+    }
+
+    @Test
+    public void shouldLoadEntitiesWithoutSnapshotsWhenReadOnly() {
+        Database.clean();
+        final Item saved = new Item("pen", null);
+        Database.save(saved);
+        final LazyEntityManager manager = new LazyEntityManager(Database.factory(), true);
+        when(attributes.of(method)).thenReturn(new TransactionAttribute(null, true));
+        final boolean[] readOnly = new boolean[2];
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Item item = manager.find(Item.class, saved.getId());
+                Session session = manager.unwrap(Session.class);
+                readOnly[0] = session.isDefaultReadOnly();
+                readOnly[1] = session.isReadOnly(item);
+                return null;
+            }
+        }).when(stack).next();
+
+        new JPATransactionInterceptor(beanManager, manager, validator, response, method, metrics, attributes, retries,
+                new TransactionEvents(beanManager, null, metrics, null), permit, controllerInstance).intercept(stack);
+        manager.close();
+
+        assertTrue(readOnly[0]);
+        assertTrue(readOnly[1]);
+    }
+
+    @Test
+    public void shouldRecordTheTransactionPhasesWhenMetricsAreEnabled() {
+
+        when(metrics.isEnabled()).thenReturn(true);
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        when(validator.hasErrors()).thenReturn(false);
+
+        interceptor.intercept(stack);
+
+        ArgumentCaptor<TransactionSample> sample = ArgumentCaptor.forClass(TransactionSample.class);
+        verify(metrics).record(sample.capture());
+
+        assertTrue(sample.getValue().isCommitted());
+        assertFalse(sample.getValue().isRolledBack());
+        assertTrue(sample.getValue().hasPhase(Phase.EXECUTION));
+        assertTrue(sample.getValue().hasPhase(Phase.COMMIT));
+        assertFalse(sample.getValue().hasPhase(Phase.ROLLBACK));
+    }
+
+    @Test(expected = TransactionRequiredException.class)
+    public void shouldRequireAnActiveTransactionForMandatoryMethods() throws Exception {
+        givenAttributeOf("mandatory");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(false);
+
+        try {
+            interceptor.intercept(stack);
+        } finally {
+            verify(stack, never()).next();
+            verify(transaction, never()).begin();
+        }
+    }
+
+    @Test
+    public void shouldJoinTheActiveTransactionForMandatoryMethods() throws Exception {
+        givenAttributeOf("mandatory");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+
+        interceptor.intercept(stack);
+
+        verify(stack).next();
+        verify(transaction, never()).begin();
+        verify(transaction, never()).commit();
+        verify(transaction, never()).rollback();
+    }
+
+    @Test
+    public void shouldTimeTheFlushApartAndLeaveTheAfterCommitObserversOutOfTheCommit() {
+
+        when(metrics.isEnabled()).thenReturn(true);
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        when(validator.hasErrors()).thenReturn(false);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(50);
+                return null;
+            }
+        }).when(beanManager).fireEvent(isA(AfterCommit.class));
+
+        interceptor.intercept(stack);
+
+        InOrder callOrder = inOrder(beanManager, entityManager, transaction);
+        callOrder.verify(entityManager).flush();
+        callOrder.verify(beanManager).fireEvent(isA(BeforeCommit.class));
+        callOrder.verify(transaction).commit();
+
+        ArgumentCaptor<TransactionSample> sample = ArgumentCaptor.forClass(TransactionSample.class);
+        verify(metrics).record(sample.capture());
+        assertTrue(sample.getValue().hasPhase(Phase.FLUSH));
+        assertTrue(sample.getValue().getNanos(Phase.COMMIT) < TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(sample.getValue().getTotalNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void shouldNotRecordAnythingWhenMetricsAreDisabled() {
+
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+
+        interceptor.intercept(stack);
+
+        verify(metrics, never()).record(any(TransactionSample.class));
+    }
+
+    @Test
+    public void shouldRollbackOnAnyExceptionWithoutTransactional() {
+
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        doThrow(wrapped(new IOException())).when(stack).next();
+
+        interceptAndIgnore();
+
+        verify(transaction, never()).commit();
+        verify(transaction).rollback();
+    }
+
+    @Test
+    public void shouldCommitOnCheckedExceptionsWhenTransactional() {
+
+        givenAttributeOf("checked");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        InterceptionException exception = wrapped(new IOException());
+        doThrow(exception).when(stack).next();
+
+        assertSame(exception, interceptAndIgnore());
+
+        verify(transaction).commit();
+        verify(transaction, never()).rollback();
+        verify(beanManager).fireEvent(isA(AfterCommit.class));
+    }
+
+    @Test
+    public void shouldRollbackOnCheckedExceptionsListedInRollbackOn() {
+
+        givenAttributeOf("rollbackOnIOException");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        doThrow(wrapped(new IOException())).when(stack).next();
+
+        interceptAndIgnore();
+
+        verify(transaction, never()).commit();
+        verify(transaction).rollback();
+    }
+
+    @Test
+    public void shouldCommitOnUncheckedExceptionsListedInDontRollbackOn() {
+
+        givenAttributeOf("dontRollbackOnNoResult");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        doThrow(new InterceptionException(new NoResultException())).when(stack).next();
+
+        interceptAndIgnore();
+
+        verify(transaction).commit();
+        verify(transaction, never()).rollback();
+    }
+
+    @Test
+    public void shouldRunWithoutTransactionWhenSupports() {
+
+        givenAttributeOf("supports");
+
+        interceptor.intercept(stack);
+
+        verify(stack).next();
+        verify(entityManager, never()).getTransaction();
+        verify(response, never()).addRedirectListener(any(MutableResponse.RedirectListener.class));
+    }
+
+    @Test
+    public void shouldRetryIdempotentMethodsWithANewEntityManager() {
+
+        givenAttributeOf("idempotent");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        givenBeginActivatesTheTransaction();
+        doThrow(new RollbackException(new OptimisticLockException())).doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                when(transaction.isActive()).thenReturn(false);
+                return null;
+            }
+        }).when(transaction).commit();
+        when(retries.isRetryable(any(Throwable.class), any(Idempotent.class))).thenReturn(true);
+        when(retries.backoff(any(Idempotent.class), eq(1))).thenReturn(true);
+
+        interceptor.intercept(stack);
+
+        InOrder callOrder = inOrder(stack, beanManager);
+        callOrder.verify(stack).next();
+        callOrder.verify(beanManager).fireEvent(isA(BeforeRetry.class));
+        callOrder.verify(beanManager).fireEvent(isA(InterceptorsExecuted.class));
+        verify(stack, times(1)).next();
+        verify(transaction, times(2)).begin();
+        verify(transaction, times(2)).commit();
+        verify(entityManager).clear();
+        verify(beanManager).fireEvent(isA(BeforeRetry.class));
+        verify(beanManager).fireEvent(isA(AfterCommit.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldCallTheControllerMethodAgainOnRetryThroughARealInterceptorStack() throws Exception {
+
+        final Controller controller = new Controller();
+        final ControllerMethod save = DefaultControllerMethod.instanceFor(Controller.class,
+                Controller.class.getMethod("idempotent"));
+        final ControllerInstance instance = new DefaultControllerInstance(controller);
+        MethodInfo methodInfo = new MethodInfo(new ParanamerNameProvider());
+        methodInfo.setControllerMethod(save);
+        final ExecuteMethod executeMethod = new ExecuteMethod(methodInfo, new Messages(), mock(Event.class),
+                mock(Event.class), new ExecuteMethodExceptionHandler(), new DefaultReflectionProvider());
+        Answer<Void> execute = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                executeMethod.execute((InterceptorsExecuted) invocation.getArguments()[0]);
+                return null;
+            }
+        };
+        Event<InterceptorsExecuted> interceptorsExecuted = mock(Event.class);
+        doAnswer(execute).when(interceptorsExecuted).fire(any(InterceptorsExecuted.class));
+        doAnswer(execute).when(beanManager).fireEvent(isA(InterceptorsExecuted.class));
+
+        when(attributes.of(save)).thenReturn(new TransactionAttribute(null, false,
+                Controller.class.getMethod("idempotent").getAnnotation(Idempotent.class)));
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        givenBeginActivatesTheTransaction();
+        doThrow(new RollbackException(new OptimisticLockException())).doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                when(transaction.isActive()).thenReturn(false);
+                return null;
+            }
+        }).when(transaction).commit();
+        when(retries.isRetryable(any(Throwable.class), any(Idempotent.class))).thenReturn(true);
+        when(retries.backoff(any(Idempotent.class), eq(1))).thenReturn(true);
+
+        final JPATransactionInterceptor transactions = new JPATransactionInterceptor(beanManager, entityManager, validator,
+                response, save, metrics, attributes, retries, new TransactionEvents(beanManager, null, metrics, null), permit,
+                instance);
+        InterceptorHandler handler = new InterceptorHandler() {
+            @Override
+            public void execute(InterceptorStack stack, ControllerMethod method, Object controllerInstance) {
+                transactions.intercept(new DefaultSimpleInterceptorStack(stack, method, instance));
+            }
+        };
+        final int[] nextInterceptorCalls = new int[1];
+        InterceptorHandler nextInterceptor = new InterceptorHandler() {
+            @Override
+            public void execute(InterceptorStack stack, ControllerMethod method, Object controllerInstance) {
+                nextInterceptorCalls[0]++;
+                stack.next(method, controllerInstance);
+            }
+        };
+        InterceptorStackHandlersCache cache = mock(InterceptorStackHandlersCache.class);
+        when(cache.getInterceptorHandlers()).thenReturn(new LinkedList<>(Arrays.asList(handler, nextInterceptor)));
+        Instance<ControllerMethod> methods = mock(Instance.class);
+        when(methods.get()).thenReturn(save);
+        Instance<ControllerInstance> instances = mock(Instance.class);
+        when(instances.get()).thenReturn(instance);
+
+        new DefaultInterceptorStack(cache, methods, instances, interceptorsExecuted,
+                mock(Event.class)).start();
+
+        assertEquals(2, controller.calls);
+        assertEquals(1, nextInterceptorCalls[0]);
+        verify(interceptorsExecuted, times(1)).fire(any(InterceptorsExecuted.class));
+        verify(beanManager, times(1)).fireEvent(isA(InterceptorsExecuted.class));
+        verify(transaction, times(2)).commit();
+    }
+
+    @Test
+    public void shouldGiveUpAfterTheLastAttempt() {
+
+        givenAttributeOf("idempotent");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        doThrow(new RollbackException(new OptimisticLockException())).when(transaction).commit();
+        when(retries.isRetryable(any(Throwable.class), any(Idempotent.class))).thenReturn(true);
+        when(retries.backoff(any(Idempotent.class), anyInt())).thenReturn(true);
+        givenBeginActivatesTheTransaction();
+
+        interceptAndIgnore();
+
+        verify(stack, times(1)).next();
+        verify(beanManager, times(1)).fireEvent(isA(BeforeRetry.class));
+        verify(beanManager, times(1)).fireEvent(isA(InterceptorsExecuted.class));
+    }
+
+    @Test
+    public void shouldNotRetryMethodsThatAreNotIdempotent() {
+
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        doThrow(new RollbackException(new OptimisticLockException())).when(transaction).commit();
+        when(retries.isRetryable(any(Throwable.class), any(Idempotent.class))).thenReturn(true);
+
+        interceptAndIgnore();
+
+        verify(stack, times(1)).next();
+        verify(beanManager, never()).fireEvent(isA(BeforeRetry.class));
+    }
+
+    @Test
+    public void shouldNotRetryWhenTheResponseIsCommitted() {
+
+        givenAttributeOf("idempotent");
+        when(entityManager.getTransaction()).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        when(response.isCommitted()).thenReturn(true);
+        doThrow(new RollbackException(new OptimisticLockException())).when(transaction).commit();
+        when(retries.isRetryable(any(Throwable.class), any(Idempotent.class))).thenReturn(true);
+
+        interceptAndIgnore();
+
+        verify(stack, times(1)).next();
+    }
+
+    private void givenBeginActivatesTheTransaction() {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                when(transaction.isActive()).thenReturn(true);
+                return null;
+            }
+        }).when(transaction).begin();
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldOnlyLimitTheMethodsTheDecoratorRunsInATransaction() throws Exception {
+        Database.clean();
+        Item saved = new Item("pen", null);
+        Database.save(saved);
+        javax.enterprise.inject.spi.Decorator<?> decorator = mock(javax.enterprise.inject.spi.Decorator.class);
+        when(decorator.getBeanClass()).thenReturn((Class) TransactionDecorator.class);
+        when(beanManager.resolveDecorators(any(Set.class))).thenReturn(Arrays.asList(decorator));
+        Bulkheads bulkheads = new Bulkheads(environment("bulkhead", "true", "bulkhead.initial", "1",
+                "bulkhead.min", "1", "bulkhead.max", "1"), metrics, beanManager);
+        bulkheads.init();
+        TransactionAttributes attributes = new TransactionAttributes();
+        ControllerMethod show = DefaultControllerMethod.instanceFor(Controller.class,
+                Controller.class.getMethod("show", Item.class));
+        ControllerMethod save = DefaultControllerMethod.instanceFor(Controller.class,
+                Controller.class.getMethod("save", Item.class));
+        BulkheadPermit busy = new BulkheadPermit(bulkheads, attributes);
+        assertTrue(busy.acquire(save));
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter("item.id")).thenReturn(String.valueOf(saved.getId()));
+        LazyEntityManager manager = new LazyEntityManager(Database.factory(), true);
+        try {
+            BulkheadPermit showing = new BulkheadPermit(bulkheads, attributes);
+            loader(manager, request, showing).load(new ControllerFound(show));
+            decorate(show, attributes, showing, manager).intercept(stack);
+
+            verify(request).setAttribute(eq("item"), any(Item.class));
+            verify(stack).next();
+            verify(response, never()).sendError(503);
+
+            BulkheadPermit saving = new BulkheadPermit(bulkheads, attributes);
+            loader(manager, request, saving).load(new ControllerFound(save));
+            decorate(save, attributes, saving, manager).intercept(stack);
+
+            verify(request, times(1)).setAttribute(eq("item"), any(Item.class));
+            verify(stack, times(1)).next();
+            verify(response).sendError(503);
+        } finally {
+            busy.release();
+            manager.close();
+        }
+    }
+
+    private void givenAttributeOf(String name) {
+        try {
+            Method controllerMethod = Controller.class.getMethod(name);
+            when(attributes.of(method)).thenReturn(new TransactionAttribute(
+                    controllerMethod.getAnnotation(Transactional.class), false,
+                    controllerMethod.getAnnotation(Idempotent.class)));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Test
+    public void shouldInvalidateTheLoadCacheEvenWhenTheAsynchronousAfterCommitIsDiscarded() throws Exception {
+        Database.clean();
+        Item saved = new Item("pen", null);
+        Database.save(saved);
+        LoadCache cache = new LoadCache(environment("loadcache.size", "10"), mock(Tenants.class));
+        cache.init();
+        cache.put(Item.class, saved.getId(), saved, cache.generation(Item.class));
+        final CountDownLatch firing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        BeanManager observers = mock(BeanManager.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                firing.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(observers).fireEvent(any());
+        TransactionEvents events = new TransactionEvents(observers, environment("events.async", "true",
+                "events.threads", "1", "events.queue", "1", "events.rejection", "discard"), metrics, cache);
+        events.init();
+        final LazyEntityManager manager = new LazyEntityManager(Database.factory());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                manager.persist(new Item("ink", null));
+                return null;
+            }
+        }).when(stack).next();
+        try {
+            events.fire(new Object());
+            assertTrue(firing.await(5, TimeUnit.SECONDS));
+            events.fire(new Object());
+
+            new JPATransactionInterceptor(beanManager, manager, validator, response, method, metrics, attributes,
+                    retries, events, permit, controllerInstance).intercept(stack);
+
+            assertEquals(1, events.getRejectedEvents());
+            assertNull(cache.get(Item.class, saved.getId()));
+        } finally {
+            release.countDown();
+            events.destroy();
+            manager.close();
+        }
+    }
+
+    private ParameterLoader loader(EntityManager manager, HttpServletRequest request, BulkheadPermit permit) {
+        Converters converters = mock(Converters.class);
+        when(converters.to(Long.class)).thenReturn(new LongConverter());
+        ParameterNameProvider names = new ParanamerNameProvider();
+        return new ParameterLoader(manager, request, new LoadPlans(Database.factory(), names,
+                new DefaultCacheStore<ControllerMethod, LoadPlan>()), mock(Result.class), converters,
+                mock(FlashScope.class), mock(LoadCache.class), new MethodInfo(names), permit,
+                mock(ParametersProvider.class));
+    }
+
+    private JPAInterceptor decorate(ControllerMethod method, TransactionAttributes attributes, BulkheadPermit permit,
+            EntityManager manager) throws Exception {
+        TransactionDecorator decorator = new TransactionDecorator();
+        set(decorator, "delegate", new JPATransactionInterceptor(beanManager, manager, validator, response, method,
+                metrics, attributes, retries, new TransactionEvents(beanManager, null, metrics, null), permit,
+                controllerInstance));
+        set(decorator, "method", method);
+        set(decorator, "attributes", attributes);
+        return decorator;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private Environment environment(String... settings) {
+        final Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < settings.length; i += 2) {
+            values.put("br.com.caelum.vraptor.jpa." + settings[i], settings[i + 1]);
+        }
+        return mock(Environment.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                Object[] arguments = invocation.getArguments();
+                if (values.containsKey(arguments[0])) {
+                    return values.get(arguments[0]);
+                }
+                return arguments.length == 2 ? arguments[1] : null;
+            }
+        });
+    }
+
+    private InterceptionException wrapped(Exception exception) {
+        return new InterceptionException(new ApplicationLogicException(exception));
+    }
+
+    private RuntimeException interceptAndIgnore() {
+        try {
+            interceptor.intercept(stack);
+        } catch (RuntimeException e) {
+            return e;
+        }
+        throw new AssertionError("should have thrown");
+    }
+
+    static class Controller {
+        @Transactional
+        public void checked() {
+        }
+
+        @Transactional(rollbackOn = IOException.class)
+        public void rollbackOnIOException() {
+        }
+
+        @Transactional(dontRollbackOn = NoResultException.class)
+        public void dontRollbackOnNoResult() {
+        }
+
+        @Transactional(TxType.SUPPORTS)
+        public void supports() {
+        }
+
+        @Transactional(TxType.MANDATORY)
+        public void mandatory() {
+        }
+
+        int calls;
+
+        @Idempotent(attempts = 2)
+        public void idempotent() {
+            calls++;
+        }
+
+        public void show(@Load Item item) {
+        }
+
+        @Transactional
+        public void save(@Load Item item) {
+        }
+    }
 }
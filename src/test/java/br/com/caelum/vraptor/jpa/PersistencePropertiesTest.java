@@ -0,0 +1,82 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+public class PersistencePropertiesTest {
+
+	private @Mock Environment environment;
+	private final Map<String, String> values = new HashMap<>();
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(environment.get(anyString(), anyString())).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String value = values.get(invocation.getArguments()[0]);
+				return value == null ? (String) invocation.getArguments()[1] : value;
+			}
+		});
+		when(environment.get(anyString())).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				return values.get(invocation.getArguments()[0]);
+			}
+		});
+		when(environment.getKeys()).thenReturn(values.keySet());
+	}
+
+	@Test
+	public void shouldBeEmptyWithoutConfiguration() {
+		assertTrue(PersistenceProperties.of(environment).isEmpty());
+	}
+
+	@Test
+	public void shouldTurnOnBatchingWithTheBatchProfile() {
+		values.put("br.com.caelum.vraptor.jpa.profile", "batch");
+
+		Map<String, Object> properties = PersistenceProperties.of(environment);
+
+		assertEquals("50", properties.get("hibernate.jdbc.batch_size"));
+		assertEquals("true", properties.get("hibernate.order_inserts"));
+		assertEquals("true", properties.get("hibernate.order_updates"));
+		assertEquals("100", properties.get("hibernate.jdbc.fetch_size"));
+	}
+
+	@Test
+	public void shouldOverrideTheProfileSizes() {
+		values.put("br.com.caelum.vraptor.jpa.profile", "batch");
+		values.put("br.com.caelum.vraptor.jpa.batchsize", "200");
+
+		assertEquals("200", PersistenceProperties.of(environment).get("hibernate.jdbc.batch_size"));
+	}
+
+	@Test
+	public void shouldPassThroughPrefixedProperties() {
+		values.put("br.com.caelum.vraptor.jpa.batchsize", "200");
+		values.put("br.com.caelum.vraptor.jpa.property.hibernate.jdbc.batch_size", "30");
+		values.put("br.com.caelum.vraptor.jpa.property.javax.persistence.jdbc.url", "jdbc:h2:mem:test");
+
+		Map<String, Object> properties = PersistenceProperties.of(environment);
+
+		assertEquals("30", properties.get("hibernate.jdbc.batch_size"));
+		assertEquals("jdbc:h2:mem:test", properties.get("javax.persistence.jdbc.url"));
+		assertEquals(2, properties.size());
+	}
+}
@@ -0,0 +1,111 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.events.VRaptorInitialized;
+
+public class PersistenceUnitsTest {
+
+    private @Mock Environment environment;
+    private @Mock EntityManagerFactory main;
+    private @Mock EntityManagerFactory reporting;
+
+    private PersistenceUnits units;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(environment.get("br.com.caelum.vraptor.jpa.persistenceunit", "default")).thenReturn("default");
+        when(environment.get("br.com.caelum.vraptor.jpa.units", "")).thenReturn("reporting, audit");
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.units.threads"), anyString())).thenReturn("3");
+
+        units = spy(new PersistenceUnits(environment));
+        doReturn(main).when(units).createEntityManagerFactory("default");
+        doReturn(reporting).when(units).createEntityManagerFactory("reporting");
+        doThrow(new PersistenceException("no database")).when(units).createEntityManagerFactory("audit");
+    }
+
+    @Test
+    public void shouldBuildEachUnitOnce() {
+        units.boot(new VRaptorInitialized(null));
+
+        assertSame(main, units.get("default"));
+        assertSame(reporting, units.get("reporting"));
+        assertSame(reporting, units.get("reporting"));
+        verify(units).createEntityManagerFactory("reporting");
+    }
+
+    @Test
+    public void shouldReportAFailedUnitOnlyToItsUsers() {
+        units.boot(new VRaptorInitialized(null));
+
+        assertSame(reporting, units.get("reporting"));
+        try {
+            units.get("audit");
+            fail("audit should have failed");
+        } catch (PersistenceException e) {
+            assertTrue(e.getMessage().contains("audit"));
+        }
+    }
+
+    @Test
+    public void shouldBuildUnitsInParallel() throws Exception {
+        final CountDownLatch building = new CountDownLatch(2);
+        Answer<EntityManagerFactory> waitForTheOther = new Answer<EntityManagerFactory>() {
+            @Override
+            public EntityManagerFactory answer(InvocationOnMock invocation) throws Throwable {
+                building.countDown();
+                if (!building.await(5, TimeUnit.SECONDS)) {
+                    throw new PersistenceException("built one after another");
+                }
+                return "default".equals(invocation.getArguments()[0]) ? main : reporting;
+            }
+        };
+        doAnswer(waitForTheOther).when(units).createEntityManagerFactory("default");
+        doAnswer(waitForTheOther).when(units).createEntityManagerFactory("reporting");
+
+        assertSame(main, units.get("default"));
+        assertSame(reporting, units.get("reporting"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownUnits() {
+        units.get("legacy");
+    }
+
+    @Test
+    public void shouldCloseBuiltUnits() {
+        when(main.isOpen()).thenReturn(true);
+        when(reporting.isOpen()).thenReturn(true);
+        units.start();
+
+        units.close();
+
+        verify(main).close();
+        verify(reporting).close();
+    }
+}
@@ -0,0 +1,90 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Type;
+import java.util.Collections;
+
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.Decorator;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+public class ReadReplicasTest {
+
+    private @Mock Environment environment;
+    private @Mock EntityManagerFactory first;
+    private @Mock EntityManagerFactory second;
+    private @Mock BeanManager beanManager;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(environment.get("br.com.caelum.vraptor.jpa.replicas", "")).thenReturn("first, second");
+    }
+
+    @Test
+    public void shouldBeEmptyWhenNoReplicaIsConfigured() {
+        when(environment.get("br.com.caelum.vraptor.jpa.replicas", "")).thenReturn("");
+
+        ReadReplicas replicas = new ReadReplicas(environment, beanManager);
+        replicas.init();
+
+        assertTrue(replicas.isEmpty());
+    }
+
+    @Test
+    public void shouldChooseReplicasInRoundRobin() {
+        ReadReplicas replicas = replicas("roundrobin");
+
+        assertSame(first, replicas.acquire());
+        assertSame(second, replicas.acquire());
+        assertSame(first, replicas.acquire());
+    }
+
+    @Test
+    public void shouldChooseLeastLoadedReplica() {
+        ReadReplicas replicas = replicas("leastloaded");
+
+        assertSame(first, replicas.acquire());
+        assertSame(second, replicas.acquire());
+        replicas.release(second);
+        assertSame(second, replicas.acquire());
+    }
+
+    @Test
+    public void shouldRouteNonTransactionalMethodsOnlyWithTheDecorator() {
+        when(environment.get("br.com.caelum.vraptor.jpa.replicas.nontransactional", "false")).thenReturn("true");
+
+        assertFalse(replicas("roundrobin").isNonTransactional());
+
+        Decorator<?> decorator = mock(Decorator.class);
+        doReturn(TransactionDecorator.class).when(decorator).getBeanClass();
+        when(beanManager.resolveDecorators(anySetOf(Type.class)))
+                .thenReturn(Collections.<Decorator<?>>singletonList(decorator));
+
+        assertTrue(replicas("roundrobin").isNonTransactional());
+    }
+
+    private ReadReplicas replicas(String strategy) {
+        when(environment.get("br.com.caelum.vraptor.jpa.replicas.strategy", "roundrobin")).thenReturn(strategy);
+        ReadReplicas replicas = spy(new ReadReplicas(environment, beanManager));
+        doReturn(first).when(replicas).createEntityManagerFactory("first");
+        doReturn(second).when(replicas).createEntityManagerFactory("second");
+        replicas.init();
+        return replicas;
+    }
+}
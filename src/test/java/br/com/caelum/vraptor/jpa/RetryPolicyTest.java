@@ -0,0 +1,89 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.RollbackException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+public class RetryPolicyTest {
+
+	private @Mock Environment environment;
+	private RetryPolicy policy;
+	private Idempotent idempotent;
+
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		when(environment.get(anyString(), anyString())).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				return (String) invocation.getArguments()[1];
+			}
+		});
+		policy = new RetryPolicy(environment);
+		policy.init();
+		idempotent = Controller.class.getMethod("save").getAnnotation(Idempotent.class);
+	}
+
+	@Test
+	public void shouldRetryOptimisticLockFailuresWrappedByTheCommit() {
+		assertTrue(policy.isRetryable(new RollbackException(new OptimisticLockException()), idempotent));
+	}
+
+	@Test
+	public void shouldRetryDeadlocksBySqlStateOrVendorCode() {
+		assertTrue(policy.isRetryable(new PersistenceException(new SQLException("deadlock", "40P01")), idempotent));
+		assertTrue(policy.isRetryable(new PersistenceException(new SQLException("deadlock", "HY000", 1213)), idempotent));
+		assertFalse(policy.isRetryable(new PersistenceException(new SQLException("unique", "23505")), idempotent));
+	}
+
+	@Test
+	public void shouldRetryTheConfiguredExceptions() {
+		assertTrue(policy.isRetryable(new IllegalStateException(), idempotent));
+		assertFalse(policy.isRetryable(new IllegalArgumentException(), idempotent));
+	}
+
+	@Test
+	public void shouldUseTheConfiguredSqlStates() {
+		when(environment.get(eq("br.com.caelum.vraptor.jpa.retry.sqlstates"), anyString())).thenReturn("XX001");
+		RetryPolicy configured = new RetryPolicy(environment);
+		configured.init();
+
+		assertTrue(configured.isRetryable(new SQLException("custom", "XX001"), idempotent));
+		assertFalse(configured.isRetryable(new SQLException("deadlock", "40001"), idempotent));
+	}
+
+	@Test
+	public void shouldGrowTheBackoffUpToTheMaximum() {
+		for (int i = 0; i < 100; i++) {
+			long first = policy.backoffOf(idempotent, 1);
+			assertTrue(first >= 5 && first <= 10);
+			long third = policy.backoffOf(idempotent, 3);
+			assertTrue(third >= 15 && third <= 30);
+			long tenth = policy.backoffOf(idempotent, 10);
+			assertTrue(tenth >= 15 && tenth <= 30);
+		}
+	}
+
+	static class Controller {
+		@Idempotent(backoff = 10, maxBackoff = 30, retryOn = IllegalStateException.class)
+		public void save() {
+		}
+	}
+}
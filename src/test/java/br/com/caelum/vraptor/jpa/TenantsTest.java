@@ -0,0 +1,157 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import br.com.caelum.vraptor.environment.Environment;
+
+public class TenantsTest {
+
+    private @Mock Environment environment;
+    private @Mock PersistenceUnits units;
+    private @Mock TenantResolver resolver;
+    private @Mock EntityManagerFactory acme;
+    private @Mock EntityManagerFactory globex;
+    private @Mock EntityManagerFactory initech;
+
+    private Tenants tenants;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants"), anyString())).thenReturn("factory");
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.max"), anyString())).thenReturn("2");
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.idle"), anyString())).thenReturn("0");
+        when(acme.isOpen()).thenReturn(true);
+        when(globex.isOpen()).thenReturn(true);
+        when(initech.isOpen()).thenReturn(true);
+
+        tenants = spy(new Tenants(environment, units, resolver));
+        doReturn(acme).when(tenants).createEntityManagerFactory("acme");
+        doReturn(globex).when(tenants).createEntityManagerFactory("globex");
+        doReturn(initech).when(tenants).createEntityManagerFactory("initech");
+        tenants.init();
+    }
+
+    @Test
+    public void shouldBuildTheFactoryOfATenantOnFirstUseOnly() {
+        assertSame(acme, tenants.acquire("acme"));
+        tenants.release(acme);
+        assertSame(acme, tenants.acquire("acme"));
+
+        verify(tenants, times(1)).createEntityManagerFactory("acme");
+        assertEquals(1, tenants.size());
+    }
+
+    @Test
+    public void shouldCloseTheLeastRecentlyUsedFactoryWhenFull() {
+        tenants.release(tenants.acquire("acme"));
+        tenants.release(tenants.acquire("globex"));
+        tenants.release(tenants.acquire("acme"));
+        tenants.release(tenants.acquire("initech"));
+
+        verify(globex).close();
+        verify(acme, never()).close();
+        assertEquals(2, tenants.size());
+    }
+
+    @Test
+    public void shouldNotCloseAFactoryInUse() {
+        tenants.acquire("acme");
+        tenants.acquire("globex");
+        tenants.acquire("initech");
+        tenants.closeIdle();
+
+        verify(acme, never()).close();
+        verify(globex, never()).close();
+        assertEquals(3, tenants.size());
+    }
+
+    @Test
+    public void shouldCloseIdleFactories() {
+        tenants.release(tenants.acquire("acme"));
+        tenants.acquire("globex");
+        tenants.closeIdle();
+
+        verify(acme).close();
+        verify(globex, never()).close();
+        assertEquals(1, tenants.size());
+    }
+
+    @Test
+    public void shouldLendOnlyOpenFactoriesWithoutCountingItAsAUse() {
+        assertNull(tenants.borrow("acme"));
+
+        tenants.release(tenants.acquire("acme"));
+        tenants.release(tenants.acquire("globex"));
+        assertSame(acme, tenants.borrow("acme"));
+        tenants.giveBack(acme);
+        tenants.release(tenants.acquire("initech"));
+
+        verify(acme).close();
+        verify(globex, never()).close();
+        verify(tenants, times(1)).createEntityManagerFactory("acme");
+    }
+
+    @Test
+    public void shouldReplaceTheTenantInThePersistenceProperties() {
+        String schema = PersistenceProperties.PREFIX + "hibernate.default_schema";
+        when(environment.getKeys()).thenReturn(Arrays.asList(schema));
+        when(environment.get(schema)).thenReturn("app_{tenant}");
+
+        assertEquals("app_acme", tenants.propertiesOf("acme").get("hibernate.default_schema"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTenantsThatAreNotPlainNames() {
+        when(resolver.resolve()).thenReturn("acme; drop table users");
+
+        tenants.current();
+    }
+
+    @Test
+    public void shouldOnlyAcceptTheAllowedTenantsWhenTheyAreListed() {
+        when(environment.get(eq("br.com.caelum.vraptor.jpa.tenants.allowed"), anyString())).thenReturn("acme, globex");
+        tenants.init();
+        when(resolver.resolve()).thenReturn("globex");
+
+        assertEquals("globex", tenants.current());
+
+        when(resolver.resolve()).thenReturn("initech");
+        try {
+            tenants.current();
+            fail("should have refused initech");
+        } catch (IllegalArgumentException e) {
+            verify(tenants, never()).createEntityManagerFactory("initech");
+        }
+    }
+
+    @Test
+    public void shouldNotResolveTheTenantWhenDisabled() {
+        Tenants disabled = new Tenants(mock(Environment.class), units, resolver);
+        when(resolver.resolve()).thenReturn("acme");
+
+        assertNull(disabled.current());
+        verify(resolver, never()).resolve();
+    }
+}
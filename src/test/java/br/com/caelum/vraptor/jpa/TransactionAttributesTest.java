@@ -0,0 +1,128 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.persistence.OptimisticLockException;
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerMethod;
+
+public class TransactionAttributesTest {
+
+	private TransactionAttributes attributes;
+
+	@Before
+	public void setUp() {
+		attributes = new TransactionAttributes();
+	}
+
+	@Test
+	public void shouldNotBeTransactionalWithoutAnnotations() throws Exception {
+		TransactionAttribute attribute = attributes.of(method(PlainController.class, "list"));
+
+		assertFalse(attribute.isAnnotated());
+		assertFalse(attribute.isTransactional());
+		assertFalse(attribute.isReadOnly());
+	}
+
+	@Test
+	public void shouldUseTheControllerAnnotationWhenTheMethodHasNone() throws Exception {
+		TransactionAttribute attribute = attributes.of(method(TransactionalController.class, "save"));
+
+		assertTrue(attribute.isTransactional());
+		assertEquals(TxType.REQUIRED, attribute.getType());
+		assertArrayEquals(new Class<?>[] { OptimisticLockException.class }, attribute.getRollbackOn());
+		assertTrue(attribute.isReadOnly());
+	}
+
+	@Test
+	public void shouldPreferTheMethodAnnotationOverTheControllerOne() throws Exception {
+		TransactionAttribute attribute = attributes.of(method(TransactionalController.class, "report"));
+
+		assertTrue(attribute.isAnnotated());
+		assertFalse(attribute.isTransactional());
+		assertEquals(TxType.NOT_SUPPORTED, attribute.getType());
+		assertEquals(0, attribute.getRollbackOn().length);
+	}
+
+	@Test
+	public void shouldNotBeTransactionalWhenNever() throws Exception {
+		assertFalse(attributes.of(method(PlainController.class, "never")).isTransactional());
+	}
+
+	@Test
+	public void shouldResolveEachMethodOnlyOnce() throws Exception {
+		ControllerMethod method = method(PlainController.class, "never");
+
+		assertSame(attributes.of(method), attributes.of(method(PlainController.class, "never")));
+	}
+
+	@Test
+	public void shouldApplyTheJtaRollbackRules() throws Exception {
+		TransactionAttribute annotated = attributes.of(method(TransactionalController.class, "save"));
+		TransactionAttribute plain = attributes.of(method(PlainController.class, "list"));
+
+		assertTrue(annotated.rollsBackOn(new IllegalStateException()));
+		assertFalse(annotated.rollsBackOn(new Exception()));
+		assertTrue(annotated.rollsBackOn(new OptimisticLockException()));
+		assertTrue(plain.rollsBackOn(new Exception()));
+	}
+
+	@Test
+	public void shouldOpenATransactionForReadOnlyMethodsWithoutTransactional() throws Exception {
+		TransactionAttribute attribute = attributes.of(method(PlainController.class, "show"));
+
+		assertFalse(attribute.isAnnotated());
+		assertTrue(attribute.isReadOnly());
+		assertTrue(attribute.isTransactional());
+	}
+
+	@Test
+	public void shouldRunSupportsWithoutTransaction() throws Exception {
+		TransactionAttribute attribute = attributes.of(method(PlainController.class, "supports"));
+
+		assertTrue(attribute.isNonTransactional());
+		assertFalse(attribute.isTransactional());
+	}
+
+	private ControllerMethod method(Class<?> controller, String name) throws NoSuchMethodException {
+		return DefaultControllerMethod.instanceFor(controller, controller.getMethod(name));
+	}
+
+	static class PlainController {
+		public void list() {
+		}
+
+		@Transactional(TxType.NEVER)
+		public void never() {
+		}
+
+		@Transactional(TxType.SUPPORTS)
+		public void supports() {
+		}
+
+		@ReadOnly
+		public void show() {
+		}
+	}
+
+	@ReadOnly
+	@Transactional(rollbackOn = OptimisticLockException.class)
+	static class TransactionalController {
+		public void save() {
+		}
+
+		@Transactional(TxType.NOT_SUPPORTED)
+		public void report() {
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package br.com.caelum.vraptor.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.enterprise.inject.spi.BeanManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.event.AfterCommit;
+import br.com.caelum.vraptor.jpa.event.AfterRollback;
+import br.com.caelum.vraptor.jpa.event.Change;
+import br.com.caelum.vraptor.jpa.metrics.JPAMetrics;
+
+public class TransactionEventsTest {
+
+	@Mock private BeanManager beanManager;
+	@Mock private Environment environment;
+	@Mock private JPAMetrics metrics;
+
+	private final Map<String, String> values = new HashMap<>();
+	private final AtomicReference<Thread> firedBy = new AtomicReference<>();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final Thread caller = Thread.currentThread();
+	private TransactionEvents events;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(environment.get(anyString(), anyString())).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String value = values.get(invocation.getArguments()[0]);
+				return value == null ? (String) invocation.getArguments()[1] : value;
+			}
+		});
+		events = new TransactionEvents(firing(), environment, metrics, null);
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		events.destroy();
+	}
+
+	@Test
+	public void shouldFireOnTheCallerThreadByDefault() {
+		release.countDown();
+		events.init();
+
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+
+		assertFalse(events.isAsync());
+		assertSame(Thread.currentThread(), firedBy.get());
+	}
+
+	@Test
+	public void shouldFireOnAnotherThreadWhenAsync() throws InterruptedException {
+		values.put("br.com.caelum.vraptor.jpa.events.async", "true");
+		release.countDown();
+		events.init();
+
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		events.destroy();
+
+		assertNotSame(Thread.currentThread(), firedBy.get());
+		assertEquals(1, events.getDispatchedEvents());
+	}
+
+	@Test
+	public void shouldDiscardEventsWhenTheQueueIsFull() throws InterruptedException {
+		givenASingleThreadWithASingleSlot("discard");
+
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		waitUntilFiring();
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+
+		assertEquals(1, events.getQueueDepth());
+		assertEquals(1, events.getRejectedEvents());
+	}
+
+	@Test
+	public void shouldFireOnTheCallerThreadWhenTheQueueIsFull() throws InterruptedException {
+		givenASingleThreadWithASingleSlot("callerruns");
+
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		waitUntilFiring();
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+
+		assertSame(Thread.currentThread(), firedBy.get());
+		assertEquals(0, events.getRejectedEvents());
+	}
+
+	@Test
+	public void shouldNotThrowWhenTheQueueIsFullAndThePolicyAborts() throws InterruptedException {
+		givenASingleThreadWithASingleSlot("abort");
+
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		waitUntilFiring();
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+		events.fire(new AfterCommit(null, 0, Collections.<Change> emptyList()));
+
+		assertEquals(1, events.getRejectedEvents());
+	}
+
+	@Test
+	public void shouldNotThrowWhenAnObserverFailsOnTheCallerThread() {
+		doThrow(new IllegalStateException("observer")).when(beanManager).fireEvent(any());
+		events.init();
+
+		events.fire(new AfterRollback(null, 0, Collections.<Change> emptyList(), null));
+
+		assertEquals(1, events.getFailedEvents());
+	}
+
+	@Test
+	public void shouldPublishTheQueueWhenMetricsAreEnabled() {
+		values.put("br.com.caelum.vraptor.jpa.events.async", "true");
+		when(metrics.isEnabled()).thenReturn(true);
+
+		events.init();
+
+		verify(metrics).register(events, "type=TransactionEvents");
+	}
+
+	/**
+	 * Fires into the mock, keeping the worker waiting outside of it, as a Mockito mock lets a
+	 * single thread in at a time and the caller would wait until the worker gives up.
+	 */
+	private BeanManager firing() {
+		return (BeanManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { BeanManager.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("fireEvent")) {
+							firedBy.set(Thread.currentThread());
+							if (Thread.currentThread() != caller) {
+								release.await(5, TimeUnit.SECONDS);
+							}
+						}
+						try {
+							return method.invoke(beanManager, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	private void givenASingleThreadWithASingleSlot(String rejection) {
+		values.put("br.com.caelum.vraptor.jpa.events.async", "true");
+		values.put("br.com.caelum.vraptor.jpa.events.threads", "1");
+		values.put("br.com.caelum.vraptor.jpa.events.queue", "1");
+		values.put("br.com.caelum.vraptor.jpa.events.rejection", rejection);
+		events.init();
+	}
+
+	private void waitUntilFiring() throws InterruptedException {
+		for (int i = 0; i < 500 && firedBy.get() == null; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(firedBy.get() != null);
+	}
+}
@@ -0,0 +1,61 @@
+package br.com.caelum.vraptor.jpa.extra;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class BulkWriterTest {
+
+	private @Mock EntityManager manager;
+	private BulkWriter writer;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		writer = new BulkWriter(manager, 2);
+	}
+
+	@Test
+	public void shouldFlushAndClearEveryChunk() {
+		writer.persist("a");
+		verify(manager, never()).flush();
+
+		writer.persist("b");
+		writer.merge("c");
+		writer.remove("d");
+
+		InOrder order = inOrder(manager);
+		order.verify(manager).persist("a");
+		order.verify(manager).persist("b");
+		order.verify(manager).flush();
+		order.verify(manager).clear();
+		order.verify(manager).merge("c");
+		order.verify(manager).remove("d");
+		order.verify(manager).flush();
+		order.verify(manager).clear();
+	}
+
+	@Test
+	public void shouldFlushOnlyWhenSomethingIsPending() {
+		writer.flush();
+		writer.persist("a");
+		writer.flush();
+		writer.flush();
+
+		verify(manager, times(1)).flush();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldNotAcceptEmptyChunks() {
+		new BulkWriter(manager, 0);
+	}
+}
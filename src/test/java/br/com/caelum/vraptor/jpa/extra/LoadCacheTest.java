@@ -0,0 +1,130 @@
+package br.com.caelum.vraptor.jpa.extra;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.Tenants;
+import br.com.caelum.vraptor.jpa.event.AfterCommit;
+import br.com.caelum.vraptor.jpa.event.Change;
+import br.com.caelum.vraptor.jpa.event.Change.Operation;
+
+public class LoadCacheTest {
+
+	private @Mock Environment environment;
+	private @Mock Tenants tenants;
+
+	private LoadCache cache;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(environment.get("br.com.caelum.vraptor.jpa.loadcache.size", "0")).thenReturn("10");
+		when(environment.get("br.com.caelum.vraptor.jpa.loadcache.ttl", "60")).thenReturn("60");
+		cache = new LoadCache(environment, tenants);
+		cache.init();
+	}
+
+	@Test
+	public void shouldHandOutCopies() {
+		Product product = new Product("book");
+
+		Object copy = cache.put(Product.class, 1L, product, cache.generation(Product.class));
+
+		assertThat(copy, is(not(sameInstance((Object) product))));
+		assertThat(((Product) cache.get(Product.class, 1L)).name, is("book"));
+		assertThat(cache.getHitCount(), is(1L));
+	}
+
+	@Test
+	public void shouldInvalidateWrittenTypesAfterCommit() {
+		cache.put(Product.class, 1L, new Product("book"), cache.generation(Product.class));
+		cache.put(Category.class, 1L, new Category(), cache.generation(Category.class));
+		Change change = new Change(Product.class, null, Operation.MERGE);
+
+		cache.invalidate(new AfterCommit(null, 0, Arrays.asList(change)));
+
+		assertThat(cache.get(Product.class, 1L), is(nullValue()));
+		assertThat(cache.get(Category.class, 1L), is(not(nullValue())));
+		assertThat(cache.getInvalidationCount(), is(1L));
+	}
+
+	@Test
+	public void shouldInvalidateTypesUpdatedByDirtyChecking() {
+		cache.put(Product.class, 1L, new Product("book"), cache.generation(Product.class));
+
+		cache.invalidate(new AfterCommit(null, 0, Arrays.asList(new Change(Product.class, 1L, Operation.UPDATE))));
+
+		assertThat(cache.get(Product.class, 1L), is(nullValue()));
+	}
+
+	@Test
+	public void shouldInvalidateSubtypesAndSupertypes() {
+		cache.put(Product.class, 1L, new Product("book"), cache.generation(Product.class));
+		cache.put(Book.class, 2L, new Book(), cache.generation(Book.class));
+
+		cache.invalidate(null, Book.class);
+
+		assertThat(cache.get(Product.class, 1L), is(nullValue()));
+		assertThat(cache.get(Book.class, 2L), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNotCacheWhatWasLoadedBeforeAnInvalidation() {
+		long generation = cache.generation(Product.class);
+		cache.invalidate(null, Product.class);
+
+		Object copy = cache.put(Product.class, 1L, new Product("stale"), generation);
+
+		assertThat(((Product) copy).name, is("stale"));
+		assertThat(cache.get(Product.class, 1L), is(nullValue()));
+	}
+
+	@Test
+	public void shouldKeepTheEntriesAndInvalidationsOfEachTenant() {
+		when(tenants.current()).thenReturn("acme");
+		cache.put(Product.class, 1L, new Product("acme book"), cache.generation(Product.class));
+
+		when(tenants.current()).thenReturn("globex");
+		assertThat(cache.get(Product.class, 1L), is(nullValue()));
+		cache.put(Product.class, 1L, new Product("globex book"), cache.generation(Product.class));
+		cache.invalidate(new AfterCommit(null, 0, Arrays.asList(new Change(Product.class, 1L, Operation.UPDATE)), "globex"));
+		assertThat(cache.get(Product.class, 1L), is(nullValue()));
+
+		when(tenants.current()).thenReturn("acme");
+		assertThat(((Product) cache.get(Product.class, 1L)).name, is("acme book"));
+	}
+
+	static class Book extends Product {
+		private static final long serialVersionUID = 1L;
+
+		Book() {
+			super("book");
+		}
+	}
+
+	static class Product implements Serializable {
+		private static final long serialVersionUID = 1L;
+		String name;
+
+		Product(String name) {
+			this.name = name;
+		}
+	}
+
+	static class Category implements Serializable {
+		private static final long serialVersionUID = 1L;
+	}
+}
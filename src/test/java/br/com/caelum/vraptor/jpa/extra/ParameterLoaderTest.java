@@ -5,18 +5,34 @@ import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Cacheable;
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Subgraph;
+import javax.persistence.TypedQuery;
 import javax.persistence.metamodel.EntityType;
 import javax.persistence.metamodel.MappedSuperclassType;
 import javax.persistence.metamodel.Metamodel;
 import javax.persistence.metamodel.SingularAttribute;
 import javax.persistence.metamodel.Type;
+import javax.persistence.metamodel.Type.PersistenceType;
 import javax.servlet.http.HttpServletRequest;
 
 import org.junit.Before;
@@ -26,31 +42,48 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.stubbing.Stubber;
 
 import br.com.caelum.vraptor.Result;
+import br.com.caelum.vraptor.cache.DefaultCacheStore;
 import br.com.caelum.vraptor.controller.ControllerMethod;
 import br.com.caelum.vraptor.controller.DefaultControllerMethod;
 import br.com.caelum.vraptor.converter.LongConverter;
 import br.com.caelum.vraptor.converter.StringConverter;
 import br.com.caelum.vraptor.core.Converters;
+import br.com.caelum.vraptor.core.MethodInfo;
+import br.com.caelum.vraptor.environment.Environment;
 import br.com.caelum.vraptor.events.ControllerFound;
 import br.com.caelum.vraptor.http.Parameter;
 import br.com.caelum.vraptor.http.ParameterNameProvider;
+import br.com.caelum.vraptor.http.ParametersProvider;
+import br.com.caelum.vraptor.jpa.BulkheadPermit;
+import br.com.caelum.vraptor.jpa.Tenants;
+import br.com.caelum.vraptor.jpa.event.BeforeRetry;
+import br.com.caelum.vraptor.jpa.extra.Load.Mode;
 import br.com.caelum.vraptor.view.FlashScope;
 
 public class ParameterLoaderTest {
 
 	private @Mock EntityManager em;
+	private @Mock EntityManagerFactory factory;
 	private @Mock HttpServletRequest request;
 	private @Mock ParameterNameProvider provider;
 	private @Mock Result result;
 	private @Mock Converters converters;
 	private @Mock FlashScope flash;
+	private @Mock MethodInfo methodInfo;
+	private @Mock BulkheadPermit permit;
+	private @Mock ParametersProvider parameters;
 
 	private @Mock Metamodel metamodel;
 	private @Mock EntityType entityType;
 	private @Mock Type type;
 	private @Mock SingularAttribute attribute;
 	private @Mock MappedSuperclassType mappedSuperclassType;
+	private @Mock TypedQuery query;
+	private @Mock PersistenceUnitUtil util;
+
+	private @Mock Environment environment;
 
+	private LoadCache cache;
 	private ParameterLoader parameterLoader;
 	private ControllerMethod method;
 	private ControllerMethod methodOtherIdName;
@@ -65,7 +98,9 @@ public class ParameterLoaderTest {
 	@Before
 	public void setUp() throws Exception {
 		MockitoAnnotations.initMocks(this);
-		parameterLoader = new ParameterLoader(em, request, provider, result, converters, flash);
+		LoadPlans plans = new LoadPlans(factory, provider, new DefaultCacheStore<ControllerMethod, LoadPlan>());
+		cache = new LoadCache(environment, mock(Tenants.class));
+		parameterLoader = new ParameterLoader(em, request, plans, result, converters, flash, cache, methodInfo, permit, parameters);
 		method = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("method", Entity.class));
 		methodWithoutLoad = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("methodWithoutLoad"));
 		methodOtherIdName = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("methodOtherIdName", EntityOtherIdName.class));
@@ -78,8 +113,9 @@ public class ParameterLoaderTest {
 
 		when(converters.to(Long.class)).thenReturn(new LongConverter());
 		when(converters.to(String.class)).thenReturn(new StringConverter());
+		when(permit.acquire(any(ControllerMethod.class))).thenReturn(true);
 
-		when(em.getMetamodel()).thenReturn(metamodel);
+		when(factory.getMetamodel()).thenReturn(metamodel);
 		when(metamodel.entity(any(Class.class))).thenReturn(entityType);
 		when(entityType.getIdType()).thenReturn(type);
 		when(attribute.getType()).thenReturn(type);
@@ -100,9 +136,67 @@ public class ParameterLoaderTest {
 
 		parameterLoader.load(new ControllerFound(method));
 
+		verify(methodInfo).setControllerMethod(method);
 		verify(request).setAttribute("entity", expectedEntity);
 	}
 
+	@Test
+	public void shouldNotLoadAnythingWhenTheBulkheadRejectsTheRequest() throws Exception {
+		when(provider.parametersFor(method.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", method.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		when(permit.acquire(method)).thenReturn(false);
+		givenSingleLongId();
+
+		parameterLoader.load(new ControllerFound(method));
+
+		verify(em, never()).find(any(Class.class), any());
+		verify(request, never()).setAttribute(eq("entity"), any());
+	}
+
+	@Test
+	public void shouldReloadTheEntitiesIntoTheMethodParametersBeforeARetry() throws Exception {
+		Parameter parameter = new Parameter(0, "entity", method.getMethod());
+		when(provider.parametersFor(method.getMethod())).thenReturn(new Parameter[]{parameter});
+		when(request.getParameter("entity.id")).thenReturn("123");
+		when(methodInfo.getControllerMethod()).thenReturn(method);
+
+		Entity reloaded = new Entity();
+		when(em.find(Entity.class, 123L)).thenReturn(reloaded);
+		when(entityType.getDeclaredId(Long.class)).thenReturn(attribute);
+		when(attribute.getName()).thenReturn("id");
+		when(type.getJavaType()).thenReturn(Long.class);
+
+		parameterLoader.reload(new BeforeRetry(2, new IllegalStateException()));
+
+		verify(methodInfo).setParameter(0, reloaded);
+		verify(request, never()).setAttribute(eq("entity"), any());
+	}
+
+	@Test
+	public void shouldBuildTheOtherEntityParametersAgainFromTheRequestBeforeARetry() throws Exception {
+		ControllerMethod create = DefaultControllerMethod.instanceFor(Resource.class,
+				Resource.class.getMethod("create", Entity.class, Entity.class, String.class));
+		when(provider.parametersFor(create.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "parent", create.getMethod()), new Parameter(1, "child", create.getMethod()),
+				new Parameter(2, "name", create.getMethod()) });
+		when(request.getParameter("parent.id")).thenReturn("123");
+		when(methodInfo.getControllerMethod()).thenReturn(create);
+		givenSingleLongId();
+		Entity parent = new Entity();
+		when(em.find(Entity.class, 123L)).thenReturn(parent);
+		when(em.getMetamodel()).thenReturn(metamodel);
+		when(metamodel.entity(String.class)).thenThrow(new IllegalArgumentException("not an entity"));
+		Entity child = new Entity();
+		when(parameters.getParametersFor(eq(create), any(List.class))).thenReturn(new Object[] { null, child, "rebuilt" });
+
+		parameterLoader.reload(new BeforeRetry(2, new IllegalStateException()));
+
+		verify(methodInfo).setParameter(0, parent);
+		verify(methodInfo).setParameter(1, child);
+		verify(methodInfo, never()).setParameter(eq(2), any());
+	}
+
 	@Test
 	public void shouldLoadEntityUsingOtherIdName() throws Exception {
 		Parameter parameter = new Parameter(0, "entity", methodOtherIdName.getMethod());
@@ -263,6 +357,248 @@ public class ParameterLoaderTest {
 		verify(result).notFound();
 	}
 
+	@Test
+	public void shouldInspectParametersOnlyOnceForEachMethod() throws Exception {
+		Parameter parameter = new Parameter(0, "entity", method.getMethod());
+		when(provider.parametersFor(method.getMethod())).thenReturn(new Parameter[]{parameter});
+		when(request.getParameter("entity.id")).thenReturn("123");
+		when(em.find(Entity.class, 123L)).thenReturn(new Entity());
+		when(entityType.getDeclaredId(Long.class)).thenReturn(attribute);
+		when(attribute.getName()).thenReturn("id");
+		when(type.getJavaType()).thenReturn(Long.class);
+
+		parameterLoader.load(new ControllerFound(method));
+		parameterLoader.load(new ControllerFound(method));
+
+		verify(provider, times(1)).parametersFor(method.getMethod());
+		verify(metamodel, times(1)).entity(Entity.class);
+	}
+
+	@Test
+	public void shouldDoNothingWhenMethodHasNoLoadParameters() throws Exception {
+		when(provider.parametersFor(methodWithoutLoad.getMethod())).thenReturn(new Parameter[0]);
+
+		parameterLoader.load(new ControllerFound(methodWithoutLoad));
+
+		verify(flash, never()).consumeParameters(methodWithoutLoad);
+		verify(em, never()).find(any(Class.class), any());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldLoadEntitiesOfSameTypeWithASingleQuery() throws Exception {
+		ControllerMethod twoEntities = DefaultControllerMethod.instanceFor(Resource.class,
+				Resource.class.getMethod("twoEntities", Entity.class, Entity.class));
+		when(provider.parametersFor(twoEntities.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "first", twoEntities.getMethod()), new Parameter(1, "second", twoEntities.getMethod()) });
+		when(request.getParameter("first.id")).thenReturn("1");
+		when(request.getParameter("second.id")).thenReturn("2");
+		givenSingleLongId();
+
+		Entity first = new Entity();
+		Entity second = new Entity();
+		givenQueryReturns(first, second);
+		when(util.getIdentifier(first)).thenReturn(1L);
+		when(util.getIdentifier(second)).thenReturn(2L);
+
+		parameterLoader.load(new ControllerFound(twoEntities));
+
+		verify(query).setParameter("ids", new LinkedHashSet<Object>(Arrays.asList(1L, 2L)));
+		verify(em, never()).find(any(Class.class), any());
+		verify(request).setAttribute("first", first);
+		verify(request).setAttribute("second", second);
+	}
+
+	@Test
+	public void shouldLoadCollectionParameters() throws Exception {
+		ControllerMethod entities = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("entities", List.class));
+		when(provider.parametersFor(entities.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entities", entities.getMethod()) });
+		when(request.getParameterValues("entities[].id")).thenReturn(new String[] { "2", "1" });
+		givenSingleLongId();
+
+		Entity first = new Entity();
+		Entity second = new Entity();
+		givenQueryReturns(first, second);
+		when(util.getIdentifier(first)).thenReturn(1L);
+		when(util.getIdentifier(second)).thenReturn(2L);
+
+		parameterLoader.load(new ControllerFound(entities));
+
+		verify(request).setAttribute("entities", Arrays.asList(second, first));
+	}
+
+	@Test
+	public void shouldSend404WhenSomeIdOfCollectionDoesntExist() throws Exception {
+		ControllerMethod entities = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("entities", List.class));
+		when(provider.parametersFor(entities.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entities", entities.getMethod()) });
+		when(request.getParameterValues("entities[].id")).thenReturn(new String[] { "1", "2" });
+		givenSingleLongId();
+
+		Entity first = new Entity();
+		givenQueryReturns(first);
+		when(util.getIdentifier(first)).thenReturn(1L);
+
+		parameterLoader.load(new ControllerFound(entities));
+
+		verify(request, never()).setAttribute(eq("entities"), any());
+		verify(result).notFound();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldFetchAttributePathsWithAnEntityGraphBuiltOnce() throws Exception {
+		ControllerMethod withGraph = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("withGraph", Entity.class));
+		when(provider.parametersFor(withGraph.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", withGraph.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		givenSingleLongId();
+
+		EntityGraph<Entity> graph = mock(EntityGraph.class);
+		Subgraph<Object> subgraph = mock(Subgraph.class);
+		when(em.getEntityManagerFactory()).thenReturn(factory);
+		when(em.createEntityGraph(Entity.class)).thenReturn(graph);
+		when(graph.addSubgraph("category")).thenReturn(subgraph);
+
+		Entity expectedEntity = new Entity();
+		Map<String, Object> hints = Collections.<String, Object> singletonMap("javax.persistence.fetchgraph", graph);
+		when(em.find(Entity.class, 123L, hints)).thenReturn(expectedEntity);
+
+		parameterLoader.load(new ControllerFound(withGraph));
+		parameterLoader.load(new ControllerFound(withGraph));
+
+		verify(graph).addAttributeNodes("items");
+		verify(subgraph).addAttributeNodes("parent");
+		verify(em, times(1)).createEntityGraph(Entity.class);
+		verify(request, times(2)).setAttribute("entity", expectedEntity);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldBuildTheEntityGraphAgainForAnotherFactory() throws Exception {
+		ControllerMethod withGraph = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("withGraph", Entity.class));
+		when(provider.parametersFor(withGraph.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", withGraph.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		givenSingleLongId();
+		LoadPlans plans = new LoadPlans(factory, provider, new DefaultCacheStore<ControllerMethod, LoadPlan>());
+
+		Subgraph<Object> subgraph = mock(Subgraph.class);
+		EntityGraph<Entity> graph = mock(EntityGraph.class);
+		when(graph.addSubgraph("category")).thenReturn(subgraph);
+		when(em.getEntityManagerFactory()).thenReturn(factory);
+		when(em.createEntityGraph(Entity.class)).thenReturn(graph);
+		Entity expectedEntity = new Entity();
+		when(em.find(Entity.class, 123L, Collections.<String, Object> singletonMap("javax.persistence.fetchgraph", graph)))
+				.thenReturn(expectedEntity);
+
+		EntityManager tenantEm = mock(EntityManager.class);
+		EntityManagerFactory tenantFactory = mock(EntityManagerFactory.class);
+		EntityGraph<Entity> tenantGraph = mock(EntityGraph.class);
+		when(tenantGraph.addSubgraph("category")).thenReturn(subgraph);
+		when(tenantEm.getEntityManagerFactory()).thenReturn(tenantFactory);
+		when(tenantEm.createEntityGraph(Entity.class)).thenReturn(tenantGraph);
+		Entity tenantEntity = new Entity();
+		when(tenantEm.find(Entity.class, 123L, Collections.<String, Object> singletonMap("javax.persistence.fetchgraph", tenantGraph)))
+				.thenReturn(tenantEntity);
+
+		new ParameterLoader(em, request, plans, result, converters, flash, cache, methodInfo, permit, parameters)
+				.load(new ControllerFound(withGraph));
+		new ParameterLoader(tenantEm, request, plans, result, converters, flash, cache, methodInfo, permit, parameters)
+				.load(new ControllerFound(withGraph));
+
+		verify(em, times(1)).createEntityGraph(Entity.class);
+		verify(tenantEm, times(1)).createEntityGraph(Entity.class);
+		verify(request).setAttribute("entity", expectedEntity);
+		verify(request).setAttribute("entity", tenantEntity);
+	}
+
+	@Test
+	public void shouldUseReferenceWithoutHittingTheDatabase() throws Exception {
+		ControllerMethod reference = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("reference", Entity.class));
+		when(provider.parametersFor(reference.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", reference.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		givenSingleLongId();
+
+		Entity proxy = new Entity();
+		when(em.getReference(Entity.class, 123L)).thenReturn(proxy);
+
+		parameterLoader.load(new ControllerFound(reference));
+
+		verify(request).setAttribute("entity", proxy);
+		verify(em, never()).find(any(Class.class), any());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldSend404WhenCheckedReferenceDoesntExist() throws Exception {
+		ControllerMethod checked = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("checkedReference", Entity.class));
+		when(provider.parametersFor(checked.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", checked.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		givenSingleLongId();
+
+		when(em.createQuery("select e.id from Entity e where e.id in :ids", Object.class)).thenReturn(query);
+		when(query.setParameter(eq("ids"), any())).thenReturn(query);
+		when(query.getResultList()).thenReturn(Collections.emptyList());
+
+		parameterLoader.load(new ControllerFound(checked));
+
+		verify(result).notFound();
+		verify(em, never()).getReference(any(Class.class), any());
+	}
+
+	@Test
+	public void shouldTakeCacheableEntitiesFromLoadCache() throws Exception {
+		when(environment.get("br.com.caelum.vraptor.jpa.loadcache.size", "0")).thenReturn("10");
+		when(environment.get("br.com.caelum.vraptor.jpa.loadcache.ttl", "60")).thenReturn("60");
+		cache.init();
+
+		ControllerMethod cached = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("cached", CachedEntity.class));
+		when(provider.parametersFor(cached.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", cached.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		givenSingleLongId();
+
+		CachedEntity entity = new CachedEntity();
+		entity.id = 123L;
+		when(em.find(CachedEntity.class, 123L)).thenReturn(entity);
+
+		parameterLoader.load(new ControllerFound(cached));
+		parameterLoader.load(new ControllerFound(cached));
+
+		verify(em, times(1)).find(CachedEntity.class, 123L);
+		verify(request, times(2)).setAttribute(eq("entity"), any(CachedEntity.class));
+		verify(request, never()).setAttribute("entity", entity);
+		assertThat(cache.getHitCount(), is(1L));
+	}
+
+	@Test
+	public void shouldLoadManagedCacheableEntitiesUnlessTheParameterAsksForTheCache() throws Exception {
+		when(environment.get("br.com.caelum.vraptor.jpa.loadcache.size", "0")).thenReturn("10");
+		when(environment.get("br.com.caelum.vraptor.jpa.loadcache.ttl", "60")).thenReturn("60");
+		cache.init();
+
+		ControllerMethod uncached = DefaultControllerMethod.instanceFor(Resource.class, Resource.class.getMethod("uncached", CachedEntity.class));
+		when(provider.parametersFor(uncached.getMethod())).thenReturn(new Parameter[] {
+				new Parameter(0, "entity", uncached.getMethod()) });
+		when(request.getParameter("entity.id")).thenReturn("123");
+		givenSingleLongId();
+
+		CachedEntity entity = new CachedEntity();
+		entity.id = 123L;
+		when(em.find(CachedEntity.class, 123L)).thenReturn(entity);
+
+		parameterLoader.load(new ControllerFound(uncached));
+		parameterLoader.load(new ControllerFound(uncached));
+
+		verify(em, times(2)).find(CachedEntity.class, 123L);
+		verify(request, times(2)).setAttribute("entity", entity);
+		assertThat(cache.getMissCount(), is(0L));
+	}
+
 	@Test(expected=IllegalArgumentException.class)
 	public void shouldThrowIllegalArgumentIfEntityDoesntHaveId() throws Exception {
 		Parameter parameter = new Parameter(0, "entity", methodOtherIdName.getMethod());
@@ -315,6 +651,11 @@ public class ParameterLoaderTest {
 	static class GrandSon extends Son {
 	}
 
+	@Cacheable static class CachedEntity implements Serializable {
+		private static final long serialVersionUID = 1L;
+		@Id Long id;
+	}
+
 	static class Resource {
 		public void method(@Load Entity entity) {
 		}
@@ -334,6 +675,41 @@ public class ParameterLoaderTest {
 		}
 		public void methodWithoutLoad() {
 		}
+		public void create(@Load Entity parent, Entity child, String name) {
+		}
+		public void twoEntities(@Load Entity first, @Load Entity second) {
+		}
+		public void entities(@Load List<Entity> entities) {
+		}
+		public void reference(@Load(mode = Mode.REFERENCE) Entity entity) {
+		}
+		public void checkedReference(@Load(mode = Mode.CHECKED_REFERENCE) Entity entity) {
+		}
+		public void cached(@Load(cache = true) CachedEntity entity) {
+		}
+		public void uncached(@Load CachedEntity entity) {
+		}
+		public void withGraph(@Load(fetch = { "items", "category.parent" }) Entity entity) {
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void givenSingleLongId() {
+		when(entityType.getDeclaredId(Long.class)).thenReturn(attribute);
+		when(entityType.hasSingleIdAttribute()).thenReturn(true);
+		when(entityType.getName()).thenReturn("Entity");
+		when(attribute.getName()).thenReturn("id");
+		when(type.getJavaType()).thenReturn(Long.class);
+		when(type.getPersistenceType()).thenReturn(PersistenceType.BASIC);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void givenQueryReturns(Object... entities) {
+		when(em.createQuery("select e from Entity e where e.id in :ids", Entity.class)).thenReturn(query);
+		when(query.setParameter(eq("ids"), any())).thenReturn(query);
+		when(query.getResultList()).thenReturn(Arrays.asList(entities));
+		when(em.getEntityManagerFactory()).thenReturn(factory);
+		when(factory.getPersistenceUnitUtil()).thenReturn(util);
 	}
 
 	private Stubber fail() {
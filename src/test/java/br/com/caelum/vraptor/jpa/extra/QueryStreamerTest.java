@@ -0,0 +1,135 @@
+package br.com.caelum.vraptor.jpa.extra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import br.com.caelum.vraptor.jpa.Category;
+import br.com.caelum.vraptor.jpa.Database;
+import br.com.caelum.vraptor.jpa.Item;
+import br.com.caelum.vraptor.jpa.extra.QueryStreamer.Release;
+
+public class QueryStreamerTest {
+
+	private @Mock EntityManager manager;
+	private @Mock TypedQuery<String> query;
+	private @Mock Metamodel metamodel;
+	private @Mock EntityType<String> entityType;
+
+	private QueryStreamer streamer;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		streamer = new QueryStreamer(manager, 2);
+		when(manager.getMetamodel()).thenReturn(metamodel);
+		when(metamodel.entity(String.class)).thenReturn(entityType);
+		when(query.getFirstResult()).thenReturn(0);
+		when(query.getMaxResults()).thenReturn(Integer.MAX_VALUE);
+		when(query.setFirstResult(anyInt())).thenReturn(query);
+		when(query.setMaxResults(anyInt())).thenReturn(query);
+	}
+
+	@Test
+	public void shouldFetchInChunksDetachingEachOneBeforeTheNext() {
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b"), Arrays.asList("c"));
+
+		List<String> rows = new ArrayList<>();
+		for (String row : streamer.stream(query)) {
+			rows.add(row);
+		}
+
+		assertEquals(Arrays.asList("a", "b", "c"), rows);
+		InOrder order = inOrder(query, manager);
+		order.verify(query).setFirstResult(0);
+		order.verify(manager).detach("a");
+		order.verify(manager).detach("b");
+		order.verify(query).setFirstResult(2);
+		order.verify(manager).detach("c");
+		verify(manager, never()).clear();
+	}
+
+	@Test
+	public void shouldClearThePersistenceContextWhenAsked() {
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b"), Collections.<String> emptyList());
+
+		for (String row : streamer.stream(query, Release.CLEAR)) {
+			assertEquals(1, row.length());
+		}
+
+		verify(manager).clear();
+		verify(manager, never()).detach(any());
+	}
+
+	@Test
+	public void shouldScrollWithHibernateEvictingTheRowsAndTheirEagerAssociations() {
+		Database.clean();
+		Category kept = new Category("kept");
+		Category streamed = new Category("streamed");
+		Database.save(kept, streamed, new Item("a", streamed), new Item("b", streamed), new Item("c", streamed));
+
+		EntityManager real = Database.factory().createEntityManager();
+		try {
+			real.getTransaction().begin();
+			Category loadedBefore = real.find(Category.class, kept.getId());
+			TypedQuery<Item> items = real.createQuery("select i from Item i order by i.id", Item.class);
+
+			List<String> names = new ArrayList<>();
+			Item first = null;
+			for (Item item : new QueryStreamer(real, 2).stream(items)) {
+				if (first == null) {
+					first = item;
+				}
+				if (item.getName().equals("c")) {
+					assertFalse(real.contains(first));
+					assertFalse(real.contains(first.getCategory()));
+				}
+				names.add(item.getName());
+			}
+
+			assertEquals(Arrays.asList("a", "b", "c"), names);
+			assertEquals(0, items.getFirstResult());
+			assertTrue(real.contains(loadedBefore));
+			assertFalse(real.contains(first));
+			real.getTransaction().rollback();
+		} finally {
+			real.close();
+		}
+	}
+
+	@Test
+	public void shouldStopAtTheMaxResultsOfTheQuery() {
+		when(query.getMaxResults()).thenReturn(3);
+		when(query.getResultList()).thenReturn(Arrays.asList("a", "b"), Arrays.asList("c"));
+
+		int count = 0;
+		for (@SuppressWarnings("unused") String row : streamer.stream(query)) {
+			count++;
+		}
+
+		assertEquals(3, count);
+		verify(query).setMaxResults(1);
+	}
+}
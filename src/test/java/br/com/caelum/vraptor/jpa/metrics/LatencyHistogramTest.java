@@ -0,0 +1,46 @@
+package br.com.caelum.vraptor.jpa.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void shouldReturnZeroWhenNothingWasRecorded() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMillis(99), 0);
+		assertEquals(0, histogram.getMeanMillis(), 0);
+	}
+
+	@Test
+	public void shouldComputePercentilesWithinTheBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * MILLIS);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5, histogram.getMeanMillis(), 0.001);
+		assertEquals(100, histogram.getMaxMillis(), 0.001);
+		assertEquals(50, histogram.getPercentileMillis(50), 50 * 0.125);
+		assertEquals(99, histogram.getPercentileMillis(99), 99 * 0.125);
+		assertEquals(100, histogram.getPercentileMillis(100), 0.001);
+	}
+
+	@Test
+	public void shouldKeepBucketBoundsContiguous() {
+		for (int i = 1; i < 8 * 61; i++) {
+			assertEquals(i, LatencyHistogram.indexOf(LatencyHistogram.upperBoundOf(i - 1) + 1));
+			assertEquals(i, LatencyHistogram.indexOf(LatencyHistogram.upperBoundOf(i)));
+		}
+		assertTrue(LatencyHistogram.indexOf(Long.MAX_VALUE) < 8 * 61);
+	}
+}
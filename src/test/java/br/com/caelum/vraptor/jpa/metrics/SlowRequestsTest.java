@@ -0,0 +1,70 @@
+package br.com.caelum.vraptor.jpa.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import br.com.caelum.vraptor.controller.ControllerMethod;
+import br.com.caelum.vraptor.controller.DefaultControllerMethod;
+
+public class SlowRequestsTest {
+
+	private final SlowRequests slowRequests = new SlowRequests(3, 1000, 600, 2);
+
+	@Test
+	public void shouldNotFlagRequestsUnderTheThresholds() {
+		assertFalse(slowRequests.record(sample("list", 3)));
+		assertEquals(0, slowRequests.getFlaggedRequests());
+	}
+
+	@Test
+	public void shouldFlagRequestsWithTooManyQueries() {
+		assertTrue(slowRequests.record(sample("list", 4)));
+		assertEquals(1, slowRequests.getFlaggedRequests());
+	}
+
+	@Test
+	public void shouldListTheMethodsFlaggedMoreTimes() {
+		slowRequests.record(sample("list", 10));
+		slowRequests.record(sample("show", 5));
+		slowRequests.record(sample("show", 20));
+		slowRequests.record(sample("edit", 5));
+		slowRequests.record(sample("edit", 5));
+		slowRequests.record(sample("edit", 5));
+
+		assertArrayEquals(new String[] {
+				Controller.class.getName() + "#edit: flagged 3 times, up to 5 queries",
+				Controller.class.getName() + "#show: flagged 2 times, up to 20 queries" },
+				slowRequests.getTopOffenders());
+	}
+
+	private TransactionSample sample(String method, int queries) {
+		TransactionSample sample = new TransactionSample(methodNamed(method));
+		for (int i = 0; i < queries; i++) {
+			sample.getQueries().record(1000);
+		}
+		return sample.finish();
+	}
+
+	private ControllerMethod methodNamed(String name) {
+		try {
+			return DefaultControllerMethod.instanceFor(Controller.class, Controller.class.getMethod(name));
+		} catch (NoSuchMethodException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static class Controller {
+		public void list() {
+		}
+
+		public void show() {
+		}
+
+		public void edit() {
+		}
+	}
+}
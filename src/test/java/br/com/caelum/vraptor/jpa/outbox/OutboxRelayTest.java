@@ -0,0 +1,249 @@
+package br.com.caelum.vraptor.jpa.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.enterprise.inject.Instance;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.Tenants;
+
+public class OutboxRelayTest {
+
+	private @Mock EntityManagerFactory factory;
+	private @Mock EntityManager manager;
+	private @Mock EntityTransaction transaction;
+	private @Mock Environment environment;
+	private @Mock Instance<OutboxSink> sinks;
+	private @Mock Query select;
+	private @Mock Query delete;
+	private @Mock Tenants tenants;
+
+	private InMemoryOutboxSink sink = new InMemoryOutboxSink();
+	private OutboxRelay relay;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(environment.get("br.com.caelum.vraptor.jpa.outbox.table", "outbox")).thenReturn("outbox");
+		when(environment.get("br.com.caelum.vraptor.jpa.outbox.batchsize", "100")).thenReturn("100");
+		when(factory.createEntityManager()).thenReturn(manager);
+		when(manager.getTransaction()).thenReturn(transaction);
+		when(manager.createNativeQuery(anyString())).thenReturn(select);
+		when(manager.createNativeQuery(startsWith("delete from outbox"))).thenReturn(delete);
+		when(sinks.get()).thenReturn(sink);
+		when(environment.get("br.com.caelum.vraptor.jpa.outbox.tenants", "")).thenReturn("");
+		relay = new OutboxRelay(factory, environment, sinks, tenants);
+	}
+
+	@Test
+	public void shouldPublishAndDeleteTheMessages() {
+		givenRows(row(1, "a", "First"), row(2, "b", "Second"), row(3, "a", "Third"));
+
+		assertEquals(3, relay.drain());
+
+		assertEquals(Arrays.asList("First", "Third", "Second"), typesOf(sink.getMessages()));
+		verify(manager).createNativeQuery("delete from outbox where id in (?, ?, ?)");
+		verify(delete).setParameter(1, 1L);
+		verify(delete).setParameter(2, 3L);
+		verify(delete).setParameter(3, 2L);
+		verify(transaction, times(2)).commit();
+		verify(manager, times(2)).close();
+	}
+
+	@Test
+	public void shouldPublishOnlyAfterTheReadingTransactionIsOver() throws Exception {
+		final boolean[] activeWhilePublishing = new boolean[1];
+		OutboxSink broker = mock(OutboxSink.class);
+		when(sinks.get()).thenReturn(broker);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				activeWhilePublishing[0] = transaction.isActive();
+				return null;
+			}
+		}).when(broker).publish(any(OutboxMessage.class));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				when(transaction.isActive()).thenReturn(true);
+				return null;
+			}
+		}).when(transaction).begin();
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				when(transaction.isActive()).thenReturn(false);
+				return null;
+			}
+		}).when(transaction).commit();
+		givenRows(row(1, "a", "First"));
+
+		assertEquals(1, relay.drain());
+
+		assertFalse(activeWhilePublishing[0]);
+		InOrder order = inOrder(select, transaction, broker, delete);
+		order.verify(select).getResultList();
+		order.verify(transaction).commit();
+		order.verify(broker).publish(any(OutboxMessage.class));
+		order.verify(transaction).begin();
+		order.verify(delete).executeUpdate();
+		order.verify(transaction).commit();
+	}
+
+	@Test
+	public void shouldStopPublishingAKeyAfterAFailure() throws Exception {
+		OutboxSink failing = mock(OutboxSink.class);
+		when(sinks.get()).thenReturn(failing);
+		givenRows(row(1, "a", "First"), row(2, "a", "Second"), row(3, "b", "Third"));
+		doThrow(new IllegalStateException("broker is down")).when(failing).publish(argThat(
+				new BaseMatcher<OutboxMessage>() {
+					@Override
+					public boolean matches(Object item) {
+						return "First".equals(((OutboxMessage) item).getType());
+					}
+
+					@Override
+					public void describeTo(Description description) {
+					}
+				}));
+
+		assertEquals(1, relay.drain());
+
+		verify(manager).createNativeQuery("delete from outbox where id in (?)");
+		verify(delete).setParameter(1, 3L);
+	}
+
+	@Test
+	public void shouldPagePastTheMessagesOfABlockedKey() throws Exception {
+		when(environment.get("br.com.caelum.vraptor.jpa.outbox.batchsize", "100")).thenReturn("2");
+		OutboxSink failing = mock(OutboxSink.class);
+		when(sinks.get()).thenReturn(failing);
+		when(select.getResultList()).thenReturn(
+				new ArrayList<Object>(Arrays.asList(row(1, "a", "First"), row(2, "a", "Second"))),
+				new ArrayList<Object>(Arrays.asList(row(3, "a", "Third"), row(4, "b", "Fourth"))),
+				new ArrayList<Object>());
+		doThrow(new IllegalStateException("broker is down")).when(failing).publish(any(OutboxMessage.class));
+		doNothing().when(failing).publish(argThat(new BaseMatcher<OutboxMessage>() {
+			@Override
+			public boolean matches(Object item) {
+				return "Fourth".equals(((OutboxMessage) item).getType());
+			}
+
+			@Override
+			public void describeTo(Description description) {
+			}
+		}));
+
+		assertEquals(1, relay.drain());
+
+		verify(select).setParameter(1, Long.MIN_VALUE);
+		verify(select).setParameter(1, 2L);
+		verify(select).setParameter(1, 4L);
+		verify(failing, never()).publish(argThat(new BaseMatcher<OutboxMessage>() {
+			@Override
+			public boolean matches(Object item) {
+				return "Second".equals(((OutboxMessage) item).getType()) || "Third".equals(((OutboxMessage) item).getType());
+			}
+
+			@Override
+			public void describeTo(Description description) {
+			}
+		}));
+		verify(delete).setParameter(1, 4L);
+	}
+
+	@Test
+	public void shouldDoNothingWhenTheOutboxIsEmpty() {
+		givenRows();
+
+		assertEquals(0, relay.drain());
+
+		verify(delete, never()).executeUpdate();
+	}
+
+	@Test
+	public void shouldDrainTheFactoryOfEachTenant() {
+		EntityManagerFactory acme = mock(EntityManagerFactory.class);
+		EntityManager acmeManager = mock(EntityManager.class);
+		when(tenants.isFactoryPerTenant()).thenReturn(true);
+		when(tenants.names()).thenReturn(Arrays.asList("acme"));
+		when(tenants.borrow("acme")).thenReturn(acme);
+		when(acme.createEntityManager()).thenReturn(acmeManager);
+		when(acmeManager.getTransaction()).thenReturn(transaction);
+		when(acmeManager.createNativeQuery(anyString())).thenReturn(select);
+		when(acmeManager.createNativeQuery(startsWith("delete from outbox"))).thenReturn(delete);
+		when(select.getResultList()).thenReturn(new ArrayList<Object>(),
+				new ArrayList<Object>(Arrays.asList((Object) row(1, "a", "First"))));
+
+		assertEquals(1, relay.drain());
+
+		assertEquals(Arrays.asList("First"), typesOf(sink.getMessages()));
+		verify(delete).setParameter(1, 1L);
+		verify(tenants).giveBack(acme);
+		verify(tenants, never()).acquire("acme");
+		verify(acmeManager, times(2)).close();
+	}
+
+	@Test
+	public void shouldSkipTheTenantsWithoutAnOpenFactory() {
+		when(tenants.isFactoryPerTenant()).thenReturn(true);
+		when(environment.get("br.com.caelum.vraptor.jpa.outbox.tenants", "")).thenReturn("acme,globex");
+		givenRows();
+
+		assertEquals(0, relay.drain());
+
+		verify(tenants).borrow("acme");
+		verify(tenants).borrow("globex");
+		verify(tenants, never()).acquire(anyString());
+		verify(tenants, never()).giveBack(any(EntityManagerFactory.class));
+	}
+
+	private void givenRows(Object[]... rows) {
+		when(select.getResultList()).thenReturn(new ArrayList<Object>(Arrays.asList((Object[]) rows)));
+	}
+
+	private Object[] row(long id, String key, String type) {
+		return new Object[] { id, key, type, "{}", new Date() };
+	}
+
+	private List<String> typesOf(List<OutboxMessage> messages) {
+		List<String> types = new ArrayList<>();
+		for (OutboxMessage message : messages) {
+			types.add(message.getType());
+		}
+		return types;
+	}
+}
@@ -0,0 +1,82 @@
+package br.com.caelum.vraptor.jpa.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import br.com.caelum.vraptor.environment.Environment;
+import br.com.caelum.vraptor.jpa.Database;
+import br.com.caelum.vraptor.jpa.LazyEntityManager;
+
+public class OutboxTest {
+
+	private @Mock EntityManager manager;
+	private @Mock Environment environment;
+	private @Mock Query insert;
+
+	private Outbox outbox;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(environment.get("br.com.caelum.vraptor.jpa.outbox.table", "outbox")).thenReturn("outbox");
+		when(manager.createNativeQuery(anyString())).thenReturn(insert);
+		when(insert.setParameter(anyInt(), anyObject())).thenReturn(insert);
+		outbox = new Outbox(manager, environment);
+	}
+
+	@Test
+	public void shouldWriteEachMessageWithAPositionalInsert() {
+		outbox.add("order-1", "OrderCreated", "{}");
+		outbox.add(null, "Ping", "{}");
+
+		verify(manager, times(2)).createNativeQuery("insert into outbox (message_key, type, payload, created_at) values (?, ?, ?, ?)");
+		verify(insert).setParameter(1, "order-1");
+		verify(insert).setParameter(2, "OrderCreated");
+		verify(insert).setParameter(1, "");
+		verify(insert, times(2)).executeUpdate();
+	}
+
+	@Test
+	public void shouldCommitTheMessagesOfARequestThatOnlyAddsThem() {
+		execute(Database.factory().createEntityManager(), "create table if not exists outbox (id bigint auto_increment primary key, "
+				+ "message_key varchar(255), type varchar(255), payload clob, created_at timestamp)");
+		execute(Database.factory().createEntityManager(), "delete from outbox");
+
+		LazyEntityManager deferred = new LazyEntityManager(Database.factory(), true);
+		deferred.getTransaction().begin();
+		new Outbox(deferred, environment).add("order-1", "OrderPaid", "{}");
+		deferred.getTransaction().commit();
+		deferred.close();
+
+		EntityManager reader = Database.factory().createEntityManager();
+		try {
+			Number count = (Number) reader.createNativeQuery("select count(*) from outbox").getSingleResult();
+			assertEquals(1, count.intValue());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void execute(EntityManager manager, String sql) {
+		try {
+			manager.getTransaction().begin();
+			manager.createNativeQuery(sql).executeUpdate();
+			manager.getTransaction().commit();
+		} finally {
+			manager.close();
+		}
+	}
+}